@@ -0,0 +1,41 @@
+package com.example.chatserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// 客户端解析 /messages 响应的开销，响应内容由服务器的编码路径生成
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class ClientParsingBenchmark {
+    @Param({ "10", "100", "500" })
+    public int pageSize;
+
+    private Client client;
+    private String response;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        MessageStore messageStore = new MessageStore(100000, 64L * 1024 * 1024, 1000, 1024 * 1024);
+        for (int i = 0; i < pageSize; i++) {
+            messageStore.append("user" + (i % 5), "第 " + i + " 条 benchmark message", null);
+        }
+        FakeHttpExchange exchange = new FakeHttpExchange("GET", "/messages?since=0", new byte[0]);
+        ChatServer.sendMessagesResponse(exchange, new ChatRoom("benchmark", messageStore), null, 0, pageSize);
+        response = new String(exchange.getResponseBytes(), StandardCharsets.UTF_8);
+        client = new Client(null);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> parseMessagesResponse() {
+        return client.parseMessagesResponse(response);
+    }
+}
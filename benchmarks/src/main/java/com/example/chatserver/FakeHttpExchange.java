@@ -0,0 +1,131 @@
+package com.example.chatserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+// 内存中的 HttpExchange，用于在不经过网络的情况下基准测试处理器和响应写出
+class FakeHttpExchange extends HttpExchange {
+    private final String requestMethod;
+    private final URI requestUri;
+    private final byte[] requestBody;
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final ByteArrayOutputStream responseBody = new ByteArrayOutputStream(64 * 1024);
+    private InputStream requestStream;
+    private int responseCode = -1;
+
+    FakeHttpExchange(String requestMethod, String requestUri, byte[] requestBody) {
+        this.requestMethod = requestMethod;
+        this.requestUri = URI.create(requestUri);
+        this.requestBody = requestBody;
+        reset();
+    }
+
+    // 复用同一个对象执行下一次请求，避免把自身的分配计入基准结果
+    FakeHttpExchange reset() {
+        requestStream = new ByteArrayInputStream(requestBody);
+        responseHeaders.clear();
+        responseBody.reset();
+        responseCode = -1;
+        return this;
+    }
+
+    int getResponseLength() {
+        return responseBody.size();
+    }
+
+    byte[] getResponseBytes() {
+        return responseBody.toByteArray();
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return requestUri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return requestMethod;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestStream;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int responseCode, long responseLength) {
+        this.responseCode = responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return new InetSocketAddress("127.0.0.1", 50000);
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress("127.0.0.1", 8000);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+    }
+
+    @Override
+    public void setStreams(InputStream inputStream, OutputStream outputStream) {
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
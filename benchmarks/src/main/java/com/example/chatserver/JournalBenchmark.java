@@ -0,0 +1,99 @@
+package com.example.chatserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// 消息日志：在每种刷盘策略下多线程并发追加并等待持久化；另测量重启时回放整个日志的耗时
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class JournalBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class AppendState {
+        @Param({ "NONE", "INTERVAL", "GROUP" })
+        public MessageJournal.FsyncPolicy fsyncPolicy;
+
+        Path directory;
+        MessageStore messageStore;
+        MessageJournal journal;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("journal-benchmark");
+            messageStore = new MessageStore(100000, 64L * 1024 * 1024, 1000, 1024 * 1024);
+            journal = new MessageJournal(directory, fsyncPolicy, 64L * 1024 * 1024, 1000);
+            messageStore.recover(journal);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            journal.close();
+            deleteDirectory(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ReplayState {
+        @Param({ "200000" })
+        public int messages;
+
+        Path directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("journal-replay-benchmark");
+            MessageStore messageStore = new MessageStore(100000, 64L * 1024 * 1024, 1000, 1024 * 1024);
+            MessageJournal journal = new MessageJournal(directory, MessageJournal.FsyncPolicy.NONE, 64L * 1024 * 1024,
+                    1000);
+            messageStore.recover(journal);
+            for (int i = 0; i < messages; i++) {
+                messageStore.append("user" + (i % 8), "benchmark message number " + i, i % 10 == 0 ? "user1" : null);
+            }
+            journal.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Threads(8)
+    public boolean appendDurable(AppendState state) {
+        // 与 /send 相同：经 appendAll 追加后等待确认
+        ChatMessage chatMessage = state.messageStore.appendAll("user1",
+                List.of(new MessageStore.BatchEntry("benchmark message", null))).get(0);
+        return state.messageStore.awaitDurable(chatMessage, chatMessage);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long replay(ReplayState state) throws IOException {
+        MessageStore recovered = new MessageStore(100000, 64L * 1024 * 1024, 1000, 1024 * 1024);
+        MessageJournal reopened = new MessageJournal(state.directory, MessageJournal.FsyncPolicy.NONE,
+                64L * 1024 * 1024, 1000);
+        long replayed = recovered.recover(reopened);
+        reopened.close();
+        return replayed;
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.chatserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 消息存储：单线程追加，以及追加与区间读取并发进行时双方的吞吐量
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Group)
+public class MessageStoreBenchmark {
+    @Param({ "100" })
+    public int readSize;
+
+    private MessageStore messageStore;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        messageStore = new MessageStore(100000, 64L * 1024 * 1024, 1000, 1024 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            messageStore.append("user" + (i % 5), "warm-up message " + i, i % 10 == 0 ? "user1" : null);
+        }
+    }
+
+    @Benchmark
+    @Group("appendOnly")
+    public ChatMessage append() {
+        return messageStore.append("user1", "benchmark message", null);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public ChatMessage contendedAppend() {
+        return messageStore.append("user1", "benchmark message", null);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public List<ChatMessage> contendedReadRecent() {
+        return messageStore.readAfter("user1", messageStore.getLastSeq() - readSize);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.chatserver;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// 服务器请求路径：表单解析、JSON 响应写出（池化的解码器与写出器和旧做法对比），以及 /messages 响应的编码
+// （缓存字节与旧的 Gson 路径对比）。以 -prof gc 运行时 gc.alloc.rate.norm 即每个请求分配的字节数
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class RequestPathBenchmark {
+    private static final int STORED_MESSAGES = 2000;
+
+    @Param({ "10", "100", "500" })
+    public int pageSize;
+
+    private byte[] sendRequestBody;
+    private FakeHttpExchange jsonExchange;
+    private FakeHttpExchange messagesExchange;
+    private FakeHttpExchange gzipMessagesExchange;
+    private List<Map<String, String>> legacyMessages;
+    private long cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MessageStore messageStore = ChatServer.lobby.getMessageStore();
+        synchronized (RequestPathBenchmark.class) {
+            for (long seq = messageStore.getLastSeq(); seq < STORED_MESSAGES; seq++) {
+                messageStore.append("user" + (seq % 5), "第 " + seq + " 条 benchmark message", null);
+            }
+        }
+        cursor = messageStore.getLastSeq() - pageSize;
+        sendRequestBody = "username=user1&message=%E4%BD%A0%E5%A5%BD+benchmark+message&toUser=user2&room=lobby"
+                .getBytes(StandardCharsets.UTF_8);
+        jsonExchange = new FakeHttpExchange("POST", "/send", new byte[0]);
+        messagesExchange = new FakeHttpExchange("GET", "/messages?since=" + cursor, new byte[0]);
+        gzipMessagesExchange = new FakeHttpExchange("GET", "/messages?since=" + cursor, new byte[0]);
+        gzipMessagesExchange.getRequestHeaders().add("Accept-Encoding", "gzip");
+
+        legacyMessages = new ArrayList<>();
+        for (ChatMessage chatMessage : messageStore.readAfter(null, cursor)) {
+            Map<String, String> message = new HashMap<>();
+            message.put("username", chatMessage.getUsername());
+            message.put("message", chatMessage.getMessage());
+            legacyMessages.add(message);
+        }
+    }
+
+    // /send 读取的四个字段
+    @Benchmark
+    public int formDecoder() throws IOException {
+        try (FormDecoder form = FormDecoder.read(new ByteArrayInputStream(sendRequestBody))) {
+            String message = form.get("message");
+            String username = form.get("username");
+            String toUser = form.get("toUser");
+            String room = form.get("room");
+            return message.length() + username.length() + toUser.length() + (room == null ? 0 : 1);
+        }
+    }
+
+    // 改为 FormDecoder 之前的 parseRequestBody，以及 /send 处理器对取出的值再做的一次 URL 解码，作为对照
+    @Benchmark
+    public int legacyParseRequestBody() throws IOException {
+        Map<String, String> requestData = legacyParseRequestBody(new ByteArrayInputStream(sendRequestBody));
+        String message = URLDecoder.decode(requestData.get("message"), "UTF-8");
+        String username = URLDecoder.decode(requestData.get("username"), "UTF-8");
+        String toUser = URLDecoder.decode(requestData.get("toUser"), "UTF-8");
+        String room = requestData.get("room");
+        return message.length() + username.length() + toUser.length() + (room == null ? 0 : 1);
+    }
+
+    @Benchmark
+    public int sendJsonResponse() throws IOException {
+        ChatServer.sendJsonResponse(jsonExchange.reset(), "{\"success\": true, \"totalMessages\": 12345}");
+        return jsonExchange.getResponseLength();
+    }
+
+    // /send 成功时的响应：各部分直接写进复用的缓冲区
+    @Benchmark
+    public int sendResponseWriter() throws IOException {
+        try (ResponseWriter writer = ResponseWriter.acquire()) {
+            writer.append("{\"success\": ").append(true).append(", \"totalMessages\": ").append(cursor)
+                    .append("}").send(jsonExchange.reset(), 200);
+        }
+        return jsonExchange.getResponseLength();
+    }
+
+    // 改为 ResponseWriter 之前：拼接字符串后编码出新的字节数组
+    @Benchmark
+    public int legacySendJsonResponse() throws IOException {
+        String response = "{\"success\": " + true + ", \"totalMessages\": " + cursor + "}";
+        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        FakeHttpExchange httpExchange = jsonExchange.reset();
+        httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+        httpExchange.sendResponseHeaders(200, responseBytes.length);
+        try (OutputStream os = httpExchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+        return jsonExchange.getResponseLength();
+    }
+
+    @Benchmark
+    public int messagesResponse() throws IOException {
+        ChatServer.sendMessagesResponse(messagesExchange.reset(), ChatServer.lobby, null, cursor, pageSize);
+        return messagesExchange.getResponseLength();
+    }
+
+    @Benchmark
+    public int messagesResponseGzip() throws IOException {
+        ChatServer.sendMessagesResponse(gzipMessagesExchange.reset(), ChatServer.lobby, null, cursor, pageSize);
+        return gzipMessagesExchange.getResponseLength();
+    }
+
+    private static Map<String, String> legacyParseRequestBody(InputStream body) throws IOException {
+        Map<String, String> requestDataMap = new HashMap<>();
+        String requestBody = new BufferedReader(new InputStreamReader(body)).lines()
+                .collect(Collectors.joining("\n"));
+        for (String pair : requestBody.split("&")) {
+            String[] keyValue = pair.split("=");
+            requestDataMap.put(keyValue[0], URLDecoder.decode(keyValue[1], "UTF-8"));
+        }
+        return requestDataMap;
+    }
+
+    // 改为缓存字节之前 GetChatMessagesHandler 的做法，作为对照
+    @Benchmark
+    public int legacyGsonMessagesResponse() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("newMessages", legacyMessages);
+        response.put("totalMessages", cursor + pageSize);
+        String jsonResponse = new Gson().toJson(response);
+        return jsonResponse.getBytes().length + jsonResponse.getBytes().length;
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.chatserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 多个线程同时写入：全部写同一个房间时争用一把写锁，分散到多个房间时各自加锁，对比总吞吐量
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@Threads(4)
+@State(Scope.Benchmark)
+public class RoomScalingBenchmark {
+    @Param({ "1", "4" })
+    public int rooms;
+
+    private MessageStore[] messageStores;
+    private final AtomicInteger nextThread = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        messageStores = new MessageStore[rooms];
+        for (int i = 0; i < rooms; i++) {
+            messageStores[i] = new MessageStore(100000, 64L * 1024 * 1024, 1000, 1024 * 1024);
+        }
+    }
+
+    // 每个线程固定写入一个房间，线程按顺序轮流分配到各房间
+    @State(Scope.Thread)
+    public static class ThreadRoom {
+        MessageStore messageStore;
+
+        @Setup(Level.Trial)
+        public void setUp(RoomScalingBenchmark benchmark) {
+            messageStore = benchmark.messageStores[benchmark.nextThread.getAndIncrement() % benchmark.rooms];
+        }
+    }
+
+    @Benchmark
+    public ChatMessage append(ThreadRoom threadRoom) {
+        return threadRoom.messageStore.append("user1", "benchmark message", null);
+    }
+}
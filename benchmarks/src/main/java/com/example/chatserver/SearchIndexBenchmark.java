@@ -0,0 +1,64 @@
+package com.example.chatserver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// 检索索引：在已有 messages 条中英混排消息的索引上继续追加的开销，以及单词、中文词语和短语查询的延迟
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+@State(Scope.Benchmark)
+public class SearchIndexBenchmark {
+    private static final String[] WORDS = { "hello", "world", "chat", "server", "java", "release", "deploy",
+            "北京", "上海", "天气", "很好", "我们", "今天", "明天", "吃饭", "开会", "项目", "进度" };
+
+    @Param({ "1000000" })
+    public int messages;
+
+    @Param({ "hello", "项目进度", "\"hello world\"" })
+    public String query;
+
+    private SearchIndex searchIndex;
+    private SearchIndex.Query parsedQuery;
+    private String[] texts;
+    private long nextSeq;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        texts = new String[4096];
+        for (int i = 0; i < texts.length; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 8; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(w % 3 == 0 ? " " : "");
+            }
+            texts[i] = text.append(" #").append(i).toString();
+        }
+        searchIndex = new SearchIndex(messages, Long.MAX_VALUE);
+        for (nextSeq = 1; nextSeq <= messages; nextSeq++) {
+            searchIndex.add(newMessage());
+        }
+        parsedQuery = new SearchIndex.Query(query, null);
+    }
+
+    private ChatMessage newMessage() {
+        return new ChatMessage(nextSeq, nextSeq, "user" + (nextSeq % 100), texts[(int) (nextSeq % texts.length)],
+                null);
+    }
+
+    @Benchmark
+    public void add() {
+        searchIndex.add(newMessage());
+        nextSeq++;
+    }
+
+    @Benchmark
+    public List<ChatMessage> search() {
+        return searchIndex.search(parsedQuery, "user1", 0, Long.MAX_VALUE, Long.MAX_VALUE, 20);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// 异步审计日志：请求线程只把事件放入无锁队列，由单个写线程批量写入一直打开的文件通道。
+// 支持按大小或时间轮转；队列有界，写满时按溢出策略丢弃或等待。
+public class AuditLogger {
+    // 队列满时的处理方式：DROP 丢弃新事件并计数，BLOCK 等待写线程腾出空间
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final Path logFile;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final long rotateIntervalMillis;
+    private final Queue<AuditEvent> eventQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedEvents = new AtomicInteger();
+    private final AtomicLong droppedEvents = new AtomicLong(); // 尚未写入日志提示的丢弃数
+    private final AtomicLong droppedTotal = new AtomicLong();
+
+    private FileChannel channel; // 以下字段只由写线程访问
+    private long fileBytes;
+    private long fileOpenedAt;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private volatile Thread writerThread;
+    private volatile boolean writerParked = false;
+    private volatile boolean running = false;
+
+    static class AuditEvent {
+        final String username;
+        final String activity;
+        final long timestamp;
+
+        AuditEvent(String username, String activity, long timestamp) {
+            this.username = username;
+            this.activity = activity;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public AuditLogger(Path logFile, int capacity, OverflowPolicy overflowPolicy, long maxBytes, int maxFiles,
+            long rotateIntervalMillis) {
+        this.logFile = logFile;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        this.rotateIntervalMillis = rotateIntervalMillis;
+    }
+
+    public void start() throws IOException {
+        openLogFile();
+        running = true;
+        writerThread = new Thread(this::writeLoop, "audit-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void log(String username, String activity) {
+        while (queuedEvents.incrementAndGet() > capacity) {
+            queuedEvents.decrementAndGet();
+            if (overflowPolicy == OverflowPolicy.DROP || !running) {
+                droppedEvents.incrementAndGet();
+                droppedTotal.incrementAndGet();
+                return;
+            }
+            wakeWriter();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        eventQueue.offer(new AuditEvent(username, activity, System.currentTimeMillis()));
+        if (writerParked) {
+            wakeWriter();
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedTotal.get();
+    }
+
+    public int getQueuedCount() {
+        return queuedEvents.get();
+    }
+
+    private void wakeWriter() {
+        Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void writeLoop() {
+        while (running || !eventQueue.isEmpty()) {
+            try {
+                if (eventQueue.isEmpty()) {
+                    writerParked = true;
+                    // 挂起前再检查一次，避免错过生产者的唤醒
+                    if (eventQueue.isEmpty() && running) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+                writeBatch();
+            } catch (IOException e) {
+                System.err.println("日志记录失败: " + e.getMessage());
+                LockSupport.parkNanos(IDLE_PARK_NANOS); // 磁盘错误时稍后重试，期间事件留在队列中
+            }
+        }
+        closeChannel();
+    }
+
+    private void writeBatch() throws IOException {
+        AuditEvent event;
+        while ((event = eventQueue.poll()) != null) {
+            queuedEvents.decrementAndGet();
+            byte[] line = (event.username + " " + event.activity + " " + new Date(event.timestamp) + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8);
+            if (writeBuffer.remaining() < line.length) {
+                flushBuffer();
+                if (writeBuffer.capacity() < line.length) {
+                    writeBuffer = ByteBuffer.allocate(line.length);
+                }
+            }
+            writeBuffer.put(line);
+        }
+        long dropped = droppedEvents.getAndSet(0);
+        if (dropped > 0) {
+            byte[] line = ("审计队列已满，丢弃 " + dropped + " 条事件 " + new Date() + System.lineSeparator())
+                    .getBytes(StandardCharsets.UTF_8);
+            if (writeBuffer.remaining() < line.length) {
+                flushBuffer();
+            }
+            writeBuffer.put(line);
+        }
+        flushBuffer();
+
+        boolean rotateBySize = maxBytes > 0 && fileBytes >= maxBytes;
+        boolean rotateByTime = rotateIntervalMillis > 0
+                && System.currentTimeMillis() - fileOpenedAt >= rotateIntervalMillis;
+        if (rotateBySize || rotateByTime) {
+            rotate();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            fileBytes += channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    // logs.txt -> logs.txt.1 -> logs.txt.2 ...，超过 maxFiles 的最旧文件被删除
+    private void rotate() throws IOException {
+        channel.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rotatedFile(i);
+            if (Files.exists(source)) {
+                Files.move(source, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(logFile, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(logFile);
+        }
+        openLogFile();
+    }
+
+    private Path rotatedFile(int index) {
+        return Paths.get(logFile.toString() + "." + index);
+    }
+
+    private void openLogFile() throws IOException {
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+        fileOpenedAt = System.currentTimeMillis();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("日志记录失败: " + e.getMessage());
+        }
+    }
+
+    // 写出队列中剩余的事件后关闭文件，在进程退出前调用
+    public void close() {
+        running = false;
+        Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
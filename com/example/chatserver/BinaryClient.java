@@ -0,0 +1,229 @@
+package com.example.chatserver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 二进制传输的客户端：一条 TCP 连接，请求可以连续发出不必等待响应，响应按请求号对应到各自的 future；
+// 订阅房间后推送的消息交给监听器，在读取线程上按序号顺序回调。帧格式见 BinaryTransport
+public class BinaryClient implements Closeable {
+    public interface MessageListener {
+        void onMessage(String room, ChatMessage chatMessage);
+    }
+
+    // 请求的结果：error 为 null 时成功。登录时 value 为会话超时秒数、text 为令牌；发送时 value 为消息序号；
+    // 订阅时 value 为订阅时的最新序号；查询在线用户时 users 为用户列表
+    public static class Reply {
+        final String error;
+        final long value;
+        final String text;
+        final List<String> users;
+
+        Reply(String error, long value, String text, List<String> users) {
+            this.error = error;
+            this.value = value;
+            this.text = text;
+            this.users = users;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public List<String> getUsers() {
+            return users;
+        }
+    }
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(256); // 访问时持有 out 的锁
+    private final DataOutputStream frame = new DataOutputStream(frameBytes);
+    private final Map<Integer, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final MessageListener listener;
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    public BinaryClient(String host, int port, MessageListener listener) throws IOException {
+        this.listener = listener;
+        this.socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), 10000);
+        socket.setTcpNoDelay(true);
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        Thread reader = new Thread(this::readLoop, "binary-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // "主机:端口" 形式的地址
+    public static BinaryClient connect(String address, MessageListener listener) throws IOException {
+        int colon = address.lastIndexOf(':');
+        return new BinaryClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                listener);
+    }
+
+    public CompletableFuture<Reply> login(String username, String password) {
+        return request(BinaryTransport.LOGIN, username, password);
+    }
+
+    // toUser 为 null 时是公共消息
+    public CompletableFuture<Reply> send(String room, String toUser, String message) {
+        return request(BinaryTransport.SEND, room, toUser, message);
+    }
+
+    // 从序号 afterSeq 之后开始推送该房间的消息，先补齐积压的历史消息，再接着推送新消息
+    public CompletableFuture<Reply> subscribe(String room, long afterSeq) {
+        return request(BinaryTransport.SUBSCRIBE, afterSeq, room);
+    }
+
+    public CompletableFuture<Reply> unsubscribe(String room) {
+        return request(BinaryTransport.UNSUBSCRIBE, room);
+    }
+
+    public CompletableFuture<Reply> onlineUsers() {
+        return request(BinaryTransport.PRESENCE);
+    }
+
+    // 连接断开时完成
+    public CompletableFuture<Void> closeFuture() {
+        return closed;
+    }
+
+    public boolean isClosed() {
+        return closed.isDone();
+    }
+
+    private CompletableFuture<Reply> request(byte type, String... fields) {
+        return request(type, null, fields);
+    }
+
+    // since 不为 null 时作为字符串字段之后的 8 字节整数写出
+    private CompletableFuture<Reply> request(byte type, Long since, String... fields) {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        pending.put(requestId, reply);
+        try {
+            synchronized (out) {
+                frameBytes.reset();
+                frame.writeByte(type);
+                frame.writeInt(requestId);
+                for (String field : fields) {
+                    writeString(frame, field);
+                }
+                if (since != null) {
+                    frame.writeLong(since);
+                }
+                out.writeInt(frameBytes.size());
+                frameBytes.writeTo(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            close();
+            reply.completeExceptionally(e);
+        }
+        if (closed.isDone() && pending.remove(requestId) != null) {
+            reply.completeExceptionally(new EOFException("connection closed"));
+        }
+        return reply;
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                byte type = in.readByte();
+                if (type == BinaryTransport.MESSAGE) {
+                    String room = readString(in);
+                    long seq = in.readLong();
+                    long timestamp = in.readLong();
+                    String username = readString(in);
+                    String toUser = readString(in);
+                    ChatMessage chatMessage = new ChatMessage(seq, timestamp, username, readString(in), toUser);
+                    if (listener != null) {
+                        listener.onMessage(room, chatMessage);
+                    }
+                } else if (type == BinaryTransport.RESULT) {
+                    int requestId = in.readInt();
+                    String error = readString(in);
+                    long value = in.readLong();
+                    complete(requestId, new Reply(error, value, readString(in), null));
+                } else if (type == BinaryTransport.USERS) {
+                    int requestId = in.readInt();
+                    int count = in.readInt();
+                    List<String> users = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        users.add(readString(in));
+                    }
+                    complete(requestId, new Reply(null, count, null, users));
+                } else {
+                    in.skipBytes(length - 1); // 不认识的帧类型，留给以后的服务器扩展
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void complete(int requestId, Reply reply) {
+        CompletableFuture<Reply> future = pending.remove(requestId);
+        if (future != null) {
+            future.complete(reply);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        if (closed.complete(null)) {
+            for (CompletableFuture<Reply> future : pending.values()) {
+                future.completeExceptionally(new EOFException("connection closed"));
+            }
+            pending.clear();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
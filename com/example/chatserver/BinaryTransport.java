@@ -0,0 +1,736 @@
+package com.example.chatserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 二进制传输：与 HTTP 接口并存的可选监听端口，供机器人、桥接程序等高频客户端使用，省去请求头解析、URL 解码和 JSON 编码。
+// 每个核一个 NIO 事件循环，连接建立后固定由一个循环处理，读写都不阻塞。帧为 4 字节长度 + 1 字节类型 + 各字段，
+// 字符串为 4 字节长度（-1 表示 null）+ UTF-8，与集群链路相同。客户端可以连续发出多个请求，响应按请求号对应。
+// 一条连接登录一次即建立一个会话，连接保持期间会话不会过期，断开即结束会话；一条连接可以同时订阅多个房间。
+// 推送的消息帧在房间写锁内只编码一次，写入从大块直接内存中切出的缓冲区，所有订阅连接共享同一份字节，
+// 各事件循环把它与其他待发的帧一起以聚集写（writev）交给内核，不再逐个连接复制。
+public class BinaryTransport {
+    // 客户端发往服务器，请求号之后的字段
+    static final byte LOGIN = 1; // 用户名，密码
+    static final byte SEND = 2; // 房间名，私聊对象，内容
+    static final byte SUBSCRIBE = 3; // 房间名，已收到的最大序号
+    static final byte UNSUBSCRIBE = 4; // 房间名
+    static final byte PRESENCE = 5; // 无：查询在线用户
+    // 服务器发往客户端
+    static final byte RESULT = 16; // 请求号，错误（成功时为 null），数值，文本
+    static final byte USERS = 17; // 请求号，人数，[用户名]...
+    static final byte MESSAGE = 18; // 房间名，序号，时间戳，用户名，私聊对象，内容
+
+    static final int MAX_FRAME_BYTES = 64 * 1024; // 单帧上限，超过时断开连接
+    private static final int READ_BUFFER_BYTES = 2 * MAX_FRAME_BYTES;
+    private static final int SLAB_BYTES = 1024 * 1024;
+    private static final int MAX_GATHER = 64; // 一次聚集写最多的缓冲区数
+    private static final long BACKLOG_HIGH_WATER = 256 * 1024; // 待发字节低于该值时才继续读取积压消息
+    private static final int BACKLOG_PAGE = 256;
+    private static final int LOGIN_QUEUE_CAPACITY = 256; // 排队等待校验的登录超过该数时直接拒绝
+
+    // 传输层需要的服务器功能，由 ChatServer 实现
+    public interface Host {
+        // 校验密码并建立会话，返回会话令牌；失败时返回 null。校验密码哈希可能耗时数十毫秒，在工作线程上调用
+        String login(String username, String password);
+
+        // 登录前按客户端地址和用户名扣登录限额，返回还需等待的纳秒数，0 表示放行；在事件循环上调用，不能阻塞
+        long acquireLogin(InetAddress address, String username);
+
+        void touch(String token);
+
+        void logout(String token);
+
+        long getSessionTimeoutSeconds();
+
+        ChatRoom findRoom(String name);
+
+        // 校验并追加一条消息，可能等待持久化或集群主节点
+        ClusterNode.Result send(String room, String username, String message, String toUser);
+
+        // send 是否可能阻塞；为 false 时直接在事件循环上执行
+        boolean sendMayBlock();
+
+        Collection<String> getOnlineUsers();
+    }
+
+    private final Host host;
+    private final long maxQueuedBytes;
+    private final EventLoop[] loops;
+    private final Slab publishSlab = new Slab(); // 各房间写锁内编码推送帧，多个房间可能同时使用
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong frameCount = new AtomicLong();
+    // 可能阻塞的发送（等待刷盘或集群主节点）在这里执行，不占用事件循环
+    private final ExecutorService workerExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "binary-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 校验密码哈希只占 CPU，每个核一个线程，队列有界：登录洪峰不会堆出无数线程拖慢整台服务器
+    private final ExecutorService loginExecutor = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().availableProcessors(), 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(LOGIN_QUEUE_CAPACITY), r -> {
+                Thread thread = new Thread(r, "binary-login");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public BinaryTransport(Host host, int loopCount, long maxQueuedBytes) throws IOException {
+        this.host = host;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    public void start(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "binary-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread acceptor = new Thread(() -> acceptLoop(serverChannel), "binary-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // 新连接按顺序轮流分配给各事件循环
+    private void acceptLoop(ServerSocketChannel serverChannel) {
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            } catch (IOException e) {
+                System.out.println("接受二进制连接失败: " + e.getMessage());
+            }
+        }
+    }
+
+    // 在房间写锁内调用：编码一次，投递给该房间可见此消息的订阅连接
+    public void publish(ChatRoom room, ChatMessage chatMessage) {
+        ByteBuffer frame = null;
+        String recipient = chatMessage.getToUser();
+        for (Subscription subscription : room.binarySubscribers) {
+            if (recipient != null && !recipient.equals(subscription.connection.username)) {
+                continue;
+            }
+            if (frame == null) {
+                frame = encodeMessage(publishSlab, room.getName(), chatMessage);
+            }
+            subscription.connection.deliver(new Event(subscription, chatMessage.getSeq(), frame));
+        }
+    }
+
+    // 连接期间刷新各连接的会话，由服务器定期调用
+    public void touchSessions() {
+        for (Connection connection : connections) {
+            String token = connection.token;
+            if (token != null) {
+                host.touch(token);
+            }
+        }
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    public long getFrameCount() {
+        return frameCount.get();
+    }
+
+    public long getQueuedBytes() {
+        long queued = 0;
+        for (Connection connection : connections) {
+            queued += connection.queuedBytes.get();
+        }
+        return queued;
+    }
+
+    // ---------------------------------------------------------------- 帧编码
+
+    private static ByteBuffer encodeMessage(Slab slab, String room, ChatMessage chatMessage) {
+        byte[] roomBytes = utf8(room);
+        byte[] username = utf8(chatMessage.getUsername());
+        byte[] toUser = utf8(chatMessage.getToUser());
+        byte[] message = utf8(chatMessage.getMessage());
+        ByteBuffer frame = slab.allocate(4 + 1 + 16 + sizeOf(roomBytes) + sizeOf(username) + sizeOf(toUser)
+                + sizeOf(message));
+        frame.putInt(frame.capacity() - 4).put(MESSAGE);
+        putString(frame, roomBytes).putLong(chatMessage.getSeq()).putLong(chatMessage.getTimestamp());
+        putString(frame, username);
+        putString(frame, toUser);
+        putString(frame, message);
+        return frame.flip();
+    }
+
+    private static ByteBuffer encodeResult(Slab slab, int requestId, String error, long value, String text) {
+        byte[] errorBytes = utf8(error);
+        byte[] textBytes = utf8(text);
+        ByteBuffer frame = slab.allocate(4 + 1 + 4 + 8 + sizeOf(errorBytes) + sizeOf(textBytes));
+        frame.putInt(frame.capacity() - 4).put(RESULT).putInt(requestId);
+        putString(frame, errorBytes).putLong(value);
+        putString(frame, textBytes);
+        return frame.flip();
+    }
+
+    private static ByteBuffer encodeUsers(Slab slab, int requestId, Collection<String> users) {
+        List<byte[]> names = new ArrayList<>(users.size());
+        int size = 4 + 1 + 4 + 4;
+        for (String user : users) {
+            byte[] name = utf8(user);
+            names.add(name);
+            size += sizeOf(name);
+        }
+        ByteBuffer frame = slab.allocate(size);
+        frame.putInt(size - 4).put(USERS).putInt(requestId).putInt(names.size());
+        for (byte[] name : names) {
+            putString(frame, name);
+        }
+        return frame.flip();
+    }
+
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int sizeOf(byte[] bytes) {
+        return 4 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            return buffer.putInt(-1);
+        }
+        return buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 直接内存的分块分配器：从 1MB 的大块中依次切出缓冲区，切完换一块新的；旧块在其切片都不再被引用后由 GC 回收。
+    // 省去每帧一次的直接内存分配，写出时内核直接读取这些内存，不必先复制到 JDK 的临时直接缓冲区
+    private static final class Slab {
+        private ByteBuffer current;
+
+        synchronized ByteBuffer allocate(int size) {
+            if (size > SLAB_BYTES / 8) {
+                return ByteBuffer.allocateDirect(size); // 少见的大消息单独分配，不浪费大块的剩余空间
+            }
+            if (current == null || current.remaining() < size) {
+                current = ByteBuffer.allocateDirect(SLAB_BYTES);
+            }
+            ByteBuffer slice = current.slice(current.position(), size);
+            current.position(current.position() + size);
+            return slice;
+        }
+    }
+
+    // ---------------------------------------------------------------- 事件循环
+
+    private final class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // 本循环的连接共用一个读缓冲区，不足一帧的剩余字节才复制给各连接保存，空闲连接不占直接内存
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        final Slab slab = new Slab(); // 只在本循环线程上编码响应
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // 其他线程把任务交给本循环执行；多次提交只唤醒一次选择器
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel,
+                        ((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                System.out.println("注册二进制连接失败: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("二进制事件循环出错: " + e);
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- 连接与订阅
+
+    static final class Subscription {
+        final Connection connection;
+        final ChatRoom room;
+        // 订阅时尚未发送的历史消息为 (backlogCursor, skipThroughSeq]，由事件循环分页读取；
+        // 其间到达的实时消息暂存在 deferred 中，积压消息发完后再发出。只在事件循环线程上访问
+        long backlogCursor;
+        long skipThroughSeq;
+        final ArrayDeque<Event> deferred = new ArrayDeque<>();
+        boolean cancelled = false;
+
+        Subscription(Connection connection, ChatRoom room) {
+            this.connection = connection;
+            this.room = room;
+        }
+    }
+
+    private static final class Event {
+        final Subscription subscription;
+        final long seq;
+        final ByteBuffer frame; // 所有订阅者共享，写出时各自取 duplicate()
+
+        Event(Subscription subscription, long seq, ByteBuffer frame) {
+            this.subscription = subscription;
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    final class Connection {
+        final EventLoop loop;
+        final SocketChannel channel;
+        final InetAddress remoteAddress; // 登录按它扣限额
+        SelectionKey key;
+        volatile String username; // 登录前为 null
+        volatile String token;
+        private ByteBuffer partial; // 上次读取剩下的不完整帧，或暂停期间未处理的帧
+        private boolean paused = false; // 有一个发送请求在工作线程上执行，之后的帧等它完成再处理，保证顺序
+        private boolean writeBlocked = false;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>(); // 只在事件循环线程上访问
+        private final Map<String, Subscription> subscriptions = new HashMap<>();
+        // 其他线程投递的推送消息先进入 inbox，由事件循环取出；queuedBytes 统计尚未写出的全部字节
+        private final Queue<Event> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicBoolean overflowed = new AtomicBoolean();
+        private volatile boolean closed = false;
+
+        Connection(EventLoop loop, SocketChannel channel, InetAddress remoteAddress) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = remoteAddress;
+        }
+
+        // 任意线程调用，不阻塞。积压超过上限的慢消费者被断开，重连后从自己的游标重新订阅
+        void deliver(Event event) {
+            if (closed) {
+                return;
+            }
+            if (queuedBytes.addAndGet(event.frame.remaining()) > maxQueuedBytes) {
+                if (overflowed.compareAndSet(false, true)) {
+                    System.out.println("二进制连接 " + username + " 积压超过 " + maxQueuedBytes + " 字节，断开连接");
+                    loop.execute(this::close);
+                }
+                return;
+            }
+            inbox.add(event);
+            if (drainScheduled.compareAndSet(false, true)) {
+                loop.execute(this::drainInbox);
+            }
+        }
+
+        private void drainInbox() {
+            drainScheduled.set(false);
+            Event event;
+            while ((event = inbox.poll()) != null) {
+                Subscription subscription = event.subscription;
+                if (closed || subscription.cancelled || event.seq <= subscription.skipThroughSeq) {
+                    queuedBytes.addAndGet(-event.frame.remaining()); // 已包含在积压消息中
+                } else if (subscription.backlogCursor < subscription.skipThroughSeq) {
+                    subscription.deferred.add(event);
+                } else {
+                    outbound.add(event.frame.duplicate());
+                }
+            }
+            flush();
+        }
+
+        private void enqueue(ByteBuffer frame) {
+            queuedBytes.addAndGet(frame.remaining());
+            outbound.add(frame);
+        }
+
+        // 待发数据不多时继续读取订阅的积压消息，发完后接上暂存的实时消息
+        private void fillBacklog() {
+            for (Subscription subscription : subscriptions.values()) {
+                MessageStore messageStore = subscription.room.getMessageStore();
+                while (subscription.backlogCursor < subscription.skipThroughSeq
+                        && queuedBytes.get() < BACKLOG_HIGH_WATER) {
+                    List<ChatMessage> page = messageStore.readRange(username, subscription.backlogCursor,
+                            subscription.skipThroughSeq, BACKLOG_PAGE);
+                    for (ChatMessage chatMessage : page) {
+                        enqueue(encodeMessage(loop.slab, subscription.room.getName(), chatMessage));
+                    }
+                    subscription.backlogCursor = page.size() < BACKLOG_PAGE ? subscription.skipThroughSeq
+                            : page.get(page.size() - 1).getSeq();
+                }
+                if (subscription.backlogCursor >= subscription.skipThroughSeq) {
+                    Event event;
+                    while ((event = subscription.deferred.poll()) != null) {
+                        outbound.add(event.frame.duplicate());
+                    }
+                }
+            }
+        }
+
+        // 以聚集写尽量写出待发的帧；内核缓冲区满时改为等待可写事件
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (outbound.isEmpty()) {
+                        fillBacklog();
+                        if (outbound.isEmpty()) {
+                            break;
+                        }
+                    }
+                    ByteBuffer[] gather = loop.gather;
+                    int count = 0;
+                    for (ByteBuffer frame : outbound) {
+                        gather[count++] = frame;
+                        if (count == MAX_GATHER) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(gather, 0, count);
+                    queuedBytes.addAndGet(-written);
+                    boolean full = gather[count - 1].hasRemaining();
+                    Arrays.fill(gather, 0, count, null);
+                    while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                        outbound.poll();
+                    }
+                    if (full) {
+                        writeBlocked = true;
+                        updateInterest();
+                        return;
+                    }
+                }
+                writeBlocked = false;
+                updateInterest();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        void onReadable() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            if (partial != null) {
+                buffer.put(partial);
+                partial = null;
+            }
+            try {
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            buffer.flip();
+            processFrames(buffer);
+            flush();
+        }
+
+        // 逐帧处理缓冲区中的完整帧；暂停或只剩半帧时把剩余字节复制保存
+        private void processFrames(ByteBuffer buffer) {
+            while (!paused && !closed && buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 1 || length > MAX_FRAME_BYTES) {
+                    System.out.println("二进制连接 " + username + " 发来非法帧，长度 " + length);
+                    close();
+                    return;
+                }
+                if (buffer.remaining() < 4 + length) {
+                    break;
+                }
+                int frameEnd = buffer.position() + 4 + length;
+                int limit = buffer.limit();
+                buffer.position(buffer.position() + 4).limit(frameEnd);
+                try {
+                    handleFrame(buffer);
+                } catch (BufferUnderflowException e) {
+                    System.out.println("二进制连接 " + username + " 发来的帧字段不完整");
+                    close();
+                    return;
+                }
+                buffer.limit(limit).position(frameEnd);
+            }
+            if (buffer.hasRemaining() && !closed) {
+                partial = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+            }
+        }
+
+        private void handleFrame(ByteBuffer frame) {
+            frameCount.incrementAndGet();
+            byte type = frame.get();
+            int requestId = frame.getInt();
+            if (type == LOGIN) {
+                login(requestId, readString(frame), readString(frame));
+                return;
+            }
+            if (token == null) {
+                respond(requestId, "not logged in", 0, null);
+                return;
+            }
+            host.touch(token);
+            switch (type) {
+                case SEND:
+                    send(requestId, readString(frame), readString(frame), readString(frame));
+                    break;
+                case SUBSCRIBE:
+                    subscribe(requestId, readString(frame), frame.getLong());
+                    break;
+                case UNSUBSCRIBE:
+                    ChatRoom room = host.findRoom(readString(frame));
+                    Subscription subscription = room != null ? subscriptions.remove(room.getName()) : null;
+                    if (subscription != null) {
+                        cancel(subscription);
+                    }
+                    respond(requestId, null, 0, null);
+                    break;
+                case PRESENCE:
+                    enqueue(encodeUsers(loop.slab, requestId, host.getOnlineUsers()));
+                    break;
+                default:
+                    respond(requestId, "unknown frame type " + type, 0, null);
+                    break;
+            }
+        }
+
+        // 先扣登录限额，再与阻塞的发送一样暂停读取该连接，登录完成后再处理后续的帧
+        private void login(int requestId, String newUsername, String password) {
+            if (host.acquireLogin(remoteAddress, newUsername) > 0) {
+                respond(requestId, "rate limited", 0, null);
+                return;
+            }
+            paused = true;
+            updateInterest();
+            try {
+                loginExecutor.execute(() -> {
+                    String newToken = host.login(newUsername, password);
+                    loop.execute(() -> {
+                        completeLogin(requestId, newUsername, newToken);
+                        resume();
+                    });
+                });
+            } catch (RejectedExecutionException e) {
+                paused = false;
+                updateInterest();
+                respond(requestId, "overloaded", 0, null);
+            }
+        }
+
+        private void completeLogin(int requestId, String newUsername, String newToken) {
+            if (closed) {
+                if (newToken != null) {
+                    host.logout(newToken); // 校验期间连接已断开
+                }
+                return;
+            }
+            if (newToken == null) {
+                respond(requestId, "login failed", 0, null);
+                return;
+            }
+            if (token != null) {
+                // 同一连接换用户登录：结束旧会话，旧用户的订阅随之取消
+                for (Subscription subscription : subscriptions.values()) {
+                    cancel(subscription);
+                }
+                subscriptions.clear();
+                host.logout(token);
+            }
+            username = newUsername;
+            token = newToken;
+            respond(requestId, null, host.getSessionTimeoutSeconds(), newToken);
+        }
+
+        private void send(int requestId, String room, String toUser, String message) {
+            if (message == null) {
+                respond(requestId, "empty message", 0, null);
+                return;
+            }
+            String sender = username;
+            if (!host.sendMayBlock()) {
+                respond(requestId, host.send(room, sender, message, toUser));
+                return;
+            }
+            // 等待组提交刷盘或集群主节点时不能占用事件循环：交给工作线程，完成后再继续处理该连接后续的帧
+            paused = true;
+            updateInterest();
+            workerExecutor.execute(() -> {
+                ClusterNode.Result result = host.send(room, sender, message, toUser);
+                loop.execute(() -> {
+                    respond(requestId, result);
+                    resume();
+                });
+            });
+        }
+
+        private void resume() {
+            paused = false;
+            if (closed) {
+                return;
+            }
+            if (partial != null) {
+                ByteBuffer buffer = loop.readBuffer;
+                buffer.clear();
+                buffer.put(partial).flip();
+                partial = null;
+                processFrames(buffer);
+            }
+            updateInterest();
+            flush();
+        }
+
+        private void subscribe(int requestId, String roomName, long since) {
+            ChatRoom room = host.findRoom(roomName);
+            if (room == null) {
+                respond(requestId, "unknown room", 0, null);
+                return;
+            }
+            if (!room.isMember(username)) {
+                respond(requestId, "not a member", 0, null);
+                return;
+            }
+            Subscription previous = subscriptions.remove(room.getName());
+            if (previous != null) {
+                cancel(previous);
+            }
+            // 先注册再确定积压消息的范围：重叠的实时消息按序号丢弃，不丢不重
+            Subscription subscription = new Subscription(this, room);
+            room.binarySubscribers.add(subscription);
+            // 游标超过最新序号时（服务器重启或清空过）从当前位置开始推送
+            long lastSeq = room.getMessageStore().getLastSeq();
+            subscription.backlogCursor = Math.min(since, lastSeq);
+            subscription.skipThroughSeq = lastSeq;
+            subscriptions.put(room.getName(), subscription);
+            respond(requestId, null, subscription.skipThroughSeq, room.getName());
+        }
+
+        private void cancel(Subscription subscription) {
+            subscription.cancelled = true;
+            subscription.room.binarySubscribers.remove(subscription);
+            Event event;
+            while ((event = subscription.deferred.poll()) != null) {
+                queuedBytes.addAndGet(-event.frame.remaining());
+            }
+        }
+
+        private void respond(int requestId, ClusterNode.Result result) {
+            if (result.getError() != null) {
+                respond(requestId, result.getError(), 0, null);
+            } else if (!result.isDurable()) {
+                respond(requestId, "not durable", result.getLastSeq(), null);
+            } else {
+                respond(requestId, null, result.getLastSeq(), null);
+            }
+        }
+
+        private void respond(int requestId, String error, long value, String text) {
+            enqueue(encodeResult(loop.slab, requestId, error, value, text));
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Subscription subscription : subscriptions.values()) {
+                cancel(subscription);
+            }
+            subscriptions.clear();
+            outbound.clear();
+            connections.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (token != null) {
+                host.logout(token);
+            }
+        }
+    }
+}
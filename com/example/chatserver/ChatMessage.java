@@ -0,0 +1,100 @@
+package com.example.chatserver;
+
+import java.nio.charset.StandardCharsets;
+
+// 一条已被服务器接受的聊天消息，seq 为服务器分配的单调递增序号
+public class ChatMessage {
+    private final long seq;
+    private final long timestamp;
+    private final String username;
+    private final String message;
+    private final String toUser;
+    private transient volatile byte[] json; // 缓存的 UTF-8 JSON 编码，首次使用时生成
+
+    public ChatMessage(long seq, long timestamp, String username, String message, String toUser) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.username = username;
+        this.message = message;
+        this.toUser = toUser;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getToUser() {
+        return toUser;
+    }
+
+    // 返回该消息的 JSON 编码，字段与 Gson 序列化结果一致；每条消息只编码一次，之后所有响应直接复用这些字节
+    public byte[] getJson() {
+        byte[] encoded = json;
+        if (encoded == null) {
+            StringBuilder builder = new StringBuilder(64 + username.length() + message.length());
+            builder.append("{\"seq\":").append(seq).append(",\"timestamp\":").append(timestamp);
+            builder.append(",\"username\":");
+            appendJsonString(builder, username);
+            builder.append(",\"message\":");
+            appendJsonString(builder, message);
+            if (toUser != null) {
+                builder.append(",\"toUser\":");
+                appendJsonString(builder, toUser);
+            }
+            builder.append('}');
+            encoded = builder.toString().getBytes(StandardCharsets.UTF_8);
+            json = encoded; // 并发时可能重复编码，结果相同，无需加锁
+        }
+        return encoded;
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+
+    // 估算占用的堆内存（含缓存的 JSON 编码），用于按字节数限制消息日志；结果不随编码是否已生成而变化
+    public int estimateSize() {
+        int chars = username.length() + message.length() + (toUser != null ? toUser.length() : 0);
+        return 128 + 3 * chars;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+// 聊天室：每个房间有独立的消息存储（自己的序号、写锁和日志文件）、成员集合、挂起的长轮询和推送流（含二进制传输）订阅者。
+// 不同房间的写入和唤醒互不争用同一把锁，负载分散到多个房间时吞吐量随核数增长。
+public class ChatRoom {
+    public static final String LOBBY = "lobby"; // 大厅对所有用户开放，未指定房间的请求都落在这里
+    private static final Pattern NAME_PATTERN = Pattern.compile("[\\p{L}\\p{N}_-]{1,32}");
+
+    private final String name;
+    private final MessageStore messageStore;
+    private final SearchIndex searchIndex; // 为 null 时该房间不支持检索
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    final List<ChatServer.PendingPoll> pendingPolls = new ArrayList<>(); // 访问时持有该列表的锁
+    final AtomicBoolean pollCompletionScheduled = new AtomicBoolean(); // 批量写入时只排一次唤醒任务
+    final List<ChatServer.StreamSubscriber> streamSubscribers = new CopyOnWriteArrayList<>();
+    final List<BinaryTransport.Subscription> binarySubscribers = new CopyOnWriteArrayList<>();
+
+    public ChatRoom(String name, MessageStore messageStore) {
+        this(name, messageStore, null);
+    }
+
+    public ChatRoom(String name, MessageStore messageStore, SearchIndex searchIndex) {
+        this.name = name;
+        this.messageStore = messageStore;
+        this.searchIndex = searchIndex;
+    }
+
+    // 房间名同时用作日志目录名，只允许字母、数字、下划线和连字符，统一转为小写以免在不区分大小写的文件系统上冲突
+    public static String normalizeName(String name) {
+        if (name == null || !NAME_PATTERN.matcher(name).matches()) {
+            return null;
+        }
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public boolean isLobby() {
+        return LOBBY.equals(name);
+    }
+
+    public boolean isMember(String username) {
+        return isLobby() || (username != null && members.contains(username));
+    }
+
+    public boolean join(String username) {
+        return members.add(username);
+    }
+
+    public boolean leave(String username) {
+        return members.remove(username);
+    }
+
+    public Set<String> getMembers() {
+        return members;
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    public int getPendingPollCount() {
+        synchronized (pendingPolls) {
+            return pendingPolls.size();
+        }
+    }
+}
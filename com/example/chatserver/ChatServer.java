@@ -1,56 +1,538 @@
 package com.example.chatserver;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class ChatServer {
-    private static final int SERVER_PORT = 8000;
-    private static Map<String, String> userCredentialsMap = new HashMap<>();
-    private static List<Map<String, String>> chatMessagesList = new ArrayList<>();
-    private static Set<String> activeUsersSet = new HashSet<>();
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 8000);
+    // 长轮询最长挂起时间，可通过 -Dchat.poll.maxWaitMs 调整
+    private static final long MAX_POLL_WAIT_MS = Long.getLong("chat.poll.maxWaitMs", 30000);
+    // 请求执行模式：dispatcher（单个分发线程）、pool（有界线程池）、virtual（每请求一个虚拟线程）
+    private static final String EXECUTOR_MODE = System.getProperty("chat.executor", "pool");
+    private static final int EXECUTOR_THREADS = Integer.getInteger("chat.executor.threads",
+            Runtime.getRuntime().availableProcessors() * 4);
+    private static final int EXECUTOR_QUEUE_CAPACITY = Integer.getInteger("chat.executor.queueCapacity", 10000);
+    private static ExecutorService httpExecutor; // dispatcher 模式下为 null
+    private static CredentialStore credentialStore;
+    // 每个房间的消息日志保留上限
+    private static final int LOG_MAX_MESSAGES = Integer.getInteger("chat.log.maxMessages", 100000);
+    private static final long LOG_MAX_BYTES = Long.getLong("chat.log.maxBytes", 64L * 1024 * 1024);
+    // 检索索引覆盖的消息条数，默认与消息日志相同；为 0 时不建立索引。单次检索最多返回的条数
+    private static final int SEARCH_MAX_MESSAGES = Integer.getInteger("chat.search.maxMessages", LOG_MAX_MESSAGES);
+    private static final int MAX_SEARCH_RESULTS = 100;
+    // 房间：每个房间独立的消息存储、长轮询和推送流订阅者，大厅在启动时创建且不能离开
+    private static final int MAX_ROOMS = Integer.getInteger("chat.rooms.max", 1000);
+    private static final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    static final ChatRoom lobby = registerRoom(newRoom(ChatRoom.LOBBY));
+    // 消息持久化：日志目录为空时不启用，刷盘策略见 MessageJournal.FsyncPolicy
+    private static final String JOURNAL_DIR = System.getProperty("chat.journal.dir", "journal");
+    private static final MessageJournal.FsyncPolicy JOURNAL_FSYNC = MessageJournal.FsyncPolicy.valueOf(
+            System.getProperty("chat.journal.fsync", "interval").toUpperCase());
+    private static final List<MessageJournal> journals = new CopyOnWriteArrayList<>(); // 退出时逐个写出并刷盘
+    // 集群：设置 chat.cluster.port 时本节点为主节点并在该端口接受从节点；设置 chat.cluster.leader=主机:端口 时为从节点。
+    // 都未设置时单机运行，cluster 为 null。主节点默认只监听本机回环地址（chat.cluster.bindAddress），
+    // 监听其他地址时必须设置共享密钥 chat.cluster.secret，各节点的密钥须相同
+    private static final int CLUSTER_PORT = Integer.getInteger("chat.cluster.port", 0);
+    private static final String CLUSTER_LEADER = System.getProperty("chat.cluster.leader");
+    private static ClusterNode cluster;
+    // 二进制传输：chat.binary.port 大于 0 时在该端口另开 NIO 监听，默认每个核一个事件循环
+    private static final int BINARY_PORT = Integer.getInteger("chat.binary.port", 0);
+    private static BinaryTransport binaryTransport;
+    private static AuditLogger auditLogger;
+    private static final Metrics metrics = new Metrics();
+    // 准入控制：每个用户、每个客户端 IP 各一个令牌桶（速率 <= 0 时关闭）；本机地址也受 IP 限流，本地压测时可显式豁免。
+    // 工作线程的排队请求超过阈值时直接拒绝新请求，避免排队时间拖垮所有用户的延迟
+    private static final double USER_RATE = Double.parseDouble(System.getProperty("chat.rateLimit.userRate", "50"));
+    private static final int USER_BURST = Integer.getInteger("chat.rateLimit.userBurst", 100);
+    private static final double IP_RATE = Double.parseDouble(System.getProperty("chat.rateLimit.ipRate", "500"));
+    private static final int IP_BURST = Integer.getInteger("chat.rateLimit.ipBurst", 1000);
+    private static final boolean RATE_LIMIT_EXEMPT_LOOPBACK = Boolean.parseBoolean(
+            System.getProperty("chat.rateLimit.exemptLoopback", "false"));
+    private static final int SHED_QUEUE_DEPTH = Integer.getInteger("chat.shed.queueDepth",
+            EXECUTOR_QUEUE_CAPACITY / 2);
+    // 虚拟线程模式没有排队，请求一到就开始执行：按正在处理的请求数减载，该计数对所有执行模式都有效
+    private static final int SHED_IN_FLIGHT = Integer.getInteger("chat.shed.maxInFlight",
+            EXECUTOR_QUEUE_CAPACITY / 2);
+    private static final AtomicInteger httpInFlight = new AtomicInteger();
+    private static final RateLimiter userRateLimiter = new RateLimiter(USER_RATE, USER_BURST);
+    private static final RateLimiter ipRateLimiter = new RateLimiter(IP_RATE, IP_BURST);
+    // 登录另有远低于普通请求的限额：每次校验都要算一次 PBKDF2，按客户端 IP 和所登录的用户名各扣一个令牌
+    private static final double LOGIN_IP_RATE = Double.parseDouble(
+            System.getProperty("chat.rateLimit.loginIpRate", "2"));
+    private static final int LOGIN_IP_BURST = Integer.getInteger("chat.rateLimit.loginIpBurst", 20);
+    private static final double LOGIN_USER_RATE = Double.parseDouble(
+            System.getProperty("chat.rateLimit.loginUserRate", "0.2"));
+    private static final int LOGIN_USER_BURST = Integer.getInteger("chat.rateLimit.loginUserBurst", 5);
+    private static final RateLimiter loginIpRateLimiter = new RateLimiter(LOGIN_IP_RATE, LOGIN_IP_BURST);
+    private static final RateLimiter loginUserRateLimiter = new RateLimiter(LOGIN_USER_RATE, LOGIN_USER_BURST);
+    private static final AtomicLong rateLimitedCount = new AtomicLong();
+    private static final AtomicLong shedCount = new AtomicLong();
+    // 会话空闲超过该时长即视为离线；长轮询、推送流心跳和客户端心跳的间隔都应明显小于它
+    private static final long SESSION_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(
+            Long.getLong("chat.session.timeoutSeconds", 60));
+    private static final boolean PRESENCE_EVENTS = Boolean.parseBoolean(
+            System.getProperty("chat.presence.events", "true"));
+    static final String PRESENCE_SENDER = "系统"; // 上线、下线通知作为该用户名发出的公共消息进入消息流
+    // 匿名消息以该用户名写入；只允许在人人都是成员的大厅发送，集群主节点据此校验转发来的匿名消息
+    static final String ANONYMOUS_SENDER = "Anonymous";
+    static final String ANONYMOUS_LOBBY_ONLY = "anonymous messages are only allowed in the lobby";
+    private static final SessionManager sessionManager = new SessionManager(SESSION_TIMEOUT_MS, 1000,
+            new SessionManager.PresenceListener() {
+                @Override
+                public void onJoin(String username) {
+                    if (cluster != null) {
+                        cluster.localPresenceChanged(username, ClusterNode.ONLINE); // 由主节点合并后发出通知
+                    } else if (PRESENCE_EVENTS) {
+                        appendPresenceEvent(username, ClusterNode.ONLINE);
+                    }
+                }
+
+                @Override
+                public void onLeave(String username, boolean expired) {
+                    if (expired) {
+                        logUserActivity(username, "超时下线");
+                    }
+                    if (cluster != null) {
+                        cluster.localPresenceChanged(username, expired ? ClusterNode.EXPIRED : ClusterNode.OFFLINE);
+                    } else if (PRESENCE_EVENTS) {
+                        appendPresenceEvent(username, expired ? ClusterNode.EXPIRED : ClusterNode.OFFLINE);
+                    }
+                }
+            });
+    // 挂起中的长轮询请求，访问时需持有其自身的锁
+    private static ScheduledExecutorService pollScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "long-poll");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 挂起请求的响应在这里写出：pollScheduler 只负责挑出要结束的请求，慢客户端不会拖住会话过期、心跳等定时任务
+    private static ExecutorService pollResponseExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "long-poll-response");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // /messages 单页最多返回的消息条数，以及开始分块压缩传输的响应大小
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("chat.messages.maxPageSize", 500);
+    private static final long GZIP_MIN_BYTES = Long.getLong("chat.messages.gzipMinBytes", 2048);
+    // 单次批量发送的消息条数上限
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("chat.send.maxBatchSize", 1000);
+    // 推送流：每个订阅者一个有界队列，溢出的慢消费者会被断开并要求重新同步
+    private static final int STREAM_QUEUE_CAPACITY = Integer.getInteger("chat.stream.queueCapacity", 1024);
+    private static final long STREAM_HEARTBEAT_SECONDS = 15;
+    private static final long STREAM_OVERFLOW_GRACE_SECONDS = 5; // 溢出后仍阻塞在写出上的订阅者将被强制断开
+    private static ExecutorService streamFanOutExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "stream-fanout");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     public static void main(String[] args) throws Exception {
         // 打印当前工作路径
         System.out.println("当前工作路径: " + Paths.get("").toAbsolutePath().toString());
 
-        // 读取用户文件
-        loadUserCredentials("users.txt");
+        // 读取用户文件，之后文件一有变化就在后台重新加载；被删除的用户立即下线
+        credentialStore = new CredentialStore(Paths.get(System.getProperty("chat.credentials.file", "users.txt")),
+                Boolean.getBoolean("chat.credentials.allowPlaintext"),
+                Integer.getInteger("chat.credentials.cacheSize", 100000),
+                TimeUnit.SECONDS.toMillis(Long.getLong("chat.credentials.cacheSeconds", 600)));
+        credentialStore.setRemovalListener(username -> {
+            if (sessionManager.closeAll(username)) {
+                logUserActivity(username, "用户已删除，退出");
+            }
+        });
+        System.out.println("加载 " + credentialStore.load() + " 个用户");
+        credentialStore.watch();
+
+        // 登录、退出等审计事件由后台线程批量写入 logs.txt
+        auditLogger = new AuditLogger(Paths.get("logs.txt"), Integer.getInteger("chat.audit.queueCapacity", 65536),
+                AuditLogger.OverflowPolicy.valueOf(System.getProperty("chat.audit.overflow", "drop").toUpperCase()),
+                Long.getLong("chat.audit.maxBytes", 10L * 1024 * 1024), Integer.getInteger("chat.audit.maxFiles", 5),
+                TimeUnit.HOURS.toMillis(Long.getLong("chat.audit.rotateHours", 0)));
+        auditLogger.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(auditLogger::close, "audit-shutdown"));
+
+        // 回放消息日志，恢复各房间的历史消息和序号。大厅的日志在日志目录下，其他房间在 rooms/<房间名> 子目录
+        if (!JOURNAL_DIR.isEmpty()) {
+            // quit 命令调用 System.exit 时写出并刷盘尚未落盘的消息
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> journals.forEach(MessageJournal::close),
+                    "journal-shutdown"));
+            long startTime = System.nanoTime();
+            long replayed = attachJournal(lobby);
+            Path roomsDirectory = Paths.get(JOURNAL_DIR, "rooms");
+            if (Files.isDirectory(roomsDirectory)) {
+                try (DirectoryStream<Path> roomDirectories = Files.newDirectoryStream(roomsDirectory)) {
+                    for (Path roomDirectory : roomDirectories) {
+                        String name = ChatRoom.normalizeName(roomDirectory.getFileName().toString());
+                        if (name != null && Files.isDirectory(roomDirectory) && !rooms.containsKey(name)) {
+                            ChatRoom room = newRoom(name);
+                            replayed += attachJournal(room);
+                            registerRoom(room);
+                        }
+                    }
+                }
+            }
+            System.out.println("从消息日志恢复 " + rooms.size() + " 个房间的 " + replayed + " 条消息，用时 "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) + " ms，刷盘策略：" + JOURNAL_FSYNC);
+        }
+
+        // 加入集群：从节点在后台连接主节点并补齐缺失的消息，连上之前只能读取，写请求返回 503
+        if (CLUSTER_PORT > 0 || CLUSTER_LEADER != null) {
+            String nodeId = System.getProperty("chat.cluster.nodeId");
+            if (nodeId == null) {
+                try {
+                    nodeId = InetAddress.getLocalHost().getHostName() + ":" + SERVER_PORT;
+                } catch (UnknownHostException e) {
+                    nodeId = "node-" + SERVER_PORT;
+                }
+            }
+            cluster = new ClusterNode(nodeId, CLUSTER_LEADER, System.getProperty("chat.cluster.secret"),
+                    new ClusterHost(), rooms, Long.getLong("chat.cluster.maxQueuedBytes", 256L * 1024 * 1024));
+            cluster.start(System.getProperty("chat.cluster.bindAddress"), CLUSTER_PORT);
+        }
 
         // 启动HTTP服务器
+        // 响应头和响应体分两次写出，复用 keep-alive 连接时 Nagle 算法与客户端的延迟确认叠加会使每个请求多等约 40ms
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
         HttpServer httpServer = HttpServer.create(new InetSocketAddress(SERVER_PORT), 0);
-        httpServer.createContext("/login", new UserLoginHandler());
-        httpServer.createContext("/send", new UserSendMessageHandler());
-        httpServer.createContext("/messages", new GetChatMessagesHandler());
-        httpServer.createContext("/list", new ListActiveUsersHandler());
-        httpServer.createContext("/logout", new UserLogoutHandler());
-        httpServer.setExecutor(null); // 创建默认的执行器
+        createInstrumentedContext(httpServer, "/login", new UserLoginHandler());
+        createInstrumentedContext(httpServer, "/send", new UserSendMessageHandler());
+        createInstrumentedContext(httpServer, "/sendBatch", new UserSendBatchHandler());
+        createInstrumentedContext(httpServer, "/messages", new GetChatMessagesHandler());
+        createInstrumentedContext(httpServer, "/stream", new StreamMessagesHandler());
+        createInstrumentedContext(httpServer, "/list", new ListActiveUsersHandler());
+        createInstrumentedContext(httpServer, "/logout", new UserLogoutHandler());
+        createInstrumentedContext(httpServer, "/heartbeat", new HeartbeatHandler());
+        createInstrumentedContext(httpServer, "/search", new SearchMessagesHandler());
+        createInstrumentedContext(httpServer, "/rooms", new ListRoomsHandler());
+        createInstrumentedContext(httpServer, "/rooms/create", new RoomMembershipHandler("create"));
+        createInstrumentedContext(httpServer, "/rooms/join", new RoomMembershipHandler("join"));
+        createInstrumentedContext(httpServer, "/rooms/leave", new RoomMembershipHandler("leave"));
+        httpServer.createContext("/metrics", new MetricsHandler());
+        httpExecutor = createHttpExecutor();
+        if (BINARY_PORT > 0) {
+            binaryTransport = new BinaryTransport(new BinaryHost(),
+                    Integer.getInteger("chat.binary.loops", Runtime.getRuntime().availableProcessors()),
+                    Long.getLong("chat.binary.maxQueuedBytes", 4L * 1024 * 1024));
+            binaryTransport.start(BINARY_PORT);
+            pollScheduler.scheduleAtFixedRate(binaryTransport::touchSessions, STREAM_HEARTBEAT_SECONDS,
+                    STREAM_HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        }
+        registerGauges();
+        httpServer.setExecutor(httpExecutor); // null 表示在分发线程上直接执行
         httpServer.start();
+        sessionManager.start(pollScheduler);
+        pollScheduler.scheduleAtFixedRate(() -> {
+            userRateLimiter.evictIdle();
+            ipRateLimiter.evictIdle();
+            loginIpRateLimiter.evictIdle();
+            loginUserRateLimiter.evictIdle();
+        }, 30, 30, TimeUnit.SECONDS);
+        pollScheduler.scheduleAtFixedRate(ChatServer::pingStreamSubscribers, STREAM_HEARTBEAT_SECONDS,
+                STREAM_HEARTBEAT_SECONDS, TimeUnit.SECONDS);
 
-        System.out.println("服务器启动，端口：" + SERVER_PORT);
+        System.out.println("服务器启动，端口：" + SERVER_PORT + "，执行模式：" + EXECUTOR_MODE
+                + (binaryTransport == null ? "" : "，二进制端口：" + BINARY_PORT)
+                + (cluster == null ? "" : "，集群" + (cluster.isLeader() ? "主" : "从") + "节点：" + cluster.getNodeId()));
 
         // 启动终端命令监听线程
         new Thread(ChatServer::terminalCommandListener).start();
     }
 
-    private static void loadUserCredentials(String filePath) throws IOException {
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                String[] parts = line.split(" ");
-                userCredentialsMap.put(parts[0], parts[1]);
-                System.out.println("Loaded user: " + parts[0]); // 添加调试信息
+    // 创建房间：消息在房间写锁内按序回调，复制给集群从节点，加入检索索引，推送给该房间的订阅者，并唤醒该房间挂起的长轮询
+    private static ChatRoom newRoom(String name) {
+        SearchIndex searchIndex = SEARCH_MAX_MESSAGES > 0 ? new SearchIndex(SEARCH_MAX_MESSAGES, LOG_MAX_BYTES) : null;
+        ChatRoom room = new ChatRoom(name, new MessageStore(LOG_MAX_MESSAGES, LOG_MAX_BYTES,
+                Integer.getInteger("chat.mailbox.maxMessages", 1000),
+                Long.getLong("chat.mailbox.maxBytes", 1024L * 1024)), searchIndex);
+        room.getMessageStore().addAppendListener(chatMessage -> {
+            if (cluster != null) {
+                cluster.replicate(room.getName(), chatMessage); // 从节点上不做任何事
+            }
+        });
+        if (searchIndex != null) {
+            room.getMessageStore().addAppendListener(searchIndex::add);
+        }
+        room.getMessageStore().addAppendListener(chatMessage -> publishToStreamSubscribers(room, chatMessage));
+        room.getMessageStore().addAppendListener(chatMessage -> {
+            if (binaryTransport != null) {
+                binaryTransport.publish(room, chatMessage);
             }
+        });
+        room.getMessageStore().addAppendListener(chatMessage -> schedulePendingPollCompletion(room));
+        return room;
+    }
+
+    // 日志回放完成后才注册，此前房间对请求不可见，不会有消息绕过日志写入
+    private static ChatRoom registerRoom(ChatRoom room) {
+        rooms.put(room.getName(), room);
+        return room;
+    }
+
+    // 回放房间的日志，之后的新消息都写入该日志；返回回放条数
+    private static long attachJournal(ChatRoom room) throws IOException {
+        Path directory = room.isLobby() ? Paths.get(JOURNAL_DIR) : Paths.get(JOURNAL_DIR, "rooms", room.getName());
+        MessageJournal journal = new MessageJournal(directory, JOURNAL_FSYNC,
+                Long.getLong("chat.journal.segmentBytes", 64L * 1024 * 1024),
+                Long.getLong("chat.journal.fsyncIntervalMs", 1000), Long.getLong("chat.journal.retainMessages", 0));
+        long replayed = room.getMessageStore().recover(journal);
+        journals.add(journal);
+        if (room.getSearchIndex() != null) {
+            room.getMessageStore().forEachRetained(room.getSearchIndex()::add); // 回放不经过追加监听器，在此补建索引
+        }
+        return replayed;
+    }
+
+    // 未指定房间时为大厅；房间不存在或名称不合法时返回 null
+    static ChatRoom findRoom(String name) {
+        if (name == null || name.isEmpty()) {
+            return lobby;
+        }
+        String normalized = ChatRoom.normalizeName(name);
+        return normalized != null ? rooms.get(normalized) : null;
+    }
+
+    // 注册处理器，并挂上统计请求数、字节数和延迟的过滤器；带会话令牌的请求顺带刷新会话
+    private static void createInstrumentedContext(HttpServer httpServer, String path, HttpHandler handler) {
+        List<Filter> filters = httpServer.createContext(path, handler).getFilters();
+        filters.add(metrics.filter(path));
+        filters.add(new AdmissionFilter(path));
+        filters.add(Filter.beforeHandler("刷新会话", httpExchange -> sessionManager.touch(sessionToken(httpExchange))));
+    }
+
+    // 在处理器之前执行：先按工作线程排队深度减载，再按客户端 IP 和用户扣令牌，拒绝时带上 Retry-After 提示。
+    // 用户只由会话令牌确定：除登录外的写请求必须带有效令牌（否则返回 401），因此不会绕过用户限流
+    static class AdmissionFilter extends Filter {
+        private final String route;
+        private final boolean anonymousWrites; // 只有登录可以不带令牌提交
+
+        AdmissionFilter(String route) {
+            this.route = route;
+            this.anonymousWrites = "/login".equals(route);
+        }
+
+        @Override
+        public void doFilter(HttpExchange httpExchange, Chain chain) throws IOException {
+            int inFlight = httpInFlight.incrementAndGet();
+            try {
+                admit(httpExchange, chain, inFlight);
+            } finally {
+                httpInFlight.decrementAndGet();
+            }
+        }
+
+        private void admit(HttpExchange httpExchange, Chain chain, int inFlight) throws IOException {
+            // 退出登录总是放行，让客户端在过载时也能释放会话
+            if (!"/logout".equals(route) && (inFlight > SHED_IN_FLIGHT || (httpExecutor instanceof ThreadPoolExecutor
+                    && ((ThreadPoolExecutor) httpExecutor).getQueue().size() > SHED_QUEUE_DEPTH))) {
+                shedCount.incrementAndGet();
+                reject(httpExchange, 503, "overloaded", 1);
+                return;
+            }
+
+            long waitNanos = 0;
+            InetAddress address = httpExchange.getRemoteAddress().getAddress();
+            if (IP_RATE > 0 && !(RATE_LIMIT_EXEMPT_LOOPBACK && address.isLoopbackAddress())) {
+                waitNanos = ipRateLimiter.tryAcquire(address.getHostAddress());
+            }
+            if (waitNanos == 0) {
+                String username = sessionUser(httpExchange);
+                if (username == null && !anonymousWrites && "POST".equals(httpExchange.getRequestMethod())) {
+                    addCorsHeaders(httpExchange);
+                    sendNotLoggedIn(httpExchange);
+                    return;
+                }
+                if (username != null && USER_RATE > 0) {
+                    waitNanos = userRateLimiter.tryAcquire(username);
+                }
+            }
+            if (waitNanos > 0) {
+                rateLimitedCount.incrementAndGet();
+                reject(httpExchange, 429, "rate limited", TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1);
+                return;
+            }
+            chain.doFilter(httpExchange);
+        }
+
+        private static void reject(HttpExchange httpExchange, int status, String error, long retryAfterSeconds)
+                throws IOException {
+            addCorsHeaders(httpExchange);
+            httpExchange.getResponseHeaders().set("Retry-After", Long.toString(retryAfterSeconds));
+            sendJsonResponse(httpExchange, status, "{\"success\": false, \"error\": \"" + error + "\"}");
+        }
+
+        @Override
+        public String description() {
+            return "按用户和 IP 限流，过载时减载";
         }
     }
 
+    // 校验密码之前调用：按客户端 IP 和用户名扣登录令牌，返回还需等待的纳秒数，0 表示放行。
+    // 显式豁免本机地址时，本机发起的登录两项限额都不扣，压测程序可以反复登录
+    static long acquireLogin(InetAddress address, String username) {
+        if (RATE_LIMIT_EXEMPT_LOOPBACK && address.isLoopbackAddress()) {
+            return 0;
+        }
+        long waitNanos = 0;
+        if (LOGIN_IP_RATE > 0) {
+            waitNanos = loginIpRateLimiter.tryAcquire(address.getHostAddress());
+        }
+        if (waitNanos == 0 && LOGIN_USER_RATE > 0 && username != null) {
+            waitNanos = loginUserRateLimiter.tryAcquire(username);
+        }
+        if (waitNanos > 0) {
+            rateLimitedCount.incrementAndGet();
+        }
+        return waitNanos;
+    }
+
+    // 会话令牌通过 "Authorization: Bearer <令牌>" 请求头传递
+    static String sessionToken(HttpExchange httpExchange) {
+        String authorization = httpExchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return authorization.substring(7).trim();
+        }
+        return null;
+    }
+
+    // 发出请求的用户只由会话令牌确定，请求中的 username 不可信；令牌无效或已过期时返回 null
+    static String sessionUser(HttpExchange httpExchange) {
+        return sessionManager.getUsername(sessionToken(httpExchange));
+    }
+
+    private static void sendNotLoggedIn(HttpExchange httpExchange) throws IOException {
+        sendJsonResponse(httpExchange, 401, "{\"success\": false, \"error\": \"not logged in\"}");
+    }
+
+    private static void registerGauges() {
+        metrics.registerGauge("chat_messages_stored", "Messages retained in all room logs and mailboxes.",
+                () -> sumOverRooms(room -> room.getMessageStore().size()));
+        metrics.registerGauge("chat_last_seq", "Sequence number of the latest lobby message.",
+                lobby.getMessageStore()::getLastSeq);
+        metrics.registerGauge("chat_rooms", "Chat rooms, including the lobby.", rooms::size);
+        metrics.registerGauge("chat_search_indexed_messages", "Messages covered by the search indexes of all rooms.",
+                () -> sumOverRooms(room -> room.getSearchIndex() != null ? room.getSearchIndex().size() : 0));
+        metrics.registerGauge("chat_online_users", "Users with at least one live session.",
+                sessionManager::getOnlineUserCount);
+        metrics.registerGauge("chat_sessions", "Live login sessions.", sessionManager::getSessionCount);
+        metrics.registerGauge("chat_credentials_users", "Users in the current credential snapshot.",
+                credentialStore::size);
+        metrics.registerGauge("chat_credentials_reloads", "Times the credential file has been loaded.",
+                credentialStore::getReloadCount);
+        metrics.registerGauge("chat_login_cache_hits", "Logins accepted from the verified-login cache.",
+                credentialStore::getCacheHits);
+        metrics.registerGauge("chat_sessions_expired", "Sessions expired by the idle timeout since startup.",
+                sessionManager::getExpiredCount);
+        metrics.registerGauge("chat_executor_queue_depth", "Requests waiting for an HTTP worker thread.",
+                () -> httpExecutor instanceof ThreadPoolExecutor
+                        ? ((ThreadPoolExecutor) httpExecutor).getQueue().size() : 0);
+        metrics.registerGauge("chat_http_in_flight", "HTTP requests currently being admitted or handled.",
+                httpInFlight::get);
+        metrics.registerGauge("chat_executor_active_threads", "HTTP worker threads currently running a request.",
+                () -> httpExecutor instanceof ThreadPoolExecutor
+                        ? ((ThreadPoolExecutor) httpExecutor).getActiveCount() : 0);
+        metrics.registerGauge("chat_stream_subscribers", "Open /stream connections.",
+                () -> sumOverRooms(room -> room.streamSubscribers.size()));
+        metrics.registerGauge("chat_pending_polls", "Long-poll requests currently parked.",
+                () -> sumOverRooms(ChatRoom::getPendingPollCount));
+        metrics.registerGauge("chat_rate_limited",
+                "Requests rejected with 429 by the per-user, per-IP or login limits.", rateLimitedCount::get);
+        metrics.registerGauge("chat_shed",
+                "Requests rejected with 503 because the worker queue or in-flight count was too high.", shedCount::get);
+        metrics.registerGauge("chat_rate_limit_keys", "Users and IPs with a partially drained token bucket.",
+                () -> userRateLimiter.size() + ipRateLimiter.size() + loginIpRateLimiter.size()
+                        + loginUserRateLimiter.size());
+        if (binaryTransport != null) {
+            metrics.registerGauge("chat_binary_connections", "Open binary transport connections.",
+                    binaryTransport::getConnectionCount);
+            metrics.registerGauge("chat_binary_frames", "Frames received on the binary transport since startup.",
+                    binaryTransport::getFrameCount);
+            metrics.registerGauge("chat_binary_queued_bytes", "Bytes queued on binary connections and not yet written.",
+                    binaryTransport::getQueuedBytes);
+        }
+        if (cluster != null) {
+            metrics.registerGauge("chat_cluster_peers",
+                    "Connected followers on the leader; 1 on a follower linked to it.", cluster::getConnectedPeerCount);
+            metrics.registerGauge("chat_cluster_replication_queue_bytes",
+                    "Bytes queued on cluster links and not yet written to the socket.", cluster::getQueuedBytes);
+            metrics.registerGauge("chat_cluster_replicated_messages", "Messages replicated to followers since startup.",
+                    cluster::getReplicatedCount);
+        }
+        metrics.registerGauge("chat_audit_queued", "Audit events waiting to be written.", auditLogger::getQueuedCount);
+        metrics.registerGauge("chat_audit_dropped", "Audit events dropped because the queue was full.",
+                auditLogger::getDroppedCount);
+    }
+
+    private static long sumOverRooms(ToLongFunction<ChatRoom> value) {
+        long sum = 0;
+        for (ChatRoom room : rooms.values()) {
+            sum += value.applyAsLong(room);
+        }
+        return sum;
+    }
+
+    private static ExecutorService createHttpExecutor() {
+        switch (EXECUTOR_MODE) {
+            case "dispatcher":
+                return null;
+            case "virtual":
+                try {
+                    // 虚拟线程需要 JDK 21+，通过反射调用以便在旧版本 JDK 上仍可编译
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("当前 JDK 不支持虚拟线程，改用有界线程池");
+                    return createBoundedPool();
+                }
+            case "pool":
+                return createBoundedPool();
+            default:
+                throw new IllegalArgumentException("未知的执行模式: " + EXECUTOR_MODE);
+        }
+    }
+
+    // 队列满时由分发线程自己执行，对新连接形成反压
+    private static ExecutorService createBoundedPool() {
+        return new ThreadPoolExecutor(EXECUTOR_THREADS, EXECUTOR_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(EXECUTOR_QUEUE_CAPACITY), r -> new Thread(r, "http-worker"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
     private static void terminalCommandListener() {
         Scanner terminalScanner = new Scanner(System.in);
         while (true) {
@@ -59,6 +541,9 @@ public class ChatServer {
                 case "listall":
                     printAllActiveUsers();
                     break;
+                case "stats":
+                    System.out.print(metrics.renderSummary());
+                    break;
                 case "quit":
                     System.out.println("服务器即将关闭...");
                     System.exit(0);
@@ -72,7 +557,7 @@ public class ChatServer {
 
     private static void printAllActiveUsers() {
         System.out.println("在线用户列表:");
-        for (String user : activeUsersSet) {
+        for (String user : onlineUsers()) {
             System.out.println(user);
         }
     }
@@ -82,16 +567,26 @@ public class ChatServer {
         public void handle(HttpExchange httpExchange) throws IOException {
             addCorsHeaders(httpExchange);
             if ("POST".equals(httpExchange.getRequestMethod())) {
-                Map<String, String> requestData = parseRequestBody(httpExchange.getRequestBody());
+                String username;
+                String password;
+                try (FormDecoder form = FormDecoder.read(httpExchange.getRequestBody())) {
+                    username = form.get("username");
+                    password = form.get("password");
+                }
 
-                String username = requestData.get("username");
-                String password = requestData.get("password");
+                long waitNanos = acquireLogin(httpExchange.getRemoteAddress().getAddress(), username);
+                if (waitNanos > 0) {
+                    AdmissionFilter.reject(httpExchange, 429, "rate limited",
+                            TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1);
+                    return;
+                }
 
                 String response;
-                if (userCredentialsMap.containsKey(username) && userCredentialsMap.get(username).equals(password)) {
-                    activeUsersSet.add(username); // 添加到在线用户列表
+                if (credentialStore.verify(username, password)) {
+                    SessionManager.Session session = sessionManager.open(username); // 第一个会话建立时用户上线
                     logUserActivity(username, "登录");
-                    response = "{\"success\": true}";
+                    response = "{\"success\": true, \"token\": \"" + session.getToken()
+                            + "\", \"sessionTimeoutSeconds\": " + sessionManager.getTimeoutMillis() / 1000 + "}";
                 } else {
                     response = "{\"success\": false}";
                 }
@@ -106,28 +601,173 @@ public class ChatServer {
         public void handle(HttpExchange httpExchange) throws IOException {
             addCorsHeaders(httpExchange);
             if ("POST".equals(httpExchange.getRequestMethod())) {
-                Map<String, String> requestData = parseRequestBody(httpExchange.getRequestBody());
+                String messageContent;
+                String toUser;
+                String roomName;
+                boolean anonymous;
+                try (FormDecoder form = FormDecoder.read(httpExchange.getRequestBody())) {
+                    messageContent = form.get("message");
+                    toUser = form.get("toUser");
+                    roomName = form.get("room");
+                    anonymous = "true".equals(form.get("anonymous"));
+                }
+                String username = sessionUser(httpExchange); // 发送者即令牌所属的用户
+                if (username == null) {
+                    sendNotLoggedIn(httpExchange);
+                    return;
+                }
+                if (messageContent == null) {
+                    sendJsonResponse(httpExchange, 400, "{\"success\": false, \"error\": \"missing field\"}");
+                    return;
+                }
+                if (toUser == null) {
+                    toUser = parsePrivateMessageTarget(messageContent);
+                }
 
-                String messageContent = URLDecoder.decode(requestData.get("message"), "UTF-8");
-                String username = URLDecoder.decode(requestData.get("username"), "UTF-8");
-                String toUser = requestData.get("toUser") != null
-                        ? URLDecoder.decode(requestData.get("toUser"), "UTF-8")
-                        : null;
+                ChatRoom room = findRoom(roomName);
 
-                Map<String, String> message = new HashMap<>();
-                message.put("username", username);
-                message.put("message", messageContent);
-                if (toUser != null) {
-                    message.put("toUser", toUser);
+                String response;
+                if (room == null) {
+                    response = "{\"success\": false, \"error\": \"unknown room\"}";
+                } else if (!room.isMember(username)) {
+                    response = "{\"success\": false, \"error\": \"not a member\"}";
+                } else if (anonymous && !room.isLobby()) {
+                    response = "{\"success\": false, \"error\": \"" + ANONYMOUS_LOBBY_ONLY + "\"}";
+                } else if (toUser != null && !(credentialStore.contains(toUser) && room.isMember(toUser))) {
+                    response = "{\"success\": false, \"error\": \"unknown recipient\"}"; // 私聊对象不存在或不在该房间
+                } else {
+                    ClusterNode.Result result = appendMessages(room, anonymous ? ANONYMOUS_SENDER : username,
+                            Collections.singletonList(new MessageStore.BatchEntry(messageContent, toUser)));
+                    if (ClusterNode.UNAVAILABLE.equals(result.getError())) {
+                        sendLeaderUnavailable(httpExchange);
+                        return;
+                    }
+                    if (result.getError() == null) {
+                        // 最常见的响应直接写进复用的缓冲区，不拼接字符串
+                        try (ResponseWriter writer = ResponseWriter.acquire()) {
+                            writer.append("{\"success\": ").append(result.isDurable())
+                                    .append(", \"totalMessages\": ").append(result.getLastSeq()).append("}")
+                                    .send(httpExchange, 200);
+                        }
+                        return;
+                    }
+                    response = "{\"success\": false, \"error\": \"" + result.getError() + "\"}";
                 }
 
-                chatMessagesList.add(message);
-
-                String response = "{\"success\": true, \"totalMessages\": " + chatMessagesList.size() + "}";
+                sendJsonResponse(httpExchange, response);
+            }
+        }
+    }
 
+    // 批量发送：请求体为 {"room": "...", "anonymous": false, "messages": [{"message": "...", "toUser": "..."}, ...]}，
+    // room 可省略（大厅），发送者为会话令牌所属的用户。整批校验通过后按顺序一次性追加，任一私聊对象不存在时整批拒绝
+    static class UserSendBatchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            addCorsHeaders(httpExchange);
+            if ("POST".equals(httpExchange.getRequestMethod())) {
+                String response;
+                try {
+                    JsonObject request = JsonParser.parseReader(
+                            new InputStreamReader(httpExchange.getRequestBody(), StandardCharsets.UTF_8))
+                            .getAsJsonObject();
+                    String username = sessionUser(httpExchange);
+                    if (username == null) {
+                        sendNotLoggedIn(httpExchange);
+                        return;
+                    }
+                    response = appendBatch(request, username);
+                } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+                    response = "{\"success\": false, \"error\": \"malformed batch\"}";
+                }
+                if (response == null) {
+                    sendLeaderUnavailable(httpExchange);
+                    return;
+                }
                 sendJsonResponse(httpExchange, response);
             }
         }
+
+        // 集群从节点与主节点断开时返回 null
+        private static String appendBatch(JsonObject request, String username) {
+            ChatRoom room = findRoom(request.has("room") && !request.get("room").isJsonNull()
+                    ? request.get("room").getAsString() : null);
+            boolean anonymous = request.has("anonymous") && request.get("anonymous").getAsBoolean();
+            if (room == null) {
+                return "{\"success\": false, \"error\": \"unknown room\"}";
+            }
+            if (!room.isMember(username)) {
+                return "{\"success\": false, \"error\": \"not a member\"}";
+            }
+            if (anonymous && !room.isLobby()) {
+                return "{\"success\": false, \"error\": \"" + ANONYMOUS_LOBBY_ONLY + "\"}";
+            }
+            JsonArray messages = request.getAsJsonArray("messages");
+            if (messages.size() == 0 || messages.size() > MAX_BATCH_SIZE) {
+                return "{\"success\": false, \"error\": \"batch size must be 1-" + MAX_BATCH_SIZE + "\"}";
+            }
+
+            List<MessageStore.BatchEntry> entries = new ArrayList<>(messages.size());
+            for (JsonElement element : messages) {
+                JsonObject entry = element.getAsJsonObject();
+                String messageContent = entry.get("message").getAsString();
+                String toUser = entry.has("toUser") && !entry.get("toUser").isJsonNull()
+                        ? entry.get("toUser").getAsString()
+                        : parsePrivateMessageTarget(messageContent);
+                if (toUser != null && !(credentialStore.contains(toUser) && room.isMember(toUser))) {
+                    return "{\"success\": false, \"error\": \"unknown recipient\"}"; // 私聊对象不存在或不在该房间
+                }
+                entries.add(new MessageStore.BatchEntry(messageContent, toUser));
+            }
+
+            ClusterNode.Result result = appendMessages(room, anonymous ? ANONYMOUS_SENDER : username, entries);
+            if (result.getError() != null) {
+                return ClusterNode.UNAVAILABLE.equals(result.getError()) ? null
+                        : "{\"success\": false, \"error\": \"" + result.getError() + "\"}";
+            }
+            return "{\"success\": " + result.isDurable() + ", \"count\": " + entries.size() + ", \"firstSeq\": "
+                    + result.getFirstSeq() + ", \"totalMessages\": " + result.getLastSeq() + "}";
+        }
+    }
+
+    // 追加已校验的消息并等待持久化。集群从节点把写入转发给主节点，由主节点分配序号，
+    // 主节点在回复之前已把这些消息复制过来，返回时本节点的 /messages 已能读到它们
+    static ClusterNode.Result appendMessages(ChatRoom room, String username, List<MessageStore.BatchEntry> entries) {
+        if (cluster != null && !cluster.isLeader()) {
+            return cluster.forwardAppend(room.getName(), username, entries);
+        }
+        MessageStore messageStore = room.getMessageStore();
+        List<ChatMessage> appended = messageStore.appendAll(username, entries);
+        ChatMessage first = appended.get(0);
+        ChatMessage last = appended.get(appended.size() - 1);
+        boolean durable = messageStore.awaitDurable(first, last); // 日志按序号刷盘，最后一条持久化即整批持久化
+        return ClusterNode.Result.success(room.getName(), first.getSeq(), last.getSeq(), durable);
+    }
+
+    // 集群从节点与主节点断开或转发超时，写请求无法执行，客户端稍后重试
+    private static void sendLeaderUnavailable(HttpExchange httpExchange) throws IOException {
+        httpExchange.getResponseHeaders().set("Retry-After", "1");
+        sendJsonResponse(httpExchange, 503, "{\"success\": false, \"error\": \"" + ClusterNode.UNAVAILABLE + "\"}");
+    }
+
+    private static void appendPresenceEvent(String username, int state) {
+        String event = state == ClusterNode.ONLINE ? " 加入了聊天室"
+                : state == ClusterNode.EXPIRED ? " 已超时离线" : " 离开了聊天室";
+        lobby.getMessageStore().append(PRESENCE_SENDER, username + event, null);
+    }
+
+    // 当前在线用户；集群中为所有节点上在线用户的并集
+    private static Set<String> onlineUsers() {
+        return cluster != null ? cluster.getOnlineUsers() : sessionManager.getOnlineUsers();
+    }
+
+    // "@用户名 内容" 形式的消息为私聊，返回目标用户名
+    private static String parsePrivateMessageTarget(String messageContent) {
+        int spaceIndex = messageContent.indexOf(' ');
+        if (messageContent.startsWith("@") && spaceIndex > 1) {
+            return messageContent.substring(1, spaceIndex);
+        }
+        return null;
     }
 
     static class GetChatMessagesHandler implements HttpHandler {
@@ -135,19 +775,244 @@ public class ChatServer {
         public void handle(HttpExchange httpExchange) throws IOException {
             addCorsHeaders(httpExchange);
             if ("GET".equals(httpExchange.getRequestMethod())) {
-                String query = httpExchange.getRequestURI().getQuery();
-                int clientMessageCount = Integer.parseInt(query.split("=")[1]);
+                Map<String, String> queryParams = parseQuery(httpExchange.getRequestURI().getRawQuery());
+                // since（旧参数名 count）为客户端已收到的最大消息序号
+                String username = sessionUser(httpExchange); // 一并返回令牌所属用户的私聊消息
+                if (username == null) {
+                    sendNotLoggedIn(httpExchange);
+                    return;
+                }
+                long clientMessageCount;
+                long waitMillis;
+                int limit;
+                try {
+                    clientMessageCount = parseCursor(queryParams);
+                    waitMillis = Math.min(Long.parseLong(queryParams.getOrDefault("wait", "0")), MAX_POLL_WAIT_MS);
+                    limit = (int) Math.max(1, Math.min(Long.parseLong(
+                            queryParams.getOrDefault("limit", String.valueOf(MAX_PAGE_SIZE))), MAX_PAGE_SIZE));
+                } catch (NumberFormatException e) {
+                    sendInvalidParameter(httpExchange);
+                    return;
+                }
+                ChatRoom room = findRoom(queryParams.get("room"));
+                if (room == null || !room.isMember(username)) {
+                    sendRoomError(httpExchange, room);
+                    return;
+                }
+                MessageStore messageStore = room.getMessageStore();
 
-                List<Map<String, String>> newMessages = chatMessagesList.subList(clientMessageCount,
-                        chatMessagesList.size());
+                if (waitMillis > 0 && !messageStore.hasMessagesAfter(username, clientMessageCount)) {
+                    // 没有新消息：挂起请求，直到有新消息或超时
+                    PendingPoll pendingPoll = new PendingPoll(httpExchange, room, username, clientMessageCount,
+                            limit);
+                    List<PendingPoll> pendingPolls = room.pendingPolls;
+                    synchronized (pendingPolls) {
+                        pendingPolls.add(pendingPoll);
+                        pendingPoll.timeout = pollScheduler.schedule(() -> expirePendingPoll(pendingPoll),
+                                waitMillis, TimeUnit.MILLISECONDS);
+                    }
+                    // 登记后再检查一次，防止与并发写入错过唤醒
+                    if (messageStore.hasMessagesAfter(username, clientMessageCount)) {
+                        schedulePendingPollCompletion(room);
+                    }
+                    return;
+                }
+                sendMessagesResponse(httpExchange, room, username, clientMessageCount, limit);
+            }
+        }
+    }
 
-                Map<String, Object> response = new HashMap<>();
-                response.put("newMessages", newMessages);
-                response.put("totalMessages", chatMessagesList.size());
+    // 查询参数不是合法数字时返回 400
+    private static void sendInvalidParameter(HttpExchange httpExchange) throws IOException {
+        sendJsonResponse(httpExchange, 400, "{\"success\": false, \"error\": \"invalid parameter\"}");
+    }
 
-                String jsonResponse = new Gson().toJson(response);
-                sendJsonResponse(httpExchange, jsonResponse);
+    // 房间不存在时返回 404，不是房间成员时返回 403
+    private static void sendRoomError(HttpExchange httpExchange, ChatRoom room) throws IOException {
+        if (room == null) {
+            sendJsonResponse(httpExchange, 404, "{\"success\": false, \"error\": \"unknown room\"}");
+        } else {
+            sendJsonResponse(httpExchange, 403, "{\"success\": false, \"error\": \"not a member\"}");
+        }
+    }
+
+    static class PendingPoll {
+        final HttpExchange httpExchange;
+        final ChatRoom room;
+        final String username;
+        final long clientMessageCount;
+        final int limit;
+        ScheduledFuture<?> timeout;
+
+        PendingPoll(HttpExchange httpExchange, ChatRoom room, String username, long clientMessageCount, int limit) {
+            this.httpExchange = httpExchange;
+            this.room = room;
+            this.username = username;
+            this.clientMessageCount = clientMessageCount;
+            this.limit = limit;
+        }
+    }
+
+    static long parseCursor(Map<String, String> queryParams) {
+        return Long.parseLong(queryParams.getOrDefault("since", queryParams.getOrDefault("count", "0")));
+    }
+
+    private static final byte[] MESSAGES_RESPONSE_PREFIX = "{\"newMessages\":[".getBytes(StandardCharsets.UTF_8);
+
+    // 直接拼接每条消息缓存的 JSON 字节写出响应，不再经过 Gson 和中间字符串。
+    // 每次最多返回 limit 条，totalMessages 为下一页的游标，hasMore 表示是否还有后续消息。
+    static void sendMessagesResponse(HttpExchange httpExchange, ChatRoom room, String username,
+            long clientMessageCount, int limit) throws IOException {
+        MessageStore messageStore = room.getMessageStore();
+        httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        // ETag 即游标：客户端带上 If-None-Match 且其后没有新的可见消息时，返回没有响应体的 304，不读取也不编码任何消息
+        if (matchesCursorETag(httpExchange, clientMessageCount)
+                && !messageStore.hasMessagesAfter(username, clientMessageCount)) {
+            httpExchange.getResponseHeaders().set("ETag", cursorETag(clientMessageCount));
+            httpExchange.sendResponseHeaders(304, -1);
+            httpExchange.getResponseBody().close();
+            return;
+        }
+
+        long latestSeq = messageStore.getLastSeq();
+        // 只读到 latestSeq 为止，使返回的游标与消息列表一致
+        List<ChatMessage> newMessages = messageStore.readRange(username, clientMessageCount, latestSeq, limit);
+        boolean hasMore = newMessages.size() == limit && newMessages.get(limit - 1).getSeq() < latestSeq;
+        long cursor = hasMore ? newMessages.get(limit - 1).getSeq() : latestSeq;
+        byte[] suffix = ("],\"totalMessages\":" + cursor + ",\"hasMore\":" + hasMore + "}")
+                .getBytes(StandardCharsets.UTF_8);
+
+        long contentLength = MESSAGES_RESPONSE_PREFIX.length + suffix.length + Math.max(0, newMessages.size() - 1);
+        for (ChatMessage chatMessage : newMessages) {
+            contentLength += chatMessage.getJson().length;
+        }
+
+        httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+        httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        httpExchange.getResponseHeaders().set("ETag", cursorETag(cursor));
+        if (contentLength < GZIP_MIN_BYTES) {
+            // 小响应（大多数长轮询）直接按固定长度写出
+            httpExchange.sendResponseHeaders(200, contentLength);
+            try (OutputStream os = httpExchange.getResponseBody()) {
+                writeMessagesBody(os, newMessages, suffix);
             }
+            return;
+        }
+
+        // 大响应边写边发：分块传输，客户端接受时用 gzip 压缩，不在内存中拼出整个响应
+        boolean gzip = acceptsGzip(httpExchange);
+        if (gzip) {
+            httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        httpExchange.sendResponseHeaders(200, 0);
+        try (OutputStream os = gzip ? newGzipStream(httpExchange.getResponseBody())
+                : new BufferedOutputStream(httpExchange.getResponseBody(), 8192)) {
+            writeMessagesBody(os, newMessages, suffix);
+        }
+    }
+
+    private static String cursorETag(long cursor) {
+        return "\"" + cursor + "\"";
+    }
+
+    private static boolean matchesCursorETag(HttpExchange httpExchange, long cursor) {
+        String ifNoneMatch = httpExchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String expected = cursorETag(cursor);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeMessagesBody(OutputStream os, List<ChatMessage> newMessages, byte[] suffix)
+            throws IOException {
+        os.write(MESSAGES_RESPONSE_PREFIX);
+        for (int i = 0; i < newMessages.size(); i++) {
+            if (i > 0) {
+                os.write(',');
+            }
+            os.write(newMessages.get(i).getJson());
+        }
+        os.write(suffix);
+    }
+
+    // 聊天消息重复度高，最快的压缩级别已能取得大部分收益，同时占用的 CPU 最少
+    private static OutputStream newGzipStream(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, 8192) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+    }
+
+    // Accept-Encoding 中包含 gzip 且未以 q=0 显式拒绝
+    private static boolean acceptsGzip(HttpExchange httpExchange) {
+        for (String header : httpExchange.getRequestHeaders().getOrDefault("Accept-Encoding", List.of())) {
+            for (String token : header.split(",")) {
+                String[] parts = token.split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")
+                        && !(parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void schedulePendingPollCompletion(ChatRoom room) {
+        if (room.pollCompletionScheduled.compareAndSet(false, true)) {
+            pollScheduler.execute(() -> {
+                room.pollCompletionScheduled.set(false); // 先清除标记，执行期间的新消息会再排一次
+                completePendingPolls(room);
+            });
+        }
+    }
+
+    // 只检查该房间挂起的请求，其他房间的写入不会唤醒它们
+    private static void completePendingPolls(ChatRoom room) {
+        List<PendingPoll> completed = new ArrayList<>();
+        MessageStore messageStore = room.getMessageStore();
+        synchronized (room.pendingPolls) {
+            Iterator<PendingPoll> iterator = room.pendingPolls.iterator();
+            while (iterator.hasNext()) {
+                PendingPoll pendingPoll = iterator.next();
+                if (messageStore.hasMessagesAfter(pendingPoll.username, pendingPoll.clientMessageCount)) {
+                    iterator.remove();
+                    pendingPoll.timeout.cancel(false);
+                    completed.add(pendingPoll);
+                }
+            }
+        }
+        for (PendingPoll pendingPoll : completed) {
+            pollResponseExecutor.execute(() -> respondToPendingPoll(pendingPoll));
+        }
+    }
+
+    private static void expirePendingPoll(PendingPoll pendingPoll) {
+        synchronized (pendingPoll.room.pendingPolls) {
+            if (!pendingPoll.room.pendingPolls.remove(pendingPoll)) {
+                return; // 已被新消息唤醒
+            }
+        }
+        pollResponseExecutor.execute(() -> respondToPendingPoll(pendingPoll));
+    }
+
+    private static void respondToPendingPoll(PendingPoll pendingPoll) {
+        try {
+            sendMessagesResponse(pendingPoll.httpExchange, pendingPoll.room, pendingPoll.username,
+                    pendingPoll.clientMessageCount, pendingPoll.limit);
+        } catch (IOException e) {
+            // 客户端可能已断开连接
+            pendingPoll.httpExchange.close();
         }
     }
 
@@ -156,24 +1021,373 @@ public class ChatServer {
         public void handle(HttpExchange httpExchange) throws IOException {
             addCorsHeaders(httpExchange);
             if ("GET".equals(httpExchange.getRequestMethod())) {
-                String jsonResponse = new Gson().toJson(activeUsersSet);
+                String jsonResponse = new Gson().toJson(onlineUsers());
                 sendJsonResponse(httpExchange, jsonResponse);
             }
         }
     }
 
-    static class UserLogoutHandler implements HttpHandler {
+    // 检索聊天记录：GET /search?q=关键词&room=&user=&from=&to=&before=&limit=，私聊消息只检索令牌所属用户可见的
+    // q 中空白分隔的词语须全部命中，引号括起的部分按短语匹配；user 只看该用户发送的消息；from、to 为毫秒时间戳；
+    // 结果按序号从新到旧排列，nextBefore 作为下一页的 before 参数，hasMore 表示是否还有更早的结果
+    static class SearchMessagesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            addCorsHeaders(httpExchange);
+            if ("GET".equals(httpExchange.getRequestMethod())) {
+                Map<String, String> queryParams = parseQuery(httpExchange.getRequestURI().getRawQuery());
+                String username = sessionUser(httpExchange);
+                if (username == null) {
+                    sendNotLoggedIn(httpExchange);
+                    return;
+                }
+                ChatRoom room = findRoom(queryParams.get("room"));
+                if (room == null || !room.isMember(username)) {
+                    sendRoomError(httpExchange, room);
+                    return;
+                }
+                if (room.getSearchIndex() == null) {
+                    sendJsonResponse(httpExchange, 404, "{\"success\": false, \"error\": \"search disabled\"}");
+                    return;
+                }
+                String sender = queryParams.get("user");
+                SearchIndex.Query query = new SearchIndex.Query(queryParams.get("q"),
+                        sender == null || sender.isEmpty() ? null : sender);
+                if (query.isEmpty()) {
+                    sendJsonResponse(httpExchange, 400, "{\"success\": false, \"error\": \"empty query\"}");
+                    return;
+                }
+                long from;
+                long to;
+                long before;
+                int limit;
+                try {
+                    from = Long.parseLong(queryParams.getOrDefault("from", "0"));
+                    to = Long.parseLong(queryParams.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+                    before = Long.parseLong(queryParams.getOrDefault("before", String.valueOf(Long.MAX_VALUE)));
+                    limit = (int) Math.max(1, Math.min(Long.parseLong(
+                            queryParams.getOrDefault("limit", "20")), MAX_SEARCH_RESULTS));
+                } catch (NumberFormatException e) {
+                    sendInvalidParameter(httpExchange);
+                    return;
+                }
+
+                // 多取一条判断是否还有下一页
+                List<ChatMessage> results = room.getSearchIndex().search(query, username, from, to, before, limit + 1);
+                boolean hasMore = results.size() > limit;
+                if (hasMore) {
+                    results = results.subList(0, limit);
+                }
+                StringBuilder suffix = new StringBuilder("],\"hasMore\":").append(hasMore);
+                if (hasMore) {
+                    suffix.append(",\"nextBefore\":").append(results.get(limit - 1).getSeq());
+                }
+                suffix.append('}');
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                body.write(SEARCH_RESPONSE_PREFIX);
+                for (int i = 0; i < results.size(); i++) {
+                    if (i > 0) {
+                        body.write(',');
+                    }
+                    body.write(results.get(i).getJson());
+                }
+                body.write(suffix.toString().getBytes(StandardCharsets.UTF_8));
+                httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+                httpExchange.sendResponseHeaders(200, body.size());
+                try (OutputStream os = httpExchange.getResponseBody()) {
+                    body.writeTo(os);
+                }
+            }
+        }
+    }
+
+    private static final byte[] SEARCH_RESPONSE_PREFIX = "{\"results\":[".getBytes(StandardCharsets.UTF_8);
+
+    // 列出所有房间：[{"name": "lobby", "members": 在线人数, "lastSeq": 最新序号}, ...]，
+    // 带会话令牌时每项再附上该用户是否已加入
+    static class ListRoomsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            addCorsHeaders(httpExchange);
+            if (!"/rooms".equals(httpExchange.getRequestURI().getPath())) {
+                sendJsonResponse(httpExchange, 404, "{\"success\": false, \"error\": \"not found\"}");
+                return;
+            }
+            if ("GET".equals(httpExchange.getRequestMethod())) {
+                String username = sessionUser(httpExchange);
+                JsonArray roomList = new JsonArray();
+                for (ChatRoom room : rooms.values()) {
+                    JsonObject entry = new JsonObject();
+                    entry.addProperty("name", room.getName());
+                    entry.addProperty("members",
+                            room.isLobby() ? onlineUsers().size() : room.getMemberCount());
+                    entry.addProperty("lastSeq", room.getMessageStore().getLastSeq());
+                    if (username != null) {
+                        entry.addProperty("joined", room.isMember(username));
+                    }
+                    roomList.add(entry);
+                }
+                sendJsonResponse(httpExchange, roomList.toString());
+            }
+        }
+    }
+
+    // 创建、加入、离开房间：请求体只有 room=...，操作的用户由会话令牌确定，没有有效令牌时返回 401。
+    // 创建者自动加入；大厅不能离开。加入和离开会在该房间发出一条系统消息
+    static class RoomMembershipHandler implements HttpHandler {
+        private final String action;
+
+        RoomMembershipHandler(String action) {
+            this.action = action;
+        }
+
         @Override
         public void handle(HttpExchange httpExchange) throws IOException {
             addCorsHeaders(httpExchange);
             if ("POST".equals(httpExchange.getRequestMethod())) {
-                Map<String, String> requestData = parseRequestBody(httpExchange.getRequestBody());
+                String roomName;
+                try (FormDecoder form = FormDecoder.read(httpExchange.getRequestBody())) {
+                    roomName = form.get("room");
+                }
+                String username = sessionUser(httpExchange); // 只能改变令牌对应用户自己的成员资格
+                if (username == null) {
+                    sendNotLoggedIn(httpExchange);
+                    return;
+                }
+
+                ClusterNode.Result result;
+                if (cluster != null && !cluster.isLeader()) {
+                    result = cluster.forwardRoomAction(action, roomName, username);
+                } else {
+                    result = applyRoomAction(action, roomName, username);
+                }
+                if (ClusterNode.UNAVAILABLE.equals(result.getError())) {
+                    sendLeaderUnavailable(httpExchange);
+                    return;
+                }
+                sendJsonResponse(httpExchange, result.getError() == null
+                        ? "{\"success\": true, \"room\": \"" + result.getRoom() + "\"}"
+                        : "{\"success\": false, \"error\": \"" + result.getError() + "\"}");
+            }
+        }
+    }
+
+    // 在主节点（或单机）上执行房间操作。成员变化与建房间都在 rooms 的锁内完成，集群从节点据此收到一致的成员快照
+    static ClusterNode.Result applyRoomAction(String action, String roomName, String username) {
+        String error = null;
+        ChatRoom room = null;
+        boolean changed = false;
+        synchronized (rooms) {
+            if ("create".equals(action)) {
+                String name = ChatRoom.normalizeName(roomName);
+                if (name == null) {
+                    error = "invalid room name";
+                } else if (rooms.containsKey(name)) {
+                    error = "room exists";
+                } else if (rooms.size() >= MAX_ROOMS) {
+                    error = "too many rooms";
+                } else {
+                    room = createRoom(name);
+                    error = room == null ? "cannot create room" : null;
+                }
+            } else {
+                room = findRoom(roomName);
+                if (room == null) {
+                    error = "unknown room";
+                } else if ("leave".equals(action) && room.isLobby()) {
+                    error = "cannot leave lobby";
+                }
+            }
+
+            if (error == null && !room.isLobby()) {
+                boolean joined = !"leave".equals(action);
+                changed = joined ? room.join(username) : room.leave(username);
+                if (changed && cluster != null) {
+                    cluster.membershipChanged(room.getName(), username, joined);
+                }
+            }
+        }
+        if (error != null) {
+            return ClusterNode.Result.failure(error);
+        }
+        if (changed && PRESENCE_EVENTS) {
+            room.getMessageStore().append(PRESENCE_SENDER,
+                    username + ("leave".equals(action) ? " 离开了房间" : " 加入了房间"), null);
+        }
+        return ClusterNode.Result.success(room.getName(), 0, 0, true);
+    }
+
+    // 调用方持有 rooms 的锁；启用持久化时先建立日志，失败则不创建房间
+    private static ChatRoom createRoom(String name) {
+        ChatRoom room = newRoom(name);
+        if (!JOURNAL_DIR.isEmpty()) {
+            try {
+                attachJournal(room);
+            } catch (IOException e) {
+                System.out.println("无法为房间 " + name + " 创建消息日志: " + e.getMessage());
+                return null;
+            }
+        }
+        if (cluster != null) {
+            cluster.roomCreated(name); // 在房间可见之前通知从节点，之后的消息都能复制过去
+        }
+        System.out.println("创建房间: " + name);
+        return registerRoom(room);
+    }
 
-                String username = requestData.get("username");
+    // 二进制传输的请求在本节点上的执行，校验与 HTTP 接口相同，发送同样受用户限流
+    static class BinaryHost implements BinaryTransport.Host {
+        @Override
+        public String login(String username, String password) {
+            if (!credentialStore.verify(username, password)) {
+                return null;
+            }
+            SessionManager.Session session = sessionManager.open(username);
+            logUserActivity(username, "登录");
+            return session.getToken();
+        }
+
+        @Override
+        public long acquireLogin(InetAddress address, String username) {
+            return ChatServer.acquireLogin(address, username);
+        }
+
+        @Override
+        public void touch(String token) {
+            sessionManager.touch(token);
+        }
+
+        @Override
+        public void logout(String token) {
+            String username = sessionManager.getUsername(token);
+            if (sessionManager.close(token)) {
+                logUserActivity(username, "退出");
+            }
+        }
+
+        @Override
+        public long getSessionTimeoutSeconds() {
+            return sessionManager.getTimeoutMillis() / 1000;
+        }
+
+        @Override
+        public ChatRoom findRoom(String name) {
+            return ChatServer.findRoom(name);
+        }
+
+        @Override
+        public ClusterNode.Result send(String roomName, String username, String message, String toUser) {
+            if (USER_RATE > 0 && userRateLimiter.tryAcquire(username) > 0) {
+                rateLimitedCount.incrementAndGet();
+                return ClusterNode.Result.failure("rate limited");
+            }
+            ChatRoom room = ChatServer.findRoom(roomName);
+            if (room == null) {
+                return ClusterNode.Result.failure("unknown room");
+            }
+            if (!room.isMember(username)) {
+                return ClusterNode.Result.failure("not a member");
+            }
+            if (toUser == null) {
+                toUser = parsePrivateMessageTarget(message);
+            }
+            if (toUser != null && !(credentialStore.contains(toUser) && room.isMember(toUser))) {
+                return ClusterNode.Result.failure("unknown recipient");
+            }
+            return appendMessages(room, username,
+                    Collections.singletonList(new MessageStore.BatchEntry(message, toUser)));
+        }
+
+        @Override
+        public boolean sendMayBlock() {
+            return (!JOURNAL_DIR.isEmpty() && JOURNAL_FSYNC == MessageJournal.FsyncPolicy.GROUP)
+                    || (cluster != null && !cluster.isLeader());
+        }
+
+        @Override
+        public Collection<String> getOnlineUsers() {
+            return onlineUsers();
+        }
+    }
+
+    // 集群操作在本节点上的执行：主节点执行从节点转发的写请求并发出上线、下线通知，从节点按主节点的通知建立房间
+    static class ClusterHost implements ClusterNode.Host {
+        @Override
+        public ClusterNode.Result append(String roomName, String username, List<MessageStore.BatchEntry> entries) {
+            ChatRoom room = rooms.get(roomName);
+            if (room == null) {
+                return ClusterNode.Result.failure("unknown room");
+            }
+            if (!room.isMember(username)) {
+                return ClusterNode.Result.failure("not a member");
+            }
+            return appendMessages(room, username, entries);
+        }
+
+        @Override
+        public ClusterNode.Result changeRoom(String action, String roomName, String username) {
+            return applyRoomAction(action, roomName, username);
+        }
+
+        @Override
+        public void onClusterPresence(String username, int state) {
+            if (PRESENCE_EVENTS) {
+                appendPresenceEvent(username, state);
+            }
+        }
+
+        @Override
+        public ChatRoom openRoom(String name) throws IOException {
+            synchronized (rooms) {
+                ChatRoom room = rooms.get(name);
+                if (room == null) {
+                    room = createRoom(name);
+                    if (room == null) {
+                        throw new IOException("cannot create room " + name);
+                    }
+                }
+                return room;
+            }
+        }
+
+        @Override
+        public ChatRoom findRoom(String name) {
+            return rooms.get(name);
+        }
+
+        @Override
+        public Collection<ChatRoom> getRooms() {
+            return rooms.values();
+        }
+    }
+
+    // 以 Prometheus 文本格式输出运行指标
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            if ("GET".equals(httpExchange.getRequestMethod())) {
+                byte[] responseBytes = metrics.render().getBytes(StandardCharsets.UTF_8);
+                httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                httpExchange.sendResponseHeaders(200, responseBytes.length);
+                try (OutputStream os = httpExchange.getResponseBody()) {
+                    os.write(responseBytes);
+                }
+            }
+        }
+    }
+
+    static class UserLogoutHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            addCorsHeaders(httpExchange);
+            if ("POST".equals(httpExchange.getRequestMethod())) {
+                httpExchange.getRequestBody().close();
+                String token = sessionToken(httpExchange);
 
                 String response;
-                if (activeUsersSet.contains(username)) {
-                    activeUsersSet.remove(username); // 从在线用户列表中移除
+                // 只结束令牌对应的会话；没有有效令牌的请求已由准入过滤器拒绝
+                String username = sessionManager.getUsername(token);
+                if (username != null && sessionManager.close(token)) {
                     logUserActivity(username, "退出");
                     response = "{\"success\": true}";
                 } else {
@@ -185,16 +1399,229 @@ public class ChatServer {
         }
     }
 
-    private static Map<String, String> parseRequestBody(InputStream body) throws IOException {
-        Map<String, String> requestDataMap = new HashMap<>();
-        String requestBody = new BufferedReader(new InputStreamReader(body)).lines()
-                .collect(Collectors.joining("\n"));
-        String[] pairs = requestBody.split("&");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split("=");
-            requestDataMap.put(keyValue[0], URLDecoder.decode(keyValue[1], "UTF-8"));
+    // 心跳：只刷新会话。既不轮询也不订阅推送流的客户端定期调用，令牌失效时返回 401，客户端应重新登录
+    static class HeartbeatHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            addCorsHeaders(httpExchange);
+            if ("POST".equals(httpExchange.getRequestMethod())) {
+                httpExchange.getRequestBody().close();
+                if (sessionManager.touch(sessionToken(httpExchange))) {
+                    sendJsonResponse(httpExchange, "{\"success\": true}");
+                } else {
+                    sendJsonResponse(httpExchange, 401, "{\"success\": false, \"error\": \"session expired\"}");
+                }
+            }
+        }
+    }
+
+    static class StreamMessagesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            addCorsHeaders(httpExchange);
+            if ("GET".equals(httpExchange.getRequestMethod())) {
+                Map<String, String> queryParams = parseQuery(httpExchange.getRequestURI().getRawQuery());
+                long clientMessageCount;
+                try {
+                    clientMessageCount = parseCursor(queryParams);
+                } catch (NumberFormatException e) {
+                    sendInvalidParameter(httpExchange);
+                    return;
+                }
+                // 浏览器 EventSource 断线重连时会带上最后收到的事件 id，从该处续传
+                String lastEventId = httpExchange.getRequestHeaders().getFirst("Last-Event-ID");
+                if (lastEventId != null && lastEventId.matches("\\d{1,18}")) {
+                    clientMessageCount = Math.max(clientMessageCount, Long.parseLong(lastEventId));
+                }
+                String username = sessionUser(httpExchange); // 一并推送令牌所属用户的私聊消息
+                if (username == null) {
+                    sendNotLoggedIn(httpExchange);
+                    return;
+                }
+                ChatRoom room = findRoom(queryParams.get("room"));
+                if (room == null || !room.isMember(username)) {
+                    sendRoomError(httpExchange, room);
+                    return;
+                }
+
+                httpExchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+                httpExchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                httpExchange.sendResponseHeaders(200, 0); // 分块传输，连接保持打开
+
+                StreamSubscriber subscriber = new StreamSubscriber(httpExchange, room, username,
+                        sessionToken(httpExchange));
+                // 先注册再读取积压消息：两者重叠的部分由排空时按序号去重，保证不丢不重
+                room.streamSubscribers.add(subscriber);
+                subscriber.backlogCursor = clientMessageCount;
+                subscriber.skipThroughSeq = Math.max(clientMessageCount, room.getMessageStore().getLastSeq());
+                subscriber.draining.set(false);
+                scheduleDrain(subscriber);
+            }
+        }
+    }
+
+    static class StreamSubscriber {
+        final HttpExchange httpExchange;
+        final OutputStream responseBody;
+        final BlockingQueue<StreamEvent> eventQueue = new ArrayBlockingQueue<>(STREAM_QUEUE_CAPACITY);
+        final AtomicBoolean draining = new AtomicBoolean(true); // 积压消息就绪前由订阅请求持有
+        Thread drainThread; // 正在为该订阅者写出的线程，由订阅者自身的锁保护
+        // 订阅时尚未发送的历史消息为 (backlogCursor, skipThroughSeq]，由排空线程分页读取写出，不一次性载入
+        volatile long backlogCursor;
+        volatile long skipThroughSeq; // 序号不大于该值的实时事件已包含在积压消息中
+        volatile boolean overflowed = false;
+        final ChatRoom room;
+        final String username; // 令牌所属的用户，接收公共消息和该用户的私聊
+        final String sessionToken; // 连接保持期间由心跳刷新该会话
+
+        StreamSubscriber(HttpExchange httpExchange, ChatRoom room, String username, String sessionToken) {
+            this.httpExchange = httpExchange;
+            this.room = room;
+            this.username = username;
+            this.sessionToken = sessionToken;
+            this.responseBody = httpExchange.getResponseBody();
         }
-        return requestDataMap;
+    }
+
+    static class StreamEvent {
+        final long seq; // 心跳等非消息事件为 0
+        final byte[] bytes;
+
+        StreamEvent(long seq, byte[] bytes) {
+            this.seq = seq;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final byte[] STREAM_PING_EVENT = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    // 每条消息只拼接一次事件字节，所有订阅者共享
+    private static byte[] toStreamEvent(ChatMessage chatMessage) {
+        byte[] prefix = ("id: " + chatMessage.getSeq() + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+        byte[] json = chatMessage.getJson();
+        byte[] event = Arrays.copyOf(prefix, prefix.length + json.length + 2);
+        System.arraycopy(json, 0, event, prefix.length, json.length);
+        event[event.length - 2] = '\n';
+        event[event.length - 1] = '\n';
+        return event;
+    }
+
+    private static void publishToStreamSubscribers(ChatRoom room, ChatMessage chatMessage) {
+        if (!room.streamSubscribers.isEmpty()) {
+            publishToStreamSubscribers(room, new StreamEvent(chatMessage.getSeq(), toStreamEvent(chatMessage)),
+                    chatMessage.getToUser());
+        }
+    }
+
+    // recipient 为 null 时广播给房间的所有订阅者，否则只投递给该用户的订阅
+    private static void publishToStreamSubscribers(ChatRoom room, StreamEvent event, String recipient) {
+        List<StreamSubscriber> streamSubscribers = room.streamSubscribers;
+        for (StreamSubscriber subscriber : streamSubscribers) {
+            if (recipient != null && !recipient.equals(subscriber.username)) {
+                continue;
+            }
+            if (!subscriber.eventQueue.offer(event)) {
+                // 慢消费者：不再阻塞广播路径，摘除后由排空线程通知其重新同步
+                streamSubscribers.remove(subscriber);
+                subscriber.overflowed = true;
+                pollScheduler.schedule(() -> abortStalledSubscriber(subscriber), STREAM_OVERFLOW_GRACE_SECONDS,
+                        TimeUnit.SECONDS);
+            }
+            scheduleDrain(subscriber);
+        }
+    }
+
+    // 心跳同时刷新各订阅者的会话：连接断开后订阅者被摘除，会话随之停止刷新并在超时后过期
+    private static void pingStreamSubscribers() {
+        StreamEvent ping = new StreamEvent(0, STREAM_PING_EVENT);
+        for (ChatRoom room : rooms.values()) {
+            for (StreamSubscriber subscriber : room.streamSubscribers) {
+                sessionManager.touch(subscriber.sessionToken);
+            }
+            publishToStreamSubscribers(room, ping, null);
+        }
+    }
+
+    private static void scheduleDrain(StreamSubscriber subscriber) {
+        if (subscriber.draining.compareAndSet(false, true)) {
+            streamFanOutExecutor.execute(() -> drainSubscriber(subscriber));
+        }
+    }
+
+    private static void drainSubscriber(StreamSubscriber subscriber) {
+        synchronized (subscriber) {
+            subscriber.drainThread = Thread.currentThread();
+        }
+        try {
+            while (true) {
+                while (subscriber.backlogCursor < subscriber.skipThroughSeq) {
+                    List<ChatMessage> page = subscriber.room.getMessageStore().readRange(subscriber.username,
+                            subscriber.backlogCursor, subscriber.skipThroughSeq, MAX_PAGE_SIZE);
+                    if (page.isEmpty()) {
+                        subscriber.backlogCursor = subscriber.skipThroughSeq;
+                        break;
+                    }
+                    for (ChatMessage chatMessage : page) {
+                        subscriber.responseBody.write(toStreamEvent(chatMessage));
+                    }
+                    subscriber.backlogCursor = page.get(page.size() - 1).getSeq();
+                }
+                StreamEvent event;
+                while ((event = subscriber.eventQueue.poll()) != null) {
+                    if (event.seq > 0 && event.seq <= subscriber.skipThroughSeq) {
+                        continue;
+                    }
+                    subscriber.responseBody.write(event.bytes);
+                }
+                subscriber.responseBody.flush();
+
+                if (subscriber.overflowed) {
+                    subscriber.responseBody.write("event: resync\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8));
+                    closeStreamSubscriber(subscriber);
+                    return;
+                }
+                subscriber.draining.set(false);
+                // 释放标记后再检查一次，避免与并发的 offer 错过唤醒
+                if (subscriber.eventQueue.isEmpty() || !subscriber.draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // 客户端已断开，或因长时间阻塞被中断
+            closeStreamSubscriber(subscriber);
+        } finally {
+            synchronized (subscriber) {
+                subscriber.drainThread = null;
+                Thread.interrupted(); // 清除可能迟到的中断，避免影响线程池中的下一个任务
+            }
+        }
+    }
+
+    // 写出阻塞在 socket 上的线程被中断后，可中断通道会关闭连接并抛出异常
+    private static void abortStalledSubscriber(StreamSubscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.drainThread != null) {
+                System.out.println("断开阻塞的推送订阅者");
+                subscriber.drainThread.interrupt();
+            }
+        }
+    }
+
+    private static void closeStreamSubscriber(StreamSubscriber subscriber) {
+        subscriber.room.streamSubscribers.remove(subscriber);
+        subscriber.httpExchange.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> queryParams = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return queryParams;
+        }
+        for (String pair : query.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            queryParams.put(keyValue[0], keyValue.length > 1 ? URLDecoder.decode(keyValue[1], "UTF-8") : "");
+        }
+        return queryParams;
     }
 
     private static void addCorsHeaders(HttpExchange httpExchange) {
@@ -203,21 +1630,17 @@ public class ChatServer {
         httpExchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization");
     }
 
-    private static void sendJsonResponse(HttpExchange httpExchange, String response) throws IOException {
-        httpExchange.getResponseHeaders().set("Content-Type", "application/json");
-        httpExchange.sendResponseHeaders(200, response.getBytes().length);
-        try (OutputStream os = httpExchange.getResponseBody()) {
-            os.write(response.getBytes());
+    static void sendJsonResponse(HttpExchange httpExchange, String response) throws IOException {
+        sendJsonResponse(httpExchange, 200, response);
+    }
+
+    static void sendJsonResponse(HttpExchange httpExchange, int status, String response) throws IOException {
+        try (ResponseWriter writer = ResponseWriter.acquire()) {
+            writer.append(response).send(httpExchange, status); // 编码进复用的缓冲区，不再分配字节数组
         }
     }
 
     private static void logUserActivity(String username, String activity) {
-        try (FileWriter fw = new FileWriter("logs.txt", true);
-                BufferedWriter bw = new BufferedWriter(fw);
-                PrintWriter out = new PrintWriter(bw)) {
-            out.println(username + " " + activity + " " + new Date());
-        } catch (IOException e) {
-            System.err.println("日志记录失败: " + e.getMessage());
-        }
+        auditLogger.log(username, activity);
     }
 }
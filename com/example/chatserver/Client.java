@@ -1,224 +1,853 @@
 package com.example.chatserver;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
 
 public class Client {
-    private static final String SERVER_URL = "http://localhost:8000";
+    // 可通过 -Dchat.server.url 连接集群中的任一节点
+    private static final String SERVER_URL = System.getProperty("chat.server.url", "http://localhost:8000");
+    // 长轮询等待时间，需小于服务器的 chat.poll.maxWaitMs
+    private static final long LONG_POLL_WAIT_MS = 25000;
+    private static final long POLL_RETRY_DELAY_MS = 2000;
+    // 接收模式：stream 使用服务器推送流（默认），longpoll 使用长轮询
+    private static final String RECEIVE_MODE = System.getProperty("chat.receiveMode", "stream");
+    private static final int STREAM_READ_TIMEOUT_MS = 45000; // 服务器每 15 秒发送一次心跳
+    // 传输方式：http（默认）或 binary。binary 时登录、发送、接收和查询在线用户走服务器的二进制端口，
+    // 房间管理和检索仍走 HTTP，共用同一个会话令牌；匿名消息也仍通过 HTTP 发送
+    private static final boolean BINARY_TRANSPORT = "binary".equals(System.getProperty("chat.transport", "http"));
+    private static final String BINARY_ADDRESS = System.getProperty("chat.binary.address", "localhost:8100");
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    // 本地消息缓存：每个房间最多保留的条数，为 0 时不缓存；目录默认在用户主目录下
+    private static final int CACHE_MAX_MESSAGES = Integer.getInteger("chat.cache.maxMessages", 5000);
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("chat.cache.dir",
+            Paths.get(System.getProperty("user.home"), ".chatroom", "cache").toString()));
+    // 被服务器限流（429）或减载（503）时按 Retry-After 提示指数退避重试，等待时间加随机抖动，避免同时重试
+    private static final int MAX_RETRIES = 4;
+    private static final long MAX_RETRY_DELAY_MS = 30000;
+    // 发送合并：大于 0 时在该时间窗口内排队的消息合并为一次 /sendBatch 请求，攒满 chat.send.maxBatch 条时立即发出
+    private static final long SEND_COALESCE_MS = Long.getLong("chat.send.coalesceMs", 0);
+    private static final int SEND_MAX_BATCH = Integer.getInteger("chat.send.maxBatch", 100);
+    private static final DateTimeFormatter SEARCH_TIME_FORMAT = DateTimeFormatter.ofPattern("MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
+    private static final Gson GSON = new Gson();
+    // 会话心跳，也用于发现会话已过期（例如休眠后）并重新登录
+    private static final ScheduledExecutorService HEARTBEAT_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "session-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 所有请求共用一个 HttpClient，复用 keep-alive 连接；协议版本可通过 -Dchat.http.version=HTTP_2 调整
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.valueOf(System.getProperty("chat.http.version", "HTTP_1_1")))
+            .connectTimeout(REQUEST_TIMEOUT)
+            .build();
+    // 直接从响应字节解析 JSON，不再逐行拼接字符串；gzip 压缩的响应边解压边解析，错误状态码和 304 没有可解析的响应体
+    private static final HttpResponse.BodyHandler<JsonElement> JSON_BODY_HANDLER = responseInfo -> {
+        if (responseInfo.statusCode() >= 400 || responseInfo.statusCode() == 304) {
+            return HttpResponse.BodySubscribers.replacing(null);
+        }
+        boolean gzip = responseInfo.headers().firstValue("Content-Encoding").orElse("").equalsIgnoreCase("gzip");
+        return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(),
+                bytes -> parseJson(bytes, gzip));
+    };
 
     private ClientGUI clientGUI;
     private String username;
     private boolean isAnonymous = false; // 是否匿名聊天
-    private ScheduledExecutorService scheduler;
+    private volatile boolean polling = false;
+    private Thread pollingThread;
+    // 接收线程当前的请求，切换房间时取消或断开以便它立即退出
+    private volatile CompletableFuture<?> currentFetch;
+    private volatile HttpURLConnection streamConnection;
+    private volatile String currentRoom = "lobby";
+    private final Map<String, Long> roomCursors = new HashMap<>(); // 离开过的房间的游标，切回时从该处续传
+    private final Map<String, ChatMessage> roomLastReceived = new HashMap<>(); // 离开时的最后一条，切回时先核对
+    private String password; // 会话过期后用于自动重新登录
+    private volatile String sessionToken; // 登录时由服务器分配，随每个请求放在 Authorization 头中
+    private volatile BinaryClient binaryClient; // 二进制传输的连接，未使用或已退出时为 null
+    private ScheduledFuture<?> heartbeatTask;
+    private volatile long serverMessageCount = 0; // 已收到的最大消息序号，作为下次轮询的游标
+    private MessageCache messageCache; // 登录后打开，不缓存时为 null
+    private volatile ChatMessage lastReceived; // 当前房间最后显示的一条消息
+    // 不为 null 时，接收线程在续传之前先核对服务器上的这条消息，发现服务器的历史已重置时从头接收
+    private volatile ChatMessage historyCheck;
+    // 每次发送都接在上一次之后，保证异步发送按顺序到达
+    private volatile CompletableFuture<Boolean> lastSend = CompletableFuture.completedFuture(true);
+    private List<PendingSend> pendingBatch = new ArrayList<>(); // 等待合并发送的消息，访问时持有 this 的锁
+    private boolean pendingBatchAnonymous;
+    private String pendingBatchRoom;
 
     public Client(ClientGUI clientGUI) {
         this.clientGUI = clientGUI;
     }
 
     public boolean login(String username, String password) {
+        System.out.println("Sending login request with username: " + username + " and password: " + password);
+        if (BINARY_TRANSPORT) {
+            return loginBinary(username, password);
+        }
+        return join(postForm("/login", "username=" + encode(username) + "&password=" + encode(password))
+                .thenApply(response -> {
+                    System.out.println("Login response: " + response);
+                    JsonObject jsonResponse = response.getAsJsonObject();
+                    boolean success = jsonResponse.get("success").getAsBoolean();
+                    if (success && jsonResponse.has("token")) {
+                        this.password = password;
+                        sessionToken = jsonResponse.get("token").getAsString();
+                        startHeartbeat(jsonResponse.get("sessionTimeoutSeconds").getAsLong());
+                    }
+                    return success;
+                }), false);
+    }
+
+    // 连接保持期间服务器自动刷新会话，不需要心跳；断开即结束会话
+    private boolean loginBinary(String username, String password) {
+        BinaryClient previous = binaryClient;
+        if (previous != null) {
+            previous.close();
+        }
         try {
-            URL url = new URL(SERVER_URL + "/login");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
+            BinaryClient connection = BinaryClient.connect(BINARY_ADDRESS, this::onBinaryMessage);
+            BinaryClient.Reply reply = connection.login(username, password).get(REQUEST_TIMEOUT.toMillis(),
+                    TimeUnit.MILLISECONDS);
+            System.out.println("Binary login response: " + (reply.isSuccess() ? "success" : reply.getError()));
+            if (!reply.isSuccess()) {
+                connection.close();
+                return false;
+            }
+            this.password = password;
+            sessionToken = reply.getText();
+            binaryClient = connection;
+            return true;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            System.out.println("Binary login failed: " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            String urlParameters = "username=" + URLEncoder.encode(username, "UTF-8") +
-                    "&password=" + URLEncoder.encode(password, "UTF-8");
+    // 读取线程上按序号顺序回调；切换房间后旧房间迟到的消息直接丢弃
+    private void onBinaryMessage(String room, ChatMessage chatMessage) {
+        if (!polling || !room.equals(currentRoom)) {
+            return;
+        }
+        displayMessage(chatMessage);
+        serverMessageCount = chatMessage.getSeq();
+    }
 
-            System.out.println("Sending login request with username: " + username + " and password: " + password);
+    // 每个超时周期发送三次心跳，偶尔丢失一次也不会掉线
+    private synchronized void startHeartbeat(long sessionTimeoutSeconds) {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+        }
+        long intervalMillis = Math.max(1000, TimeUnit.SECONDS.toMillis(sessionTimeoutSeconds) / 3);
+        heartbeatTask = HEARTBEAT_SCHEDULER.scheduleWithFixedDelay(this::sendHeartbeat, intervalMillis,
+                intervalMillis, TimeUnit.MILLISECONDS);
+    }
 
-            try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
-                out.writeBytes(urlParameters);
-                out.flush();
-            }
+    private synchronized void stopHeartbeat() {
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+    }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
+    private void sendHeartbeat() {
+        HttpRequest request = newRequest("/heartbeat").POST(HttpRequest.BodyPublishers.noBody()).build();
+        try {
+            if (HTTP_CLIENT.send(request, JSON_BODY_HANDLER).statusCode() == 401) {
+                System.out.println("Session expired, logging in again");
+                login(username, password);
             }
+        } catch (IOException e) {
+            System.out.println("Heartbeat failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            String response = responseBuilder.toString();
-            System.out.println("Login response: " + response);
+    public boolean sendMessage(String message, String toUser) {
+        return join(sendMessageAsync(message, toUser), false);
+    }
 
-            JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
-            return jsonResponse.get("success").getAsBoolean();
-        } catch (Exception e) {
+    // 非阻塞发送：在上一条消息发送完成后再发出，避免多个连接并发导致消息乱序
+    public synchronized CompletableFuture<Boolean> sendMessageAsync(String message, String toUser) {
+        boolean anonymous = isAnonymous;
+        BinaryClient connection = binaryClient;
+        if (connection != null && !anonymous) {
+            // 同一连接上的请求按发出顺序处理，不必等上一条的响应
+            System.out.println("Sending message: " + message);
+            lastSend = connection.send(currentRoom, toUser, message).thenApply(reply -> {
+                System.out.println("Send message response: "
+                        + (reply.isSuccess() ? reply.getValue() : reply.getError()));
+                return reply.isSuccess();
+            }).exceptionally(e -> false);
+            return lastSend;
+        }
+        if (SEND_COALESCE_MS > 0) {
+            return enqueueForBatch(anonymous, message, toUser);
+        }
+        // 发送者由服务器按会话令牌确定，匿名发送只需带上标记
+        String urlParameters = "room=" + encode(currentRoom) + "&message=" + encode(message)
+                + (anonymous ? "&anonymous=true" : "");
+        if (toUser != null) {
+            urlParameters += "&toUser=" + encode(toUser);
+        }
+        String body = urlParameters;
+        lastSend = lastSend.thenCompose(previous -> {
+            System.out.println("Sending message: " + message);
+            return postForm("/send", body);
+        }).thenApply(response -> {
+            System.out.println("Send message response: " + response);
+            return response.getAsJsonObject().get("success").getAsBoolean();
+        }).exceptionally(e -> {
             e.printStackTrace();
             return false;
+        });
+        return lastSend;
+    }
+
+    // 加入待合并的批次；批次中的第一条消息启动计时，窗口结束或攒满时整批发出
+    private CompletableFuture<Boolean> enqueueForBatch(boolean anonymous, String message, String toUser) {
+        if (!pendingBatch.isEmpty()
+                && !(anonymous == pendingBatchAnonymous && currentRoom.equals(pendingBatchRoom))) {
+            flushPendingBatch(); // 切换匿名模式或房间后不能与之前的消息合并
+        }
+        PendingSend pendingSend = new PendingSend(message, toUser);
+        pendingBatch.add(pendingSend);
+        pendingBatchAnonymous = anonymous;
+        pendingBatchRoom = currentRoom;
+        if (pendingBatch.size() >= SEND_MAX_BATCH) {
+            flushPendingBatch();
+        } else if (pendingBatch.size() == 1) {
+            CompletableFuture.runAsync(this::flushPendingBatch,
+                    CompletableFuture.delayedExecutor(SEND_COALESCE_MS, TimeUnit.MILLISECONDS));
         }
+        return pendingSend.result;
     }
 
-    public boolean sendMessage(String message, String toUser) {
-        try {
-            URL url = new URL(SERVER_URL + "/send");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
+    private synchronized void flushPendingBatch() {
+        if (pendingBatch.isEmpty()) {
+            return;
+        }
+        List<PendingSend> batch = pendingBatch;
+        pendingBatch = new ArrayList<>();
+
+        JsonArray messages = new JsonArray();
+        for (PendingSend pendingSend : batch) {
+            JsonObject entry = new JsonObject();
+            entry.addProperty("message", pendingSend.message);
+            if (pendingSend.toUser != null) {
+                entry.addProperty("toUser", pendingSend.toUser);
+            }
+            messages.add(entry);
+        }
+        JsonObject body = new JsonObject();
+        body.addProperty("room", pendingBatchRoom);
+        if (pendingBatchAnonymous) {
+            body.addProperty("anonymous", true);
+        }
+        body.add("messages", messages);
+
+        lastSend = lastSend.thenCompose(previous -> {
+            System.out.println("Sending batch of " + batch.size() + " messages");
+            HttpRequest request = newRequest("/sendBatch")
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                    .build();
+            return send(request);
+        }).thenApply(response -> {
+            System.out.println("Send batch response: " + response);
+            return response.getAsJsonObject().get("success").getAsBoolean();
+        }).exceptionally(e -> {
+            e.printStackTrace();
+            return false;
+        });
+        lastSend.thenAccept(success -> {
+            for (PendingSend pendingSend : batch) {
+                pendingSend.result.complete(success);
+            }
+        });
+    }
 
-            String usernameToUse = isAnonymous ? "Anonymous" : username;
-            String urlParameters = "username=" + URLEncoder.encode(usernameToUse, "UTF-8") +
-                    "&message=" + URLEncoder.encode(message, "UTF-8");
+    // 服务器返回的错误状态，轮询线程据此区分可重试的故障与需要重新登录或离开房间的情况
+    static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
 
-            System.out.println("Sending message: " + message);
+        HttpStatusException(int status, String path) {
+            super("HTTP " + status + " from " + path);
+            this.status = status;
+        }
 
-            try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
-                out.writeBytes(urlParameters);
-                out.flush();
-            }
+        int getStatus() {
+            return status;
+        }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    responseBuilder.append(line);
+        // 在异常链中查找错误状态，没有时返回 0
+        static int of(Throwable e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof HttpStatusException) {
+                    return ((HttpStatusException) cause).getStatus();
                 }
             }
+            return 0;
+        }
+    }
 
-            String response = responseBuilder.toString();
-            System.out.println("Send message response: " + response);
+    static class PendingSend {
+        final String message;
+        final String toUser;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
 
-            JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
-            return jsonResponse.get("success").getAsBoolean();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+        PendingSend(String message, String toUser) {
+            this.message = message;
+            this.toUser = toUser;
         }
     }
 
-    public List<Map<String, String>> getMessages(int messageCount) {
-        try {
-            URL url = new URL(SERVER_URL + "/messages?count=" + messageCount);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-
-            System.out.println("Requesting messages from count: " + messageCount);
+    // 获取序号 afterSeq 之后的消息
+    public List<Map<String, String>> getMessages(long afterSeq) {
+        return join(fetchMessagesAsync(afterSeq, 0), new ArrayList<>());
+    }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
+    // waitMillis > 0 时使用长轮询：服务器挂起请求直到有新消息或超时。
+    // 游标同时作为 If-None-Match 发送，没有新消息时服务器返回不带响应体的 304，游标保持不变。
+    CompletableFuture<List<Map<String, String>>> fetchMessagesAsync(long afterSeq, long waitMillis) {
+        System.out.println("Requesting messages since seq: " + afterSeq);
+        HttpRequest request = newRequest("/messages?since=" + afterSeq + "&wait=" + waitMillis
+                        + "&room=" + encode(currentRoom))
+                .timeout(REQUEST_TIMEOUT.plusMillis(waitMillis))
+                .header("Accept-Encoding", "gzip") // 补齐大量积压消息时由服务器压缩
+                .header("If-None-Match", "\"" + afterSeq + "\"")
+                .GET()
+                .build();
+        return send(request).thenApply(response -> {
+            if (response == null) {
+                return new ArrayList<>(); // 304：没有新消息
             }
+            List<Map<String, String>> messages = parseMessagesResponse(response.getAsJsonObject());
+            System.out.println("Received " + messages.size() + " messages, totalMessages: " + serverMessageCount);
+            return messages;
+        });
+    }
 
-            String response = responseBuilder.toString();
-            System.out.println("Get messages response: " + response);
-
-            JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
-            List<Map<String, String>> messages = new ArrayList<>();
-            for (var jsonElement : jsonResponse.get("newMessages").getAsJsonArray()) {
-                messages.add(new Gson().fromJson(jsonElement, Map.class));
-            }
+    // 解析 /messages 响应并推进游标
+    List<Map<String, String>> parseMessagesResponse(String response) {
+        return parseMessagesResponse(JsonParser.parseString(response).getAsJsonObject());
+    }
 
-            return messages;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new ArrayList<>();
+    @SuppressWarnings("unchecked")
+    private List<Map<String, String>> parseMessagesResponse(JsonObject jsonResponse) {
+        List<Map<String, String>> messages = new ArrayList<>();
+        for (JsonElement jsonElement : jsonResponse.get("newMessages").getAsJsonArray()) {
+            messages.add(GSON.fromJson(jsonElement, Map.class));
         }
+        serverMessageCount = jsonResponse.get("totalMessages").getAsLong();
+
+        return messages;
     }
 
+    @SuppressWarnings("unchecked")
     public List<String> getActiveUsers() {
-        try {
-            URL url = new URL(SERVER_URL + "/list");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
+        System.out.println("Requesting list of active users");
+        BinaryClient connection = binaryClient;
+        if (connection != null) {
+            return join(connection.onlineUsers().thenApply(BinaryClient.Reply::getUsers), new ArrayList<>());
+        }
+        HttpRequest request = newRequest("/list")
+                .GET()
+                .build();
+        return join(send(request).thenApply(response -> {
+            System.out.println("List active users response: " + response);
+            return (List<String>) GSON.fromJson(response, List.class);
+        }), new ArrayList<>());
+    }
 
-            System.out.println("Requesting list of active users");
+    public boolean logout() {
+        flushPendingBatch();
+        join(lastSend, false); // 先等待排队中的消息发送完成
+        stopHeartbeat();
+        if (messageCache != null) {
+            messageCache.close();
+        }
+        System.out.println("Logging out username: " + username);
+        BinaryClient connection = binaryClient;
+        if (connection != null) {
+            binaryClient = null;
+            connection.close(); // 服务器在连接断开时结束会话
+            sessionToken = null;
+            return true;
+        }
+        boolean success = join(postForm("/logout", "").thenApply(response -> {
+            System.out.println("Logout response: " + response);
+            return response.getAsJsonObject().get("success").getAsBoolean();
+        }), false);
+        sessionToken = null;
+        return success;
+    }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    responseBuilder.append(line);
-                }
+    private static JsonElement parseJson(byte[] bytes, boolean gzip) {
+        try {
+            InputStream in = new ByteArrayInputStream(bytes);
+            if (gzip) {
+                in = new GZIPInputStream(in, 8192);
             }
+            return JsonParser.parseReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            String response = responseBuilder.toString();
-            System.out.println("List active users response: " + response);
+    // 已登录时附带会话令牌，服务器据此刷新在线状态
+    private HttpRequest.Builder newRequest(String pathAndQuery) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(SERVER_URL + pathAndQuery))
+                .timeout(REQUEST_TIMEOUT);
+        String token = sessionToken;
+        if (token != null) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder;
+    }
 
-            List<String> activeUsers = new Gson().fromJson(response, List.class);
-            return activeUsers;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return new ArrayList<>();
+    private CompletableFuture<JsonElement> postForm(String path, String urlParameters) {
+        HttpRequest request = newRequest(path)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(urlParameters, StandardCharsets.UTF_8))
+                .build();
+        return send(request);
+    }
+
+    private static CompletableFuture<JsonElement> send(HttpRequest request) {
+        return send(request, 0);
+    }
+
+    private static CompletableFuture<JsonElement> send(HttpRequest request, int attempt) {
+        return HTTP_CLIENT.sendAsync(request, JSON_BODY_HANDLER).thenCompose(response -> {
+            int status = response.statusCode();
+            if ((status == 429 || status == 503) && attempt < MAX_RETRIES) {
+                long delayMillis = retryDelayMillis(response.headers().firstValue("Retry-After").orElse(null),
+                        attempt);
+                System.out.println("HTTP " + status + " from " + request.uri().getPath() + ", retrying in "
+                        + delayMillis + " ms");
+                return CompletableFuture.runAsync(() -> { },
+                        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS))
+                        .thenCompose(ignored -> send(request, attempt + 1));
+            }
+            if (status >= 400) {
+                throw new CompletionException(new HttpStatusException(status, request.uri().getPath()));
+            }
+            return CompletableFuture.completedFuture(response.body());
+        });
+    }
+
+    // 不早于服务器提示的时间，并随重试次数翻倍
+    static long retryDelayMillis(String retryAfter, int attempt) {
+        long hintMillis = 1000;
+        if (retryAfter != null) {
+            try {
+                hintMillis = TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+            } catch (NumberFormatException e) {
+                // HTTP 日期格式的提示按默认值处理
+            }
         }
+        long delayMillis = Math.min(MAX_RETRY_DELAY_MS, Math.max(hintMillis, 500L << attempt));
+        return delayMillis + ThreadLocalRandom.current().nextLong(delayMillis / 2 + 1);
     }
 
-    public boolean logout() {
+    // 同步调用的包装：等待结果，失败时打印异常并返回默认值，与原先各方法的错误处理一致
+    private static <T> T join(CompletableFuture<T> future, T fallback) {
         try {
-            URL url = new URL(SERVER_URL + "/logout");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            e.printStackTrace();
+            return fallback;
+        }
+    }
 
-            String urlParameters = "username=" + URLEncoder.encode(username, "UTF-8");
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
 
-            System.out.println("Logging out username: " + username);
+    // 订阅服务器推送流，逐条接收消息；连接断开或被要求重新同步时从当前游标重连
+    private void receiveMessageStream() throws IOException {
+        // 推送流是单个长连接，继续使用 HttpURLConnection 以便用读超时检测心跳中断
+        URL url = new URL(SERVER_URL + "/stream?since=" + serverMessageCount + "&room=" + encode(currentRoom));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        streamConnection = connection;
+        connection.setRequestMethod("GET");
+        connection.setReadTimeout(STREAM_READ_TIMEOUT_MS);
+        String token = sessionToken;
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token); // 连接期间由服务器心跳刷新会话
+        }
 
-            try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
-                out.writeBytes(urlParameters);
-                out.flush();
+        System.out.println("Opening message stream since seq: " + serverMessageCount);
+        int status = connection.getResponseCode();
+        if (status == 429 || status == 503) {
+            long delayMillis = retryDelayMillis(connection.getHeaderField("Retry-After"), 0);
+            System.out.println("Stream rejected with HTTP " + status + ", reconnecting in " + delayMillis + " ms");
+            connection.disconnect();
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return;
+        }
+        if (status >= 400) {
+            connection.disconnect();
+            throw new HttpStatusException(status, url.getPath());
+        }
 
-            StringBuilder responseBuilder = new StringBuilder();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    responseBuilder.append(line);
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+            String eventType = "message";
+            String eventId = null;
+            StringBuilder data = new StringBuilder();
+            String line;
+            while (polling && (line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if ("resync".equals(eventType)) {
+                        System.out.println("Stream requested resync");
+                        return;
+                    }
+                    if (data.length() > 0) {
+                        displayMessage(toChatMessage(GSON.fromJson(data.toString(), Map.class)));
+                        if (eventId != null) {
+                            serverMessageCount = Long.parseLong(eventId);
+                        }
+                    }
+                    eventType = "message";
+                    eventId = null;
+                    data.setLength(0);
+                } else if (line.startsWith("event:")) {
+                    eventType = line.substring(6).trim();
+                } else if (line.startsWith("id:")) {
+                    eventId = line.substring(3).trim();
+                } else if (line.startsWith("data:")) {
+                    data.append(line.substring(5).trim());
                 }
+                // 以 ':' 开头的心跳注释直接忽略
             }
+        }
+    }
 
-            String response = responseBuilder.toString();
-            System.out.println("Logout response: " + response);
+    // 二进制传输：订阅当前房间后消息由读取线程推送，这里只等待连接断开；断开后重新连接登录，从游标续订
+    private void receiveBinary() throws Exception {
+        BinaryClient connection = binaryClient;
+        if (connection == null) {
+            Thread.sleep(POLL_RETRY_DELAY_MS); // 已退出登录
+            return;
+        }
+        if (connection.isClosed()) {
+            System.out.println("Binary connection lost, logging in again");
+            if (!login(username, password)) {
+                Thread.sleep(POLL_RETRY_DELAY_MS);
+                return;
+            }
+            connection = binaryClient;
+        }
+        String room = currentRoom;
+        BinaryClient.Reply reply = connection.subscribe(room, serverMessageCount)
+                .get(REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        if (!reply.isSuccess()) {
+            throw new IOException("Cannot subscribe to room " + room + ": " + reply.getError());
+        }
+        System.out.println("Subscribed to room " + room + " since seq: " + serverMessageCount);
+        try {
+            connection.closeFuture().get();
+        } finally {
+            if (!connection.isClosed()) {
+                connection.unsubscribe(room); // 停止接收或切换房间
+            }
+        }
+    }
 
-            JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
-            return jsonResponse.get("success").getAsBoolean();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+    // 显示并缓存一条收到的消息。服务器只返回公共消息和发给自己的私聊消息，无需再在本地过滤
+    private void displayMessage(ChatMessage chatMessage) {
+        clientGUI.appendMessage(chatMessage.getUsername() + ": " + chatMessage.getMessage());
+        lastReceived = chatMessage;
+        MessageCache cache = messageCache;
+        if (cache != null) {
+            cache.append(currentRoom, chatMessage);
+        }
+    }
+
+    // Gson 把 JSON 数值解析为 Double
+    private static ChatMessage toChatMessage(Map<?, ?> msg) {
+        return new ChatMessage(((Number) msg.get("seq")).longValue(), ((Number) msg.get("timestamp")).longValue(),
+                (String) msg.get("username"), (String) msg.get("message"), (String) msg.get("toUser"));
+    }
+
+    // 先显示本地缓存的该房间历史，从缓存的游标开始接收，只拉取之后的消息；缓存由接收线程在续传前核对。返回起始游标
+    private long restoreCachedHistory(String room) {
+        if (CACHE_MAX_MESSAGES <= 0) {
+            return 0;
+        }
+        if (messageCache == null) {
+            messageCache = MessageCache.open(CACHE_DIR, SERVER_URL, username, CACHE_MAX_MESSAGES);
         }
+        List<ChatMessage> cached = messageCache.load(room);
+        if (cached.isEmpty()) {
+            return 0;
+        }
+        for (ChatMessage chatMessage : cached) {
+            clientGUI.appendMessage(chatMessage.getUsername() + ": " + chatMessage.getMessage());
+        }
+        ChatMessage last = cached.get(cached.size() - 1);
+        System.out.println("Restored " + cached.size() + " cached messages of room " + room + " up to seq: "
+                + last.getSeq());
+        lastReceived = last;
+        historyCheck = last;
+        return last.getSeq();
+    }
+
+    // 序号只在一个房间的历史内有效：服务器不带消息日志重启后会从 1 重新编号。核对服务器上该序号的消息仍是
+    // 本地收到的那一条（序号和时间戳都相同），否则丢弃缓存从头接收；该消息已被服务器淘汰、无法核对时同样从头接收
+    private void verifyHistory(ChatMessage expected) {
+        HttpRequest request = newRequest("/messages?since=" + (expected.getSeq() - 1) + "&limit=1&room="
+                + encode(currentRoom)).GET().build();
+        JsonArray messages = send(request).join().getAsJsonObject().get("newMessages").getAsJsonArray();
+        JsonObject first = messages.size() > 0 ? messages.get(0).getAsJsonObject() : null;
+        if (first == null || first.get("seq").getAsLong() != expected.getSeq()
+                || first.get("timestamp").getAsLong() != expected.getTimestamp()) {
+            System.out.println("Server history of room " + currentRoom + " no longer matches seq "
+                    + expected.getSeq() + ", reloading");
+            clientGUI.appendMessage("Server history of room " + currentRoom + " was reset, reloading");
+            if (messageCache != null) {
+                messageCache.clear(currentRoom);
+            }
+            lastReceived = null;
+            serverMessageCount = 0;
+        }
+        historyCheck = null;
     }
 
     private void startMessagePolling() {
-        scheduler = Executors.newScheduledThreadPool(1);
-        scheduler.scheduleAtFixedRate(() -> {
+        polling = true;
+        pollingThread = new Thread(() -> {
+            while (polling) {
+                try {
+                    ChatMessage expected = historyCheck;
+                    if (expected != null) {
+                        verifyHistory(expected);
+                    }
+                    if (BINARY_TRANSPORT) {
+                        receiveBinary();
+                        historyCheck = lastReceived; // 连接断开：服务器可能已重启，续传前先核对
+                    } else if ("stream".equals(RECEIVE_MODE)) {
+                        receiveMessageStream();
+                        historyCheck = lastReceived;
+                    } else {
+                        // 长轮询：有新消息时立即返回，否则由服务器挂起到超时
+                        CompletableFuture<List<Map<String, String>>> fetch = fetchMessagesAsync(serverMessageCount,
+                                LONG_POLL_WAIT_MS);
+                        currentFetch = fetch;
+                        for (Map<String, String> msg : fetch.join()) {
+                            displayMessage(toChatMessage(msg));
+                        }
+                    }
+                } catch (Exception e) {
+                    if (!polling) {
+                        break;
+                    }
+                    int status = HttpStatusException.of(e);
+                    if (status == 401 && login(username, password)) {
+                        continue; // 会话已失效（例如服务器重启），重新登录后立即续传
+                    }
+                    if ((status == 403 || status == 404) && !"lobby".equals(currentRoom)) {
+                        if (!recoverRoomAccess(currentRoom, status)) {
+                            break; // 已提示用户，回到大厅后由新的轮询线程接收
+                        }
+                        continue;
+                    }
+                    e.printStackTrace();
+                    if (historyCheck == null) {
+                        historyCheck = lastReceived;
+                    }
+                    try {
+                        Thread.sleep(POLL_RETRY_DELAY_MS); // 连接失败时退避，避免空转
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+        }, "message-poller");
+        pollingThread.setDaemon(true);
+        pollingThread.start();
+    }
+
+    private void stopMessagePolling() {
+        polling = false;
+        CompletableFuture<?> fetch = currentFetch;
+        if (fetch != null) {
+            fetch.cancel(true);
+        }
+        HttpURLConnection connection = streamConnection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+        if (pollingThread != null) {
+            pollingThread.interrupt();
             try {
-                List<Map<String, String>> newMessages = getMessages(clientGUI.getDisplayedMessageCount());
-                for (Map<String, String> msg : newMessages) {
-                    String messageUsername = msg.get("username");
-                    String messageContent = msg.get("message");
+                pollingThread.join(2000); // 等旧线程退出，避免它在切换房间后继续推进游标
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
-                    // 过滤私聊信息
-                    if (messageContent.startsWith("@") && !messageContent.startsWith("@" + username + " ")) {
-                        continue;
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> listRooms() {
+        HttpRequest request = newRequest("/rooms").GET().build();
+        return join(send(request).thenApply(response -> (List<Map<String, Object>>) GSON.fromJson(response,
+                List.class)), new ArrayList<>());
+    }
+
+    // 在当前房间的聊天记录中检索，返回按时间从新到旧的结果
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> searchMessages(String query) {
+        HttpRequest request = newRequest("/search?q=" + encode(query) + "&room=" + encode(currentRoom)
+                + "&limit=20").GET().build();
+        return join(send(request).thenApply(response -> {
+            JsonObject jsonResponse = response.getAsJsonObject();
+            if (!jsonResponse.has("results")) {
+                return new ArrayList<Map<String, Object>>();
+            }
+            return (List<Map<String, Object>>) GSON.fromJson(jsonResponse.get("results"), List.class);
+        }), new ArrayList<>());
+    }
+
+    // action 为 create、join 或 leave，成功时返回服务器规范化后的房间名，失败时返回 null
+    private String changeRoomMembership(String action, String room) {
+        return join(postForm("/rooms/" + action, "room=" + encode(room))
+                .thenApply(response -> {
+                    JsonObject jsonResponse = response.getAsJsonObject();
+                    if (!jsonResponse.get("success").getAsBoolean()) {
+                        clientGUI.appendMessage("Cannot " + action + " room " + room + ": "
+                                + jsonResponse.get("error").getAsString());
+                        return null;
                     }
+                    return jsonResponse.get("room").getAsString();
+                }), null);
+    }
 
-                    clientGUI.appendMessage(messageUsername + ": " + messageContent);
+    // 失去房间的访问权限：成员资格丢失（例如服务器重启后）时重新加入一次；房间已不存在或仍被拒绝时不再重试，
+    // 提示用户并回到大厅。返回 true 表示已恢复，可以继续接收
+    private boolean recoverRoomAccess(String room, int status) {
+        if (status == 403 && changeRoomMembership("join", room) != null) {
+            System.out.println("Rejoined room " + room);
+            return true;
+        }
+        clientGUI.appendMessage("Lost access to room " + room + " (HTTP " + status + "), returning to the lobby");
+        // 切换房间会等待轮询线程退出，不能在轮询线程上执行
+        CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                if (room.equals(currentRoom)) {
+                    roomCursors.remove(room);
+                    switchRoom("lobby");
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-        }, 0, 2, TimeUnit.SECONDS); // 每2秒轮询一次
+        });
+        return false;
     }
 
-    private void stopMessagePolling() {
-        if (scheduler != null) {
-            scheduler.shutdown();
+    // 切换当前房间：停止旧房间的接收，保存其游标，从新房间上次的位置（首次进入时从头）开始接收
+    private synchronized void switchRoom(String room) {
+        flushPendingBatch();
+        boolean wasPolling = polling;
+        stopMessagePolling();
+        roomCursors.put(currentRoom, serverMessageCount);
+        ChatMessage last = lastReceived;
+        if (last != null) {
+            roomLastReceived.put(currentRoom, last);
+        }
+        currentRoom = room;
+        clientGUI.appendMessage("Now chatting in room: " + room);
+        Long cursor = roomCursors.get(room);
+        if (cursor != null) {
+            serverMessageCount = cursor;
+            lastReceived = roomLastReceived.get(room);
+            historyCheck = lastReceived;
+        } else {
+            lastReceived = null;
+            historyCheck = null;
+            serverMessageCount = restoreCachedHistory(room); // 本次登录首次进入：先显示本地缓存
+        }
+        if (wasPolling) {
+            startMessagePolling();
         }
     }
 
     private void handleSystemCommand(String command) {
-        switch (command.toLowerCase()) {
+        String[] parts = command.split("\\s+", 2);
+        String argument = parts.length > 1 ? parts[1].trim() : "";
+        switch (parts[0].toLowerCase()) {
+            case "rooms":
+                StringBuilder roomList = new StringBuilder("Rooms:");
+                for (Map<String, Object> room : listRooms()) {
+                    roomList.append(' ').append(room.get("name")).append('(')
+                            .append(((Number) room.get("members")).intValue()).append(')');
+                    if (Boolean.TRUE.equals(room.get("joined"))) {
+                        roomList.append('*');
+                    }
+                }
+                clientGUI.appendMessage(roomList + ", current: " + currentRoom);
+                break;
+            case "create":
+            case "join": {
+                if (isAnonymous) {
+                    clientGUI.appendMessage("Anonymous mode is only available in the lobby, turn it off first");
+                    break;
+                }
+                String room = changeRoomMembership(parts[0].toLowerCase(), argument);
+                if (room != null) {
+                    switchRoom(room);
+                }
+                break;
+            }
+            case "leave":
+                if ("lobby".equals(currentRoom)) {
+                    clientGUI.appendMessage("Already in the lobby");
+                } else if (changeRoomMembership("leave", currentRoom) != null) {
+                    roomCursors.remove(currentRoom);
+                    switchRoom("lobby");
+                }
+                break;
+            case "search":
+                List<Map<String, Object>> results = searchMessages(argument);
+                clientGUI.appendMessage("Search \"" + argument + "\": " + results.size() + " result(s)");
+                for (int i = results.size() - 1; i >= 0; i--) {
+                    Map<String, Object> msg = results.get(i);
+                    long timestamp = ((Number) msg.get("timestamp")).longValue();
+                    clientGUI.appendMessage("  [" + SEARCH_TIME_FORMAT.format(Instant.ofEpochMilli(timestamp)) + "] "
+                            + msg.get("username") + ": " + msg.get("message"));
+                }
+                break;
             case "list":
                 List<String> activeUsers = getActiveUsers();
                 clientGUI.appendMessage("Active users: " + String.join(", ", activeUsers));
@@ -232,6 +861,10 @@ public class Client {
                 clientGUI.appendMessage("Anonymous mode: " + (isAnonymous ? "ON" : "OFF"));
                 break;
             case "anonymous":
+                if (!isAnonymous && !"lobby".equals(currentRoom)) {
+                    clientGUI.appendMessage("Anonymous mode is only available in the lobby");
+                    break;
+                }
                 isAnonymous = !isAnonymous;
                 clientGUI.appendMessage("Anonymous mode toggled to: " + (isAnonymous ? "ON" : "OFF"));
                 break;
@@ -257,6 +890,7 @@ public class Client {
                 if (loginSuccess) {
                     System.out.println("Login successful. Initializing chat GUI...");
                     clientGUI.showChatGUI();
+                    client.serverMessageCount = client.restoreCachedHistory(client.currentRoom);
                     client.startMessagePolling(); // 开始轮询消息
 
                     while (true) {
@@ -266,13 +900,14 @@ public class Client {
                         if (message.startsWith("@@")) {
                             String command = message.substring(2).trim();
                             client.handleSystemCommand(command);
-                        } else if (message.startsWith("@")) {
-                            client.sendMessage(message, null);
-                            clientGUI.appendMessage("Private message to " + message.substring(1, message.indexOf(' '))
+                        } else if (message.startsWith("@") && message.indexOf(' ') > 1) {
+                            String toUser = message.substring(1, message.indexOf(' '));
+                            client.sendMessageAsync(message, toUser);
+                            clientGUI.appendMessage("Private message to " + toUser
                                     + ": " + message.substring(message.indexOf(' ') + 1));
                         } else {
-                            client.sendMessage(message, null);
-                            clientGUI.appendMessage(client.username + ": " + message);
+                            // 广播消息由长轮询立即回显，不再本地追加以免重复显示
+                            client.sendMessageAsync(message, null);
                         }
 
                         if (message.equalsIgnoreCase("exit")) {
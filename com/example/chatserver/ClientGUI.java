@@ -3,15 +3,37 @@ package com.example.chatserver;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
+import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientGUI {
+    // 聊天窗口最多保留的消息条数，更早的消息被丢弃，内存占用不随运行时间增长
+    private static final int MAX_VIEW_MESSAGES = Integer.getInteger("chat.view.maxMessages", 5000);
+    private static final int FLUSH_INTERVAL_MS = 16; // 新消息攒够一帧再统一刷新界面
+
     private JFrame loginFrame;
     private JFrame chatFrame;
     private JTextField usernameField;
     private JPasswordField passwordField;
-    private JTextArea chatArea;
+    private JList<String> chatList;
+    private JScrollPane chatScrollPane;
+    private final MessageListModel chatModel = new MessageListModel(MAX_VIEW_MESSAGES);
+    // 其他线程追加的消息先放入队列，由 EDT 上的定时器批量取出
+    private final ConcurrentLinkedQueue<String> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> flushPendingMessages());
     private JTextField messageField;
     private String username;
     private String password;
@@ -20,6 +42,7 @@ public class ClientGUI {
     private String message;
 
     public ClientGUI() {
+        flushTimer.setRepeats(false);
         initializeLoginGUI();
     }
 
@@ -69,8 +92,9 @@ public class ClientGUI {
 
         JPanel mainPanel = new JPanel(new BorderLayout());
 
-        chatArea = createTextArea();
-        mainPanel.add(new JScrollPane(chatArea), BorderLayout.CENTER);
+        chatList = createMessageList();
+        chatScrollPane = new JScrollPane(chatList);
+        mainPanel.add(chatScrollPane, BorderLayout.CENTER);
 
         JPanel inputPanel = new JPanel(new BorderLayout());
         messageField = createTextField();
@@ -141,13 +165,57 @@ public class ClientGUI {
         return passwordField;
     }
 
-    private JTextArea createTextArea() {
-        JTextArea textArea = new JTextArea();
-        textArea.setEditable(false);
-        textArea.setFont(new Font("Arial", Font.PLAIN, 16));
-        textArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
-        textArea.setBackground(new Color(240, 248, 255));
-        return textArea;
+    // JList 只渲染可见的行。过长的消息自动换行，各行高度按内容计算后缓存在模型中，布局时不必逐条重新排版
+    private JList<String> createMessageList() {
+        JList<String> list = new JList<>(chatModel);
+        list.setFont(new Font("Arial", Font.PLAIN, 16));
+        list.setFixedCellWidth(1); // 小于视口宽度时列表自动撑满视口，消息按视口宽度换行
+        list.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        list.setBackground(new Color(240, 248, 255));
+        list.setCellRenderer(new MessageCellRenderer(chatModel));
+        list.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                chatModel.widthChanged(); // 宽度变化后按新宽度重新换行
+            }
+        });
+        // 选中的消息可用 Ctrl+C 或右键菜单复制，多条消息以换行分隔
+        JPopupMenu popupMenu = new JPopupMenu();
+        JMenuItem copyItem = new JMenuItem("Copy");
+        copyItem.addActionListener(e -> copySelectedMessages(list));
+        popupMenu.add(copyItem);
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                showPopup(e);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                showPopup(e);
+            }
+
+            private void showPopup(MouseEvent e) {
+                if (!e.isPopupTrigger()) {
+                    return;
+                }
+                int index = list.locationToIndex(e.getPoint());
+                if (index >= 0 && !list.isSelectedIndex(index)) {
+                    list.setSelectedIndex(index);
+                }
+                copyItem.setEnabled(!list.isSelectionEmpty());
+                popupMenu.show(list, e.getX(), e.getY());
+            }
+        });
+        return list;
+    }
+
+    private void copySelectedMessages(JList<String> list) {
+        List<String> selected = list.getSelectedValuesList();
+        if (!selected.isEmpty()) {
+            StringSelection selection = new StringSelection(String.join("\n", selected));
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, selection);
+        }
     }
 
     private JPanel createLabeledPanel(String labelText, JComponent component) {
@@ -197,8 +265,43 @@ public class ClientGUI {
         }
     }
 
+    // 可在任意线程调用：消息先入队，每帧最多触发一次 EDT 刷新
     public void appendMessage(String message) {
-        chatArea.append(message + "\n");
+        pendingMessages.add(message);
+        // EDT 繁忙时队列也不超过窗口容量，多出的最旧消息反正会被淘汰
+        if (pendingCount.incrementAndGet() > MAX_VIEW_MESSAGES && pendingMessages.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(flushTimer::restart);
+        }
+    }
+
+    private void flushPendingMessages() {
+        flushScheduled.set(false); // 先清除标记，之后到达的消息会安排下一次刷新
+        List<String> batch = new ArrayList<>();
+        String message;
+        while ((message = pendingMessages.poll()) != null) {
+            pendingCount.decrementAndGet();
+            batch.add(message);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean atBottom = isScrolledToBottom();
+        chatModel.addAll(batch);
+        if (atBottom && chatList != null) {
+            chatList.ensureIndexIsVisible(chatModel.getSize() - 1); // 用户向上翻看历史时不自动滚动
+        }
+    }
+
+    private boolean isScrolledToBottom() {
+        if (chatScrollPane == null) {
+            return true;
+        }
+        JScrollBar scrollBar = chatScrollPane.getVerticalScrollBar();
+        return scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum()
+                - chatList.getFontMetrics(chatList.getFont()).getHeight();
     }
 
     public String getMessage() throws InterruptedException {
@@ -208,8 +311,152 @@ public class ClientGUI {
         return message;
     }
 
-    public int getDisplayedMessageCount() {
-        return chatArea.getLineCount();
+    // 定长环形缓冲区实现的列表模型：超过容量时丢弃最旧的消息，每批只触发一次删除和一次插入事件
+    static class MessageListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] ring;
+        private final int[] heights; // 各条消息在 heightWidth 宽度下的行高，0 表示尚未计算
+        private int heightWidth = -1;
+        private int head = 0;
+        private int size = 0;
+
+        MessageListModel(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Message view capacity must be positive: " + capacity);
+            }
+            this.ring = new String[capacity];
+            this.heights = new int[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        // 宽度与缓存时不同则作废全部行高
+        int getCachedHeight(int index, int width) {
+            if (width != heightWidth) {
+                Arrays.fill(heights, 0);
+                heightWidth = width;
+            }
+            return heights[(head + index) % ring.length];
+        }
+
+        void setCachedHeight(int index, int height) {
+            heights[(head + index) % ring.length] = height;
+        }
+
+        // 通知列表重新布局，各行按新宽度重新计算高度
+        void widthChanged() {
+            if (size > 0) {
+                fireContentsChanged(this, 0, size - 1);
+            }
+        }
+
+        // 需在 EDT 上调用
+        void addAll(List<String> messages) {
+            int skip = Math.max(0, messages.size() - ring.length); // 单批超过容量时只保留最后的部分
+            int adding = messages.size() - skip;
+            int evicted = Math.max(0, size + adding - ring.length);
+            if (evicted > 0) {
+                for (int i = 0; i < evicted; i++) {
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                }
+                size -= evicted;
+                fireIntervalRemoved(this, 0, evicted - 1);
+            }
+            int firstAdded = size;
+            for (int i = skip; i < messages.size(); i++) {
+                int slot = (head + size) % ring.length;
+                ring[slot] = messages.get(i);
+                heights[slot] = 0;
+                size++;
+            }
+            if (adding > 0) {
+                fireIntervalAdded(this, firstAdded, size - 1);
+            }
+        }
+    }
+
+    // 自动换行的消息单元格。命中行高缓存时只记下文本，到真正绘制时才设置：列表重新布局要询问每一行的高度，
+    // 而 setText 和换行排版对数千条消息逐条执行的开销远大于只绘制可见的几十行
+    static class MessageCellRenderer extends JTextArea implements ListCellRenderer<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final MessageListModel model;
+        private String pendingText; // 尚未设置到文本区中的内容，为 null 时文本已是最新
+        private int height;
+        private Font singleLineFont; // singleLineHeight 对应的字体
+        private int singleLineHeight;
+
+        MessageCellRenderer(MessageListModel model) {
+            this.model = model;
+            setLineWrap(true);
+            setWrapStyleWord(true);
+            setBorder(BorderFactory.createEmptyBorder(2, 0, 2, 0));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends String> list, String value, int index,
+                boolean isSelected, boolean cellHasFocus) {
+            setFont(list.getFont());
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+            Insets insets = list.getInsets();
+            int width = list.getWidth() - insets.left - insets.right;
+            height = width > 0 ? model.getCachedHeight(index, width) : 0;
+            if (height > 0) {
+                pendingText = value;
+                return this;
+            }
+            if (width > 0 && value.indexOf('\n') < 0 && getFontMetrics(getFont()).stringWidth(value) < width - 2) {
+                height = singleLineHeight(); // 多数消息一行放得下，不必排版
+                model.setCachedHeight(index, height);
+                pendingText = value;
+                return this;
+            }
+            pendingText = null;
+            setText(value);
+            if (width > 0) {
+                setSize(width, Short.MAX_VALUE);
+                height = super.getPreferredSize().height;
+                model.setCachedHeight(index, height);
+            } else {
+                height = super.getPreferredSize().height; // 尚未布局，先按不换行计算
+            }
+            return this;
+        }
+
+        private int singleLineHeight() {
+            if (!getFont().equals(singleLineFont)) {
+                setText("");
+                setSize(Short.MAX_VALUE, Short.MAX_VALUE);
+                singleLineHeight = super.getPreferredSize().height;
+                singleLineFont = getFont();
+            }
+            return singleLineHeight;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(1, height);
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            if (pendingText != null) {
+                setText(pendingText);
+                pendingText = null;
+            }
+            super.paint(g);
+        }
     }
 
     public static void main(String[] args) {
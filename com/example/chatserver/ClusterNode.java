@@ -0,0 +1,793 @@
+package com.example.chatserver;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// 集群：多个 ChatServer 进程组成一个集群，其中一个为主节点，其余为从节点。
+// 所有写入（发送、批量发送、建房间、加入或离开房间）都在主节点执行，由主节点分配各房间的序号；从节点把写请求
+// 通过内部链路转发给主节点，主节点把每条被接受的消息按序复制给所有从节点，从节点以相同的序号写入本地的存储和日志，
+// 因此连接到任一节点的客户端看到的消息流完全相同，读取和推送流都由本节点直接提供。
+// 在线状态由各节点上报给主节点合并后再广播，上线、下线通知只由主节点在用户第一次上线、最后一次下线时发出。
+// 内部链路为一条 TCP 连接上的二进制帧：4 字节长度 + 1 字节类型 + 各字段，字符串为 4 字节长度（-1 表示 null）+ UTF-8。
+// 链路上的写请求不再经过登录、成员和限流检查，因此主节点默认只监听本机地址；从节点须先通过共享密钥认证：
+// 主节点发出随机数，从节点在 HELLO 中附上以 chat.cluster.secret 为密钥的 HMAC-SHA256，不符时断开连接。
+public class ClusterNode {
+    // 主节点接受连接后发出的第一帧
+    private static final byte CHALLENGE = 9; // 随机数
+    // 从节点发往主节点
+    private static final byte HELLO = 1; // 认证码，节点名，房间数，[房间名，本地最新序号]...
+    private static final byte APPEND = 2; // 请求号，房间名，用户名，条数，[内容，私聊对象]...
+    private static final byte ROOM_ACTION = 3; // 请求号，create/join/leave，房间名，用户名
+    // 双向：节点名，用户名，状态
+    private static final byte PRESENCE = 4;
+    // 主节点发往从节点
+    private static final byte RESULT = 5; // 请求号，错误，房间名，首条序号，末条序号，是否已持久化
+    private static final byte ROOM = 6; // 房间名
+    private static final byte MEMBERSHIP = 7; // 房间名，用户名，是否加入
+    private static final byte MESSAGE = 8; // 房间名，序号，时间戳，用户名，私聊对象，内容
+
+    public static final int OFFLINE = 0;
+    public static final int ONLINE = 1;
+    public static final int EXPIRED = 2; // 会话超时下线，只影响通知的措辞
+
+    static final int MAX_FRAME_BYTES = 16 * 1024 * 1024; // 单帧上限，长度为负或超过上限时断开连接
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000; // 认证完成前的读超时，未认证的连接不会一直占着线程
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final long FORWARD_TIMEOUT_MS = 5000;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final byte[] CLOSE_MARKER = new byte[0];
+
+    // 集群操作需要的服务器功能，由 ChatServer 实现
+    public interface Host {
+        // 主节点：执行从节点转发的写请求
+        Result append(String room, String username, List<MessageStore.BatchEntry> entries);
+
+        Result changeRoom(String action, String room, String username);
+
+        // 主节点：用户在整个集群中上线或下线
+        void onClusterPresence(String username, int state);
+
+        // 从节点：按主节点的通知创建房间，已存在时直接返回
+        ChatRoom openRoom(String name) throws IOException;
+
+        ChatRoom findRoom(String name);
+
+        Collection<ChatRoom> getRooms();
+    }
+
+    // 写请求的结果：error 为 null 时成功
+    public static class Result {
+        final String error;
+        final String room;
+        final long firstSeq;
+        final long lastSeq;
+        final boolean durable;
+
+        Result(String error, String room, long firstSeq, long lastSeq, boolean durable) {
+            this.error = error;
+            this.room = room;
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+            this.durable = durable;
+        }
+
+        public static Result failure(String error) {
+            return new Result(error, null, 0, 0, false);
+        }
+
+        public static Result success(String room, long firstSeq, long lastSeq, boolean durable) {
+            return new Result(null, room, firstSeq, lastSeq, durable);
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public long getFirstSeq() {
+            return firstSeq;
+        }
+
+        public long getLastSeq() {
+            return lastSeq;
+        }
+
+        public boolean isDurable() {
+            return durable;
+        }
+    }
+
+    public static final String UNAVAILABLE = "leader unavailable";
+
+    private final String nodeId;
+    private final byte[] secret; // 为 null 时不认证，只允许主节点监听本机地址
+    private final Host host;
+    private final Object roomsLock; // 与建房间、成员变化共用的锁，新从节点取快照时据此与之互斥
+    private final long maxQueuedBytes;
+    private final String leaderHost; // 为 null 时本节点为主节点
+    private final int leaderPort;
+
+    // 主节点：所有从节点的连接；从节点：到主节点的连接
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private volatile Link leaderLink;
+    // 其他节点上的在线用户（主节点还包括自己），按节点名分组；访问时持有 this 的锁
+    private final Map<String, Set<String>> presenceByNode = new ConcurrentHashMap<>();
+    private final Set<String> localOnline = new HashSet<>(); // 本节点的在线用户，访问时持有 this 的锁
+    private final Map<Long, CompletableFuture<Result>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final AtomicLong replicatedCount = new AtomicLong();
+    private final SecureRandom random = new SecureRandom();
+    private final ExecutorService requestExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "cluster-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClusterNode(String nodeId, String leaderAddress, String secret, Host host, Object roomsLock,
+            long maxQueuedBytes) {
+        this.nodeId = nodeId;
+        this.secret = secret != null && !secret.isEmpty() ? secret.getBytes(StandardCharsets.UTF_8) : null;
+        this.host = host;
+        this.roomsLock = roomsLock;
+        this.maxQueuedBytes = maxQueuedBytes;
+        if (leaderAddress != null) {
+            int colon = leaderAddress.lastIndexOf(':');
+            this.leaderHost = leaderAddress.substring(0, colon);
+            this.leaderPort = Integer.parseInt(leaderAddress.substring(colon + 1));
+        } else {
+            this.leaderHost = null;
+            this.leaderPort = 0;
+        }
+    }
+
+    public boolean isLeader() {
+        return leaderHost == null;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // 主节点在 bindAddress（为 null 时为本机回环地址）的 port 上接受从节点连接；
+    // 从节点在后台连接主节点，断开后自动重连并补齐缺失的消息
+    public void start(String bindAddress, int port) throws IOException {
+        if (isLeader()) {
+            InetAddress address = bindAddress != null ? InetAddress.getByName(bindAddress)
+                    : InetAddress.getLoopbackAddress();
+            if (secret == null && !address.isLoopbackAddress()) {
+                throw new IllegalArgumentException("集群主节点监听 " + address.getHostAddress()
+                        + " 时必须设置 chat.cluster.secret");
+            }
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(address, port));
+            startThread("cluster-accept", () -> acceptLoop(serverSocket));
+            System.out.println("集群主节点 " + nodeId + " 监听：" + address.getHostAddress() + ":" + port
+                    + (secret != null ? "，已启用共享密钥认证" : "，未设置共享密钥"));
+        } else {
+            startThread("cluster-connect", this::connectLoop);
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // ---------------------------------------------------------------- 主节点
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Link link = new Link(socket);
+                startThread("cluster-follower-reader", () -> serveFollower(link));
+            } catch (IOException e) {
+                System.out.println("接受集群连接失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serveFollower(Link link) {
+        try {
+            byte[] challenge = new byte[32];
+            random.nextBytes(challenge);
+            link.socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            startThread("cluster-follower-writer", link::writeLoop);
+            link.send(new Frame(CHALLENGE).writeBytes(challenge).toBytes());
+
+            DataInputStream frame = link.readFrame();
+            if (frame.readByte() != HELLO) {
+                throw new IOException("expected HELLO");
+            }
+            if (!MessageDigest.isEqual(authenticate(challenge), readBytes(frame))) {
+                System.out.println("拒绝集群连接 " + link.socket.getRemoteSocketAddress() + "：共享密钥不符");
+                return;
+            }
+            link.socket.setSoTimeout(0);
+            link.nodeId = readString(frame);
+            Map<String, Long> lastSeqs = new HashMap<>();
+            int roomCount = frame.readInt();
+            for (int i = 0; i < roomCount; i++) {
+                lastSeqs.put(readString(frame), frame.readLong());
+            }
+            for (Link stale : links) {
+                // 同一从节点重连时旧连接可能尚未察觉断开，先关闭它并清除其上报的在线用户
+                if (link.nodeId.equals(stale.nodeId) && links.remove(stale)) {
+                    stale.close();
+                    dropNodePresence(stale.nodeId);
+                }
+            }
+            synchronizeFollower(link, lastSeqs);
+            System.out.println("从节点 " + link.nodeId + " 已连接: " + link.socket.getRemoteSocketAddress());
+
+            while (true) {
+                frame = link.readFrame();
+                byte type = frame.readByte();
+                if (type == APPEND) {
+                    long requestId = frame.readLong();
+                    String room = readString(frame);
+                    String username = readString(frame);
+                    int count = frame.readInt();
+                    List<MessageStore.BatchEntry> entries = new ArrayList<>(Math.min(count, frame.available()));
+                    for (int i = 0; i < count; i++) {
+                        entries.add(new MessageStore.BatchEntry(readString(frame), readString(frame)));
+                    }
+                    // 等待持久化可能要阻塞，放到线程池中执行，不耽误该链路上后续的请求
+                    requestExecutor.execute(() -> link.send(resultFrame(requestId,
+                            host.append(room, username, entries))));
+                } else if (type == ROOM_ACTION) {
+                    long requestId = frame.readLong();
+                    String action = readString(frame);
+                    String room = readString(frame);
+                    String username = readString(frame);
+                    requestExecutor.execute(() -> link.send(resultFrame(requestId,
+                            host.changeRoom(action, room, username))));
+                } else if (type == PRESENCE) {
+                    readString(frame); // 从节点只能上报自己的在线状态，以连接的节点名为准
+                    presenceChanged(link.nodeId, readString(frame), frame.readByte());
+                }
+            }
+        } catch (IOException e) {
+            if (link.nodeId != null && !link.closed) {
+                System.out.println("从节点 " + link.nodeId + " 断开: " + describe(e));
+            }
+        } finally {
+            link.close();
+            if (links.remove(link)) {
+                dropNodePresence(link.nodeId);
+            }
+        }
+    }
+
+    // 新连接的从节点：先在房间锁内发送房间、成员和在线状态的快照，再逐个房间在其写锁内补发缺失的消息，
+    // 补发完成的同时开始接收该房间的实时复制，二者之间不会漏掉或颠倒任何消息
+    private void synchronizeFollower(Link link, Map<String, Long> lastSeqs) {
+        List<ChatRoom> rooms;
+        synchronized (roomsLock) {
+            links.add(link);
+            rooms = new ArrayList<>(host.getRooms());
+            for (ChatRoom room : rooms) {
+                link.send(roomFrame(room.getName()));
+                for (String member : room.getMembers()) {
+                    link.send(membershipFrame(room.getName(), member, true));
+                }
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, Set<String>> node : presenceByNode.entrySet()) {
+                for (String username : node.getValue()) {
+                    link.send(presenceFrame(node.getKey(), username, ONLINE));
+                }
+            }
+        }
+        for (ChatRoom room : rooms) {
+            long afterSeq = lastSeqs.getOrDefault(room.getName(), 0L);
+            MessageStore messageStore = room.getMessageStore();
+            if (afterSeq > messageStore.getLastSeq()) {
+                System.out.println("警告：从节点 " + link.nodeId + " 的房间 " + room.getName() + " 序号 " + afterSeq
+                        + " 超过主节点的 " + messageStore.getLastSeq() + "，两者的消息日志不一致");
+            }
+            messageStore.forEachRetained(afterSeq, chatMessage -> link.send(messageFrame(room.getName(), chatMessage)),
+                    () -> link.syncedRooms.add(room.getName()));
+        }
+    }
+
+    // 主节点在房间写锁内调用：把新消息复制给已完成该房间补发的从节点，只编码一次
+    public void replicate(String room, ChatMessage chatMessage) {
+        if (!isLeader() || links.isEmpty()) {
+            return;
+        }
+        byte[] frame = null;
+        for (Link link : links) {
+            if (link.syncedRooms.contains(room)) {
+                if (frame == null) {
+                    frame = messageFrame(room, chatMessage);
+                }
+                link.send(frame);
+            }
+        }
+        if (frame != null) {
+            replicatedCount.incrementAndGet();
+        }
+    }
+
+    // 主节点在房间锁内、房间对请求可见之前调用
+    public void roomCreated(String room) {
+        if (!isLeader()) {
+            return;
+        }
+        byte[] frame = roomFrame(room);
+        for (Link link : links) {
+            link.send(frame);
+            link.syncedRooms.add(room);
+        }
+    }
+
+    // 主节点在房间锁内调用
+    public void membershipChanged(String room, String username, boolean joined) {
+        if (!isLeader()) {
+            return;
+        }
+        byte[] frame = membershipFrame(room, username, joined);
+        for (Link link : links) {
+            link.send(frame);
+        }
+    }
+
+    // 主节点合并各节点的在线状态，转发给其他从节点；用户在整个集群中的在线状态变化时通知服务器
+    private synchronized void presenceChanged(String node, String username, int state) {
+        Set<String> users = presenceByNode.computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet());
+        boolean wasOnline = isOnlineAnywhere(username);
+        boolean changed = state == ONLINE ? users.add(username) : users.remove(username);
+        if (!changed) {
+            return;
+        }
+        byte[] frame = presenceFrame(node, username, state);
+        for (Link link : links) {
+            if (!node.equals(link.nodeId)) {
+                link.send(frame);
+            }
+        }
+        if (isLeader() && wasOnline != isOnlineAnywhere(username)) {
+            host.onClusterPresence(username, state);
+        }
+    }
+
+    // 从节点断开后，它上面的用户视为离线
+    private synchronized void dropNodePresence(String node) {
+        Set<String> users = presenceByNode.get(node);
+        if (users != null) {
+            for (String username : new ArrayList<>(users)) {
+                presenceChanged(node, username, OFFLINE);
+            }
+            presenceByNode.remove(node);
+        }
+    }
+
+    private boolean isOnlineAnywhere(String username) {
+        for (Set<String> users : presenceByNode.values()) {
+            if (users.contains(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------- 从节点
+
+    private void connectLoop() {
+        while (true) {
+            Link link = null;
+            try {
+                Socket socket = new Socket(leaderHost, leaderPort);
+                link = new Link(socket);
+                link.nodeId = leaderHost + ":" + leaderPort;
+                startThread("cluster-leader-writer", link::writeLoop);
+
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                DataInputStream challenge = link.readFrame();
+                if (challenge.readByte() != CHALLENGE) {
+                    throw new IOException("expected CHALLENGE");
+                }
+                Frame hello = new Frame(HELLO).writeBytes(authenticate(readBytes(challenge))).writeString(nodeId);
+                Collection<ChatRoom> rooms = host.getRooms();
+                hello.writeInt(rooms.size());
+                for (ChatRoom room : rooms) {
+                    hello.writeString(room.getName()).writeLong(room.getMessageStore().getLastSeq());
+                }
+                link.send(hello.toBytes());
+                synchronized (this) {
+                    // 重新上报本节点的在线用户，之后的变化在同一把锁内按序发出
+                    for (String username : localOnline) {
+                        link.send(presenceFrame(nodeId, username, ONLINE));
+                    }
+                    leaderLink = link;
+                }
+                socket.setSoTimeout(0); // 主节点在认证失败时直接断开，之后的读取不设超时
+                System.out.println("已连接集群主节点 " + leaderHost + ":" + leaderPort);
+                followLeader(link);
+            } catch (IOException e) {
+                if (link != null) {
+                    System.out.println("与集群主节点的连接断开: " + describe(e));
+                }
+            } finally {
+                if (link != null) {
+                    synchronized (this) {
+                        leaderLink = null;
+                        presenceByNode.clear(); // 重连后由主节点重新发送快照
+                    }
+                    link.close();
+                    for (CompletableFuture<Result> pending : pendingRequests.values()) {
+                        pending.complete(Result.failure(UNAVAILABLE));
+                    }
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // 按到达顺序应用主节点发来的帧。主节点在回复写请求之前已发出对应的消息，回复到达时消息已写入本地
+    private void followLeader(Link link) throws IOException {
+        while (true) {
+            DataInputStream frame = link.readFrame();
+            byte type = frame.readByte();
+            if (type == MESSAGE) {
+                ChatRoom room = host.findRoom(readString(frame));
+                long seq = frame.readLong();
+                long timestamp = frame.readLong();
+                String username = readString(frame);
+                String toUser = readString(frame);
+                ChatMessage chatMessage = new ChatMessage(seq, timestamp, username, readString(frame), toUser);
+                if (room != null) {
+                    room.getMessageStore().appendReplica(chatMessage);
+                }
+            } else if (type == RESULT) {
+                long requestId = frame.readLong();
+                Result result = new Result(readString(frame), readString(frame), frame.readLong(), frame.readLong(),
+                        frame.readBoolean());
+                CompletableFuture<Result> pending = pendingRequests.remove(requestId);
+                if (pending != null) {
+                    pending.complete(result);
+                }
+            } else if (type == ROOM) {
+                host.openRoom(readString(frame));
+            } else if (type == MEMBERSHIP) {
+                ChatRoom room = host.findRoom(readString(frame));
+                String username = readString(frame);
+                boolean joined = frame.readBoolean();
+                if (room != null && !room.isLobby()) {
+                    if (joined) {
+                        room.join(username);
+                    } else {
+                        room.leave(username);
+                    }
+                }
+            } else if (type == PRESENCE) {
+                String node = readString(frame);
+                String username = readString(frame);
+                byte state = frame.readByte();
+                synchronized (this) {
+                    Set<String> users = presenceByNode.computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet());
+                    if (state == ONLINE) {
+                        users.add(username);
+                    } else {
+                        users.remove(username);
+                    }
+                }
+            }
+        }
+    }
+
+    // 从节点：把写请求转发给主节点并等待结果，主节点不可用或超时时返回 UNAVAILABLE
+    public Result forwardAppend(String room, String username, List<MessageStore.BatchEntry> entries) {
+        long requestId = nextRequestId.incrementAndGet();
+        Frame frame = new Frame(APPEND).writeLong(requestId).writeString(room).writeString(username)
+                .writeInt(entries.size());
+        for (MessageStore.BatchEntry entry : entries) {
+            frame.writeString(entry.message).writeString(entry.toUser);
+        }
+        return forward(requestId, frame.toBytes());
+    }
+
+    public Result forwardRoomAction(String action, String room, String username) {
+        long requestId = nextRequestId.incrementAndGet();
+        return forward(requestId, new Frame(ROOM_ACTION).writeLong(requestId).writeString(action).writeString(room)
+                .writeString(username).toBytes());
+    }
+
+    private Result forward(long requestId, byte[] frame) {
+        Link link = leaderLink;
+        if (link == null) {
+            return Result.failure(UNAVAILABLE);
+        }
+        if (frame.length - 4 > MAX_FRAME_BYTES) {
+            return Result.failure("request too large"); // 主节点会因超长帧断开链路
+        }
+        CompletableFuture<Result> pending = new CompletableFuture<>();
+        pendingRequests.put(requestId, pending);
+        link.send(frame);
+        try {
+            return pending.get(FORWARD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.failure(UNAVAILABLE);
+        } catch (ExecutionException | TimeoutException e) {
+            return Result.failure(UNAVAILABLE);
+        } finally {
+            pendingRequests.remove(requestId);
+        }
+    }
+
+    // ---------------------------------------------------------------- 在线状态
+
+    // 本节点的用户上线或下线，在 SessionManager 的回调中调用
+    public synchronized void localPresenceChanged(String username, int state) {
+        if (state == ONLINE) {
+            localOnline.add(username);
+        } else {
+            localOnline.remove(username);
+        }
+        if (isLeader()) {
+            presenceChanged(nodeId, username, state);
+        } else if (leaderLink != null) {
+            leaderLink.send(presenceFrame(nodeId, username, state));
+        }
+    }
+
+    // 整个集群的在线用户
+    public synchronized Set<String> getOnlineUsers() {
+        Set<String> users = new TreeSet<>(localOnline);
+        for (Set<String> nodeUsers : presenceByNode.values()) {
+            users.addAll(nodeUsers);
+        }
+        return users;
+    }
+
+    // 主节点为已连接的从节点数，从节点已连上主节点时为 1
+    public int getConnectedPeerCount() {
+        return isLeader() ? links.size() : (leaderLink != null ? 1 : 0);
+    }
+
+    public long getReplicatedCount() {
+        return replicatedCount.get();
+    }
+
+    public long getQueuedBytes() {
+        long queued = 0;
+        for (Link link : isLeader() ? links : Collections.singletonList(leaderLink)) {
+            if (link != null) {
+                queued += link.queuedBytes.get();
+            }
+        }
+        return queued;
+    }
+
+    // ---------------------------------------------------------------- 帧编解码
+
+    private static byte[] messageFrame(String room, ChatMessage chatMessage) {
+        return new Frame(MESSAGE).writeString(room).writeLong(chatMessage.getSeq())
+                .writeLong(chatMessage.getTimestamp()).writeString(chatMessage.getUsername())
+                .writeString(chatMessage.getToUser()).writeString(chatMessage.getMessage()).toBytes();
+    }
+
+    private static byte[] roomFrame(String room) {
+        return new Frame(ROOM).writeString(room).toBytes();
+    }
+
+    private static byte[] membershipFrame(String room, String username, boolean joined) {
+        return new Frame(MEMBERSHIP).writeString(room).writeString(username).writeBoolean(joined).toBytes();
+    }
+
+    private static byte[] presenceFrame(String node, String username, int state) {
+        return new Frame(PRESENCE).writeString(node).writeString(username).writeByte(state).toBytes();
+    }
+
+    private static byte[] resultFrame(long requestId, Result result) {
+        return new Frame(RESULT).writeLong(requestId).writeString(result.error).writeString(result.room)
+                .writeLong(result.firstSeq).writeLong(result.lastSeq).writeBoolean(result.durable).toBytes();
+    }
+
+    private static String describe(IOException e) {
+        return e instanceof EOFException ? "对方关闭了连接" : e.getMessage();
+    }
+
+    // 以共享密钥对主节点的随机数计算认证码；未设置密钥时为空
+    private byte[] authenticate(byte[] challenge) {
+        if (secret == null) {
+            return new byte[0];
+        }
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    // 长度为 -1 时返回 null；in 是已读入内存的整帧，长度超出剩余字节时说明帧已损坏
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new EOFException("field length " + length + " exceeds frame");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // 帧构造器：先留出 4 字节长度，写完后回填
+    private static class Frame {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Frame(byte type) {
+            try {
+                out.writeInt(0);
+                out.writeByte(type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Frame writeString(String value) {
+            try {
+                if (value == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(encoded.length);
+                    out.write(encoded);
+                }
+                return this;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Frame writeBytes(byte[] value) {
+            try {
+                out.writeInt(value.length);
+                out.write(value);
+                return this;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Frame writeLong(long value) {
+            try {
+                out.writeLong(value);
+                return this;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Frame writeInt(int value) {
+            try {
+                out.writeInt(value);
+                return this;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Frame writeByte(int value) {
+            try {
+                out.writeByte(value);
+                return this;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        Frame writeBoolean(boolean value) {
+            return writeByte(value ? 1 : 0);
+        }
+
+        byte[] toBytes() {
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+
+    // 一条节点间连接：读取由所属线程完成；写出经由队列交给单独的写线程，调用方（可能持有房间写锁）从不阻塞。
+    // 写线程取空队列后才刷新缓冲区，高负载时多个帧合并为一次系统调用。积压超过上限的连接被断开，由从节点重连补齐
+    private class Link {
+        final Socket socket;
+        final DataInputStream in;
+        final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<>();
+        final AtomicLong queuedBytes = new AtomicLong();
+        final Set<String> syncedRooms = ConcurrentHashMap.newKeySet(); // 主节点：已完成补发、开始实时复制的房间
+        volatile String nodeId;
+        volatile boolean closed = false;
+
+        Link(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        }
+
+        DataInputStream readFrame() throws IOException {
+            int length = in.readInt();
+            if (length < 1 || length > MAX_FRAME_BYTES) {
+                throw new IOException("invalid frame length " + length); // 未认证的对端也可能发来任意长度
+            }
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            return new DataInputStream(new ByteArrayInputStream(frame));
+        }
+
+        void send(byte[] frame) {
+            if (closed) {
+                return;
+            }
+            if (queuedBytes.addAndGet(frame.length) > maxQueuedBytes) {
+                System.out.println("节点 " + nodeId + " 的复制队列积压超过 " + maxQueuedBytes + " 字节，断开连接");
+                close();
+                return;
+            }
+            outbound.add(frame);
+        }
+
+        void writeLoop() {
+            try (OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536)) {
+                while (!closed) {
+                    byte[] frame = outbound.take();
+                    while (frame != null && frame != CLOSE_MARKER) {
+                        out.write(frame);
+                        queuedBytes.addAndGet(-frame.length);
+                        frame = outbound.poll();
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            outbound.clear();
+            outbound.add(CLOSE_MARKER);
+            try {
+                socket.close(); // 同时使读取线程退出
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.example.chatserver;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// 用户凭据：users.txt 每行“用户名 凭据”，凭据为 pbkdf2-sha256$迭代次数$盐$哈希（盐和哈希为 Base64）。
+// 明文密码的行默认拒绝，只有显式打开兼容开关时才接受。所有用户紧凑地存放在一个快照里：记录依次写进一个字节数组，按用户名的开放寻址表只存记录偏移，
+// 每个用户约 70 字节，几十万用户也只占几十 MB。文件变化时在后台线程上整体重建快照再原子替换，登录路径只读 volatile，不加锁。
+// 哈希校验每次要做上万次 HMAC，通过校验的登录按“盐 + 密码”的 SHA-256 缓存一段时间，断线重连时重复登录不必再算一遍；
+// 缓存按用户名和当时的哈希核对，重新加载文件后密码未变的用户仍可命中，改了密码的用户则自然失效。
+// 命令行工具：java com.example.chatserver.CredentialStore add users.txt 用户名 密码 添加或修改用户；
+// java com.example.chatserver.CredentialStore migrate users.txt 把明文密码全部改为哈希。两者都原子地改写文件，服务器随即重新加载
+public class CredentialStore {
+    // 用户被删除时回调，在监视线程上执行
+    public interface RemovalListener {
+        void onRemoved(String username);
+    }
+
+    private static final String PBKDF2_PREFIX = "pbkdf2-sha256$";
+    private static final byte PLAIN = 0;
+    private static final byte PBKDF2 = 1;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    private static final long RELOAD_DELAY_MS = 200; // 文件可能分几次写完，等这么久没有新的变化再加载
+
+    private final Path file;
+    private final boolean allowPlaintext;
+    private final int maxCachedLogins;
+    private final long cacheTtlNanos;
+    private volatile Snapshot snapshot = new Snapshot(new byte[0], 0, new int[1]);
+    private final Map<String, VerifiedLogin> verifiedLogins = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private volatile RemovalListener removalListener;
+
+    // allowPlaintext 为 false 时明文密码的行被跳过，对应用户无法登录
+    public CredentialStore(Path file, boolean allowPlaintext, int maxCachedLogins, long cacheTtlMillis) {
+        this.file = file.toAbsolutePath();
+        this.allowPlaintext = allowPlaintext;
+        this.maxCachedLogins = maxCachedLogins;
+        this.cacheTtlNanos = TimeUnit.MILLISECONDS.toNanos(cacheTtlMillis);
+    }
+
+    public void setRemovalListener(RemovalListener removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    // 读取文件并替换快照，返回用户数。格式错误的行跳过并打印行号，读取失败时保留旧快照
+    public int load() throws IOException {
+        Snapshot previous = snapshot;
+        Builder builder = new Builder(allowPlaintext);
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                int space = line.indexOf(' ');
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (space <= 0 || !builder.add(line.substring(0, space), line.substring(space + 1).trim())) {
+                    System.out.println("凭据文件第 " + lineNumber + " 行格式错误，已跳过");
+                }
+            }
+        }
+        Snapshot next = builder.build();
+        snapshot = next;
+        reloadCount.incrementAndGet();
+        if (builder.rejectedPlain > 0) {
+            System.out.println("凭据文件中有 " + builder.rejectedPlain + " 行为明文密码，已拒绝：请用 CredentialStore migrate "
+                    + "改为哈希，或以 -Dchat.credentials.allowPlaintext=true 临时兼容");
+        } else if (next.plainCount > 0) {
+            System.out.println("凭据文件中有 " + next.plainCount + " 个用户仍为明文密码（已开启兼容），"
+                    + "可用 CredentialStore migrate 改为哈希");
+        }
+        RemovalListener listener = removalListener;
+        if (listener != null) {
+            previous.forEachUsername(username -> {
+                if (!next.contains(username)) {
+                    listener.onRemoved(username);
+                }
+            });
+        }
+        return next.size;
+    }
+
+    // 在后台线程上监视文件所在目录，文件被修改或替换后重新加载
+    public void watch() throws IOException {
+        WatchService watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = affectsFile(key);
+                    // 合并短时间内的连续变化，只加载一次
+                    while ((key = watchService.poll(RELOAD_DELAY_MS, TimeUnit.MILLISECONDS)) != null) {
+                        changed |= affectsFile(key);
+                    }
+                    if (changed) {
+                        try {
+                            System.out.println("凭据文件已变化，重新加载 " + load() + " 个用户");
+                        } catch (IOException e) {
+                            System.out.println("重新加载凭据文件失败，继续使用旧的凭据: " + e);
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // 退出
+            }
+        }, "credential-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private boolean affectsFile(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    public boolean contains(String username) {
+        return username != null && snapshot.contains(username);
+    }
+
+    public boolean verify(String username, String password) {
+        if (username == null || password == null) {
+            return false;
+        }
+        Snapshot current = snapshot;
+        int offset = current.find(username.getBytes(StandardCharsets.UTF_8));
+        if (offset < 0) {
+            return false;
+        }
+        byte[] records = current.records;
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        if (records[offset] == PLAIN) {
+            int length = (records[offset + 1] & 0xff) << 8 | records[offset + 2] & 0xff;
+            return MessageDigest.isEqual(Arrays.copyOfRange(records, offset + 3, offset + 3 + length), passwordBytes);
+        }
+        int iterations = readInt(records, offset + 1);
+        byte[] salt = Arrays.copyOfRange(records, offset + 5, offset + 5 + SALT_BYTES);
+        byte[] hash = Arrays.copyOfRange(records, offset + 5 + SALT_BYTES, offset + 5 + SALT_BYTES + HASH_BYTES);
+
+        byte[] digest = sha256(salt, passwordBytes);
+        long now = System.nanoTime();
+        VerifiedLogin cached = verifiedLogins.get(username);
+        if (cached != null && now - cached.verifiedAt < cacheTtlNanos && MessageDigest.isEqual(cached.hash, hash)
+                && MessageDigest.isEqual(cached.digest, digest)) {
+            cacheHits.incrementAndGet();
+            return true;
+        }
+        if (!MessageDigest.isEqual(pbkdf2(password, salt, iterations), hash)) {
+            return false;
+        }
+        if (maxCachedLogins > 0) {
+            if (verifiedLogins.size() >= maxCachedLogins) {
+                evictCachedLogins(now);
+            }
+            verifiedLogins.put(username, new VerifiedLogin(hash, now, digest));
+        }
+        return true;
+    }
+
+    // 先清掉过期的条目，仍然超出上限时再随意丢掉一部分
+    private void evictCachedLogins(long now) {
+        verifiedLogins.values().removeIf(login -> now - login.verifiedAt >= cacheTtlNanos);
+        Iterator<VerifiedLogin> iterator = verifiedLogins.values().iterator();
+        for (int i = verifiedLogins.size() - maxCachedLogins * 3 / 4; i > 0 && iterator.hasNext(); i--) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public int size() {
+        return snapshot.size;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    // 生成一条哈希凭据，新盐，迭代次数越大校验越慢
+    public static String hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        return PBKDF2_PREFIX + iterations + "$" + Base64.getEncoder().encodeToString(salt) + "$"
+                + Base64.getEncoder().encodeToString(hash);
+    }
+
+    // 密码按 UTF-8 编码后作为 HMAC 密钥
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        char[] chars = password.toCharArray();
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")
+                    .generateSecret(new PBEKeySpec(chars, salt, iterations, HASH_BYTES * 8)).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    private static byte[] sha256(byte[] salt, byte[] password) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(salt);
+            return messageDigest.digest(password);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+                | bytes[offset + 3] & 0xff;
+    }
+
+    // 通过校验的登录：存储的哈希未变、用同一密码再次登录时直接通过
+    private static final class VerifiedLogin {
+        final byte[] hash;
+        final long verifiedAt;
+        final byte[] digest;
+
+        VerifiedLogin(byte[] hash, long verifiedAt, byte[] digest) {
+            this.hash = hash;
+            this.verifiedAt = verifiedAt;
+            this.digest = digest;
+        }
+    }
+
+    // 不可变的凭据快照。记录格式：用户名长度（1 字节）、用户名、类型（1 字节），
+    // 明文为密码长度（2 字节）和密码，哈希为迭代次数（4 字节）、盐和哈希。table 中存记录偏移 + 1，0 为空槽
+    private static final class Snapshot {
+        final byte[] records;
+        final int size;
+        final int[] table;
+        int plainCount;
+
+        Snapshot(byte[] records, int size, int[] table) {
+            this.records = records;
+            this.size = size;
+            this.table = table;
+        }
+
+        boolean contains(String username) {
+            return find(username.getBytes(StandardCharsets.UTF_8)) >= 0;
+        }
+
+        // 返回凭据部分（类型字节）的偏移，不存在时返回 -1
+        int find(byte[] name) {
+            int mask = table.length - 1;
+            for (int slot = hash(name) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int offset = table[slot] - 1;
+                if (nameEquals(records, offset, name)) {
+                    return offset + 1 + name.length;
+                }
+            }
+            return -1;
+        }
+
+        void forEachUsername(Consumer<String> action) {
+            for (int entry : table) {
+                if (entry != 0) {
+                    action.accept(new String(records, entry, records[entry - 1] & 0xff, StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    // 逐行追加记录并维护开放寻址表，装载率超过一半时扩容；同名用户以后出现的一行为准，被覆盖的旧记录留在数组里
+    private static final class Builder {
+        private final boolean allowPlaintext;
+        private byte[] records = new byte[64 * 1024];
+        private int length;
+        private int[] table = new int[1024];
+        private int size;
+        int rejectedPlain; // 未开启兼容时跳过的明文行数
+
+        Builder(boolean allowPlaintext) {
+            this.allowPlaintext = allowPlaintext;
+        }
+
+        boolean add(String username, String credential) {
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 255 || credential.isEmpty()) {
+                return false;
+            }
+            int start = length;
+            if (credential.startsWith(PBKDF2_PREFIX)) {
+                String[] parts = credential.substring(PBKDF2_PREFIX.length()).split("\\$");
+                if (parts.length != 3) {
+                    return false;
+                }
+                int iterations;
+                byte[] salt;
+                byte[] hash;
+                try {
+                    iterations = Integer.parseInt(parts[0]);
+                    salt = Base64.getDecoder().decode(parts[1]);
+                    hash = Base64.getDecoder().decode(parts[2]);
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                if (iterations <= 0 || salt.length != SALT_BYTES || hash.length != HASH_BYTES) {
+                    return false;
+                }
+                writeName(name);
+                write(PBKDF2);
+                write((byte) (iterations >>> 24));
+                write((byte) (iterations >>> 16));
+                write((byte) (iterations >>> 8));
+                write((byte) iterations);
+                write(salt);
+                write(hash);
+            } else if (!allowPlaintext) {
+                rejectedPlain++;
+                return true; // 格式没有问题，只是不接受
+            } else {
+                byte[] password = credential.getBytes(StandardCharsets.UTF_8);
+                if (password.length > 0xffff) {
+                    return false;
+                }
+                writeName(name);
+                write(PLAIN);
+                write((byte) (password.length >>> 8));
+                write((byte) password.length);
+                write(password);
+            }
+            int mask = table.length - 1;
+            int slot = hash(name) & mask;
+            while (table[slot] != 0 && !nameEquals(records, table[slot] - 1, name)) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == 0 && ++size * 2 > table.length) {
+                table[slot] = start + 1;
+                grow();
+            } else {
+                table[slot] = start + 1;
+            }
+            return true;
+        }
+
+        private void grow() {
+            int[] old = table;
+            table = new int[old.length * 2];
+            int mask = table.length - 1;
+            for (int entry : old) {
+                if (entry != 0) {
+                    byte[] name = Arrays.copyOfRange(records, entry, entry + (records[entry - 1] & 0xff));
+                    int slot = hash(name) & mask;
+                    while (table[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    table[slot] = entry;
+                }
+            }
+        }
+
+        private void writeName(byte[] name) {
+            write((byte) name.length);
+            write(name);
+        }
+
+        private void write(byte value) {
+            ensureCapacity(1);
+            records[length++] = value;
+        }
+
+        private void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, records, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > records.length) {
+                records = Arrays.copyOf(records, Math.max(length + additional, records.length * 2));
+            }
+        }
+
+        Snapshot build() {
+            Snapshot snapshot = new Snapshot(Arrays.copyOf(records, length), size, table);
+            for (int entry : table) {
+                if (entry != 0 && records[entry + (records[entry - 1] & 0xff)] == PLAIN) {
+                    snapshot.plainCount++;
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    private static boolean nameEquals(byte[] records, int offset, byte[] name) {
+        if ((records[offset] & 0xff) != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (records[offset + 1 + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a，再打散一次高位，开放寻址表按低位取槽
+    private static int hash(byte[] name) {
+        int hash = 0x811c9dc5;
+        for (byte b : name) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        return hash ^ hash >>> 16;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = Integer.getInteger("chat.credentials.iterations", 210000);
+        if (args.length == 4 && "add".equals(args[0])) {
+            Path path = Paths.get(args[1]);
+            List<String> lines = Files.exists(path) ? Files.readAllLines(path, StandardCharsets.UTF_8)
+                    : new ArrayList<>();
+            String entry = args[2] + " " + hash(args[3], iterations);
+            boolean replaced = false;
+            for (int i = 0; i < lines.size(); i++) {
+                if (lines.get(i).trim().startsWith(args[2] + " ")) {
+                    lines.set(i, entry);
+                    replaced = true;
+                }
+            }
+            if (!replaced) {
+                lines.add(entry);
+            }
+            writeAtomically(path, lines);
+            System.out.println((replaced ? "已修改用户 " : "已添加用户 ") + args[2]);
+        } else if (args.length == 2 && "migrate".equals(args[0])) {
+            Path path = Paths.get(args[1]);
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            int migrated = 0;
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                int space = line.indexOf(' ');
+                if (space > 0 && !line.startsWith("#")) {
+                    String credential = line.substring(space + 1).trim();
+                    if (!credential.startsWith(PBKDF2_PREFIX)) {
+                        lines.set(i, line.substring(0, space) + " " + hash(credential, iterations));
+                        migrated++;
+                    }
+                }
+            }
+            writeAtomically(path, lines);
+            System.out.println("已把 " + migrated + " 个明文密码改为哈希");
+        } else {
+            System.out.println("用法: CredentialStore add <文件> <用户名> <密码> | migrate <文件>"
+                    + "（迭代次数由 -Dchat.credentials.iterations 指定，默认 210000）");
+        }
+    }
+
+    // 先写临时文件再原子改名，监视线程不会读到写了一半的文件
+    private static void writeAtomically(Path path, List<String> lines) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
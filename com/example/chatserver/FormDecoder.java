@@ -0,0 +1,143 @@
+package com.example.chatserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// 表单请求体（application/x-www-form-urlencoded）的解码器：请求体读入复用的字节缓冲区，只记录各字段的位置，
+// get 时才把该字段按 UTF-8 解码为字符串，不再经过 Reader、拆分字符串和 URLDecoder。
+// 解码器放在一个小池中复用，用完须 close 归还：try (FormDecoder form = FormDecoder.read(body)) { ... }
+// get 返回的字符串在 close 之后仍可使用。字段名按原样比较，不做百分号解码；同名字段以最后一个为准
+public class FormDecoder implements AutoCloseable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024; // 超过的缓冲区不放回池中，偶尔的大请求不会长期占用内存
+    private static final ArrayBlockingQueue<FormDecoder> POOL = new ArrayBlockingQueue<>(64);
+
+    private byte[] body = new byte[INITIAL_CAPACITY];
+    private int length;
+    private byte[] scratch = new byte[INITIAL_CAPACITY]; // 含转义的字段在这里解码
+    private int[] bounds = new int[4 * 16]; // 每个字段四个位置：名称起止、值起止
+    private int fieldCount;
+
+    private FormDecoder() {
+    }
+
+    public static FormDecoder read(InputStream in) throws IOException {
+        FormDecoder form = POOL.poll();
+        if (form == null) {
+            form = new FormDecoder();
+        }
+        try {
+            form.fill(in);
+        } catch (IOException e) {
+            form.close();
+            throw e;
+        }
+        return form;
+    }
+
+    private void fill(InputStream in) throws IOException {
+        length = 0;
+        int n;
+        while ((n = in.read(body, length, body.length - length)) > 0) {
+            length += n;
+            if (length == body.length) {
+                body = Arrays.copyOf(body, body.length * 2);
+            }
+        }
+        index();
+    }
+
+    private void index() {
+        fieldCount = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            int equals = -1;
+            while (end < length && body[end] != '&') {
+                if (equals < 0 && body[end] == '=') {
+                    equals = end;
+                }
+                end++;
+            }
+            if (end > start) {
+                if (4 * fieldCount + 4 > bounds.length) {
+                    bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                }
+                int i = 4 * fieldCount++;
+                bounds[i] = start;
+                bounds[i + 1] = equals < 0 ? end : equals;
+                bounds[i + 2] = equals < 0 ? end : equals + 1; // 没有 '=' 的字段值为空串
+                bounds[i + 3] = end;
+            }
+            start = end + 1;
+        }
+    }
+
+    // 字段不存在时返回 null
+    public String get(String name) {
+        for (int i = 4 * (fieldCount - 1); i >= 0; i -= 4) {
+            if (nameEquals(bounds[i], bounds[i + 1], name)) {
+                return decode(bounds[i + 2], bounds[i + 3]);
+            }
+        }
+        return null;
+    }
+
+    private boolean nameEquals(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (body[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // '+' 为空格，%XX 为一个字节；不完整或非法的转义按原样保留，不抛异常
+    private String decode(int start, int end) {
+        int i = start;
+        while (i < end && body[i] != '%' && body[i] != '+') {
+            i++;
+        }
+        if (i == end) {
+            return new String(body, start, end - start, StandardCharsets.UTF_8); // 没有转义，直接解码
+        }
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(end - start, scratch.length * 2)];
+        }
+        int n = i - start;
+        System.arraycopy(body, start, scratch, 0, n);
+        while (i < end) {
+            byte b = body[i++];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 1 < end) {
+                int high = Character.digit(body[i], 16);
+                int low = Character.digit(body[i + 1], 16);
+                if (high >= 0 && low >= 0) {
+                    b = (byte) (high << 4 | low);
+                    i += 2;
+                }
+            }
+            scratch[n++] = b;
+        }
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        if (body.length > MAX_POOLED_CAPACITY) {
+            body = new byte[INITIAL_CAPACITY];
+        }
+        if (scratch.length > MAX_POOLED_CAPACITY) {
+            scratch = new byte[INITIAL_CAPACITY];
+        }
+        fieldCount = 0;
+        POOL.offer(this); // 池已满时直接丢弃
+    }
+}
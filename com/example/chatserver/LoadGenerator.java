@@ -0,0 +1,575 @@
+package com.example.chatserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 无界面的负载生成器：模拟 N 个聊天用户，按与 Client 相同的协议登录、发送、接收和登出，
+// 统计各类请求的吞吐量与延迟分位数，以及消息从发送到被其他用户收到的端到端延迟。
+// 用法：java -cp ".;libs\gson-2.11.0.jar" com.example.chatserver.LoadGenerator [用户数] [持续秒数] [服务器地址]
+// 服务器地址可以是逗号分隔的多个集群节点，用户轮流分配到各节点，另外统计发送与接收不在同一节点时的跨节点延迟。
+// 其余参数通过 -Dchat.load.* 调整：
+//   sendRate       每个用户每秒发送的消息数，默认 0.2，为 0 时只接收
+//   privateRatio   私聊消息所占比例，默认 0.1
+//   receiveMode    poll（定时拉取）、longpoll（长轮询）或 stream（服务器推送流），默认 poll
+//   pollIntervalMs poll 模式下两次拉取的间隔，默认 1000
+//   rampUpSeconds  用户在这段时间内均匀登录，默认 5
+//   batchSize      大于 1 时每次通过 /sendBatch 发送这么多条消息，sendRate 即每秒的批次数，默认 1
+//   usersFile      登录用的明文用户名和密码，默认 loadtest-users.txt；用户数多于凭据时循环复用
+//   rooms          大于 0 时把用户轮流分到 load-0 .. load-(rooms-1) 这些房间里聊天，私聊对象也在同一房间，默认 0（大厅）
+//   transport      http（默认）或 binary。binary 时登录、发送和接收走二进制端口（忽略 receiveMode 与 batchSize），
+//                  加入房间仍走 HTTP
+//   binaryAddress  binary 时各节点的二进制端口，逗号分隔，与服务器地址一一对应，默认 localhost:8100
+public class LoadGenerator {
+    private static final double SEND_RATE = Double.parseDouble(System.getProperty("chat.load.sendRate", "0.2"));
+    private static final double PRIVATE_RATIO = Double.parseDouble(
+            System.getProperty("chat.load.privateRatio", "0.1"));
+    private static final String RECEIVE_MODE = System.getProperty("chat.load.receiveMode", "poll");
+    private static final long POLL_INTERVAL_MS = Long.getLong("chat.load.pollIntervalMs", 1000);
+    private static final int RAMP_UP_SECONDS = Integer.getInteger("chat.load.rampUpSeconds", 5);
+    private static final int BATCH_SIZE = Integer.getInteger("chat.load.batchSize", 1);
+    private static final String USERS_FILE = System.getProperty("chat.load.usersFile", "loadtest-users.txt");
+    private static final int ROOMS = Integer.getInteger("chat.load.rooms", 0);
+    private static final boolean BINARY_TRANSPORT = "binary".equals(System.getProperty("chat.load.transport", "http"));
+    private static final String[] BINARY_ADDRESSES = System.getProperty("chat.load.binaryAddress", "localhost:8100")
+            .split(",");
+    private static final long LONG_POLL_WAIT_MS = 25000;
+    private static final long DRAIN_MILLIS = 3000; // 停止发送后继续接收的时间，让在途消息送达
+    private static final long REPORT_INTERVAL_SECONDS = 5;
+    // 消息内容前缀，后面跟发送时的 System.nanoTime() 和 "@发送节点序号"，接收方据此计算端到端延迟
+    private static final String LAG_MARKER = "lg:";
+
+    private static final String[] OPERATIONS = { "login", "send", "receive", "logout" };
+    private static final Map<String, LatencyHistogram> requestLatencies = new LinkedHashMap<>();
+    private static final Map<String, AtomicLong> requestErrors = new LinkedHashMap<>();
+    private static final LatencyHistogram deliveryLag = new LatencyHistogram();
+    private static final LatencyHistogram crossNodeLag = new LatencyHistogram();
+    private static final AtomicLong publicMessagesSent = new AtomicLong();
+    private static final AtomicLong privateMessagesSent = new AtomicLong();
+    private static final AtomicLong messagesReceived = new AtomicLong();
+    private static final AtomicLong requestsRejected = new AtomicLong(); // 被服务器限流或减载的请求，不计入错误
+
+    static {
+        for (String operation : OPERATIONS) {
+            requestLatencies.put(operation, new LatencyHistogram());
+            requestErrors.put(operation, new AtomicLong());
+        }
+    }
+
+    private static String[] serverUrls;
+    private static ExecutorService executor;
+    private static volatile boolean sending = true;
+    private static volatile boolean receiving = true;
+
+    public static void main(String[] args) throws Exception {
+        int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        serverUrls = (args.length > 2 ? args[2] : "http://localhost:8000").split(",");
+        // HttpURLConnection 默认每个主机只保留 5 个空闲连接，模拟大量用户时需放宽，否则每个请求都要新建连接
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(5, userCount * 2)));
+        }
+
+        List<String[]> credentials = loadCredentials();
+        if (credentials.isEmpty()) {
+            System.out.println("凭据文件中没有用户: " + USERS_FILE);
+            return;
+        }
+        System.out.printf("模拟用户: %d，持续: %d 秒，服务器: %s%n", userCount, seconds, String.join(", ", serverUrls));
+        System.out.printf("每用户发送速率: %.2f 条/秒，私聊比例: %.0f%%，接收模式: %s%s%n", SEND_RATE,
+                PRIVATE_RATIO * 100, BINARY_TRANSPORT ? "binary" : RECEIVE_MODE,
+                !BINARY_TRANSPORT && "poll".equals(RECEIVE_MODE) ? "（间隔 " + POLL_INTERVAL_MS + " ms）" : "");
+        if (ROOMS > 0) {
+            System.out.printf("房间数: %d%n", ROOMS);
+        }
+
+        List<SimulatedUser> users = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String[] credential = credentials.get(i % credentials.size());
+            // 分房间时私聊下一个同房间的用户，否则私聊的对象不是房间成员
+            int target = ROOMS > 0 ? (i + ROOMS) % userCount : i + 1;
+            String toUser = credentials.get(target % credentials.size())[0];
+            String room = ROOMS > 0 ? "load-" + (i % ROOMS) : ChatRoom.LOBBY;
+            users.add(new SimulatedUser(credential[0], credential[1], toUser, room, i % serverUrls.length));
+        }
+
+        executor = createExecutor();
+        long startTime = System.nanoTime();
+        long deadline = startTime + TimeUnit.SECONDS.toNanos(seconds);
+        long rampUpNanos = TimeUnit.SECONDS.toNanos(RAMP_UP_SECONDS);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            SimulatedUser user = users.get(i);
+            long startAt = startTime + rampUpNanos * i / userCount;
+            tasks.add(executor.submit(() -> user.run(startAt, deadline)));
+        }
+
+        long lastReported = 0;
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT_INTERVAL_SECONDS));
+            long sent = publicMessagesSent.get() + privateMessagesSent.get();
+            long received = messagesReceived.get();
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime);
+            System.out.printf("[%3ds] 发送 %.1f 条/秒，接收 %.1f 条/秒，错误 %d，端到端延迟 p99 %.2f ms%n", elapsed,
+                    (sent - lastSent) / (double) (elapsed - lastReported),
+                    (received - lastReceived) / (double) (elapsed - lastReported), totalErrors(),
+                    deliveryLag.getPercentileMillis(0.99));
+            lastReported = elapsed;
+            lastSent = sent;
+            lastReceived = received;
+        }
+
+        sending = false;
+        Thread.sleep(DRAIN_MILLIS);
+        receiving = false;
+        for (SimulatedUser user : users) {
+            user.closeConnection(); // 中断挂起的长轮询和推送流
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        executor.shutdown();
+
+        printReport(seconds);
+    }
+
+    private static List<String[]> loadCredentials() throws IOException {
+        List<String[]> credentials = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(USERS_FILE), StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length == 2) {
+                credentials.add(parts);
+            }
+        }
+        return credentials;
+    }
+
+    private static ExecutorService createExecutor() {
+        try {
+            // 虚拟线程需要 JDK 21+，通过反射调用以便在旧版本 JDK 上仍可编译
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前 JDK 不支持虚拟线程，每个模拟用户改用两个平台线程");
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "simulated-user");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private static long totalErrors() {
+        long errors = 0;
+        for (AtomicLong counter : requestErrors.values()) {
+            errors += counter.get();
+        }
+        return errors;
+    }
+
+    private static void printReport(int seconds) {
+        long publicSent = publicMessagesSent.get();
+        long privateSent = privateMessagesSent.get();
+        System.out.println();
+        System.out.printf("发送消息: %d（公共 %d，私聊 %d），%.1f 条/秒%n", publicSent + privateSent, publicSent,
+                privateSent, (publicSent + privateSent) / (double) seconds);
+        System.out.printf("收到消息: %d，%.1f 条/秒%n", messagesReceived.get(),
+                messagesReceived.get() / (double) seconds);
+        System.out.printf("被限流或减载的请求（429/503）: %d%n", requestsRejected.get());
+        System.out.printf("%-8s %10s %8s %10s %10s %10s %10s%n", "请求", "次数", "错误", "p50 ms", "p90 ms", "p99 ms",
+                "max ms");
+        for (String operation : OPERATIONS) {
+            printLatencyRow(operation, requestLatencies.get(operation), requestErrors.get(operation).get());
+        }
+        printLatencyRow("端到端", deliveryLag, 0);
+        if (serverUrls.length > 1) {
+            printLatencyRow("跨节点", crossNodeLag, 0);
+        }
+    }
+
+    private static void printLatencyRow(String name, LatencyHistogram histogram, long errors) {
+        System.out.printf("%-8s %10d %8d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getCount(), errors,
+                histogram.getPercentileMillis(0.50), histogram.getPercentileMillis(0.90),
+                histogram.getPercentileMillis(0.99), histogram.getMaxMillis());
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 一个模拟用户：发送线程按固定速率发消息，接收线程按配置的模式拉取消息
+    static class SimulatedUser {
+        private final String username;
+        private final String password;
+        private final String privateTarget;
+        private final String room;
+        private final int node; // 连接的服务器在 serverUrls 中的序号
+        private final String serverUrl;
+        private long cursor; // 已收到的最大消息序号，只由接收线程读写
+        private volatile HttpURLConnection receiveConnection; // 接收线程当前的连接，结束时由主线程断开
+        private volatile String sessionToken; // 之后的请求都带上它以保持在线
+        private volatile BinaryClient binaryClient; // binary 时的连接，推送的消息在它的读取线程上统计
+
+        SimulatedUser(String username, String password, String privateTarget, String room, int node) {
+            this.username = username;
+            this.password = password;
+            this.privateTarget = privateTarget;
+            this.room = room;
+            this.node = node;
+            this.serverUrl = serverUrls[node];
+        }
+
+        void run(long startAt, long deadline) {
+            try {
+                sleepUntil(startAt);
+                if (BINARY_TRANSPORT) {
+                    runBinary(deadline);
+                    return;
+                }
+                String loginResponse = request("login", "POST", "/login",
+                        "username=" + encode(username) + "&password=" + encode(password), 0);
+                if (loginResponse == null || !loginResponse.contains("true")) {
+                    requestErrors.get("login").incrementAndGet();
+                    return;
+                }
+                JsonObject login = JsonParser.parseString(loginResponse).getAsJsonObject();
+                if (login.has("token")) {
+                    sessionToken = login.get("token").getAsString();
+                }
+                if (!ChatRoom.LOBBY.equals(room) && !joinRoom()) {
+                    requestErrors.get("login").incrementAndGet();
+                    return;
+                }
+                // 从当前位置开始接收，不拉取历史消息
+                String initial = request("receive", "GET", "/messages?since=" + Long.MAX_VALUE
+                        + "&room=" + encode(room), null, 0);
+                if (initial != null) {
+                    cursor = JsonParser.parseString(initial).getAsJsonObject().get("totalMessages").getAsLong();
+                }
+
+                Future<?> receiver = executor.submit(this::receiveLoop);
+                sendLoop(deadline);
+                receiver.get();
+
+                request("logout", "POST", "/logout", "", 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // 二进制传输：一条连接完成登录、订阅、发送和接收，断开即登出
+        private void runBinary(long deadline) throws InterruptedException, ExecutionException {
+            long start = System.nanoTime();
+            try {
+                binaryClient = BinaryClient.connect(BINARY_ADDRESSES[node % BINARY_ADDRESSES.length],
+                        (room, chatMessage) -> recordDelivery(chatMessage.getMessage()));
+                BinaryClient.Reply login = binaryClient.login(username, password).get();
+                if (!login.isSuccess()) {
+                    requestErrors.get("login").incrementAndGet();
+                    return;
+                }
+                requestLatencies.get("login").recordNanos(System.nanoTime() - start);
+                sessionToken = login.getText();
+                if (!ChatRoom.LOBBY.equals(room) && !joinRoom()) {
+                    requestErrors.get("login").incrementAndGet();
+                    return;
+                }
+                // 从当前位置开始接收，不推送历史消息
+                if (!binaryClient.subscribe(room, Long.MAX_VALUE).get().isSuccess()) {
+                    requestErrors.get("receive").incrementAndGet();
+                    return;
+                }
+                sendLoop(deadline);
+                while (receiving) {
+                    Thread.sleep(100);
+                }
+            } catch (IOException e) {
+                requestErrors.get("login").incrementAndGet();
+            } finally {
+                closeConnection();
+            }
+        }
+
+        // 同一房间的用户同时登录，谁先到谁创建，其余的加入；这两个请求计入登录延迟
+        private boolean joinRoom() {
+            String form = "room=" + encode(room);
+            String response = request("login", "POST", "/rooms/create", form, 0);
+            if (response != null && response.contains("room exists")) {
+                response = request("login", "POST", "/rooms/join", form, 0);
+            }
+            return response != null && response.contains("true");
+        }
+
+        private void sendLoop(long deadline) throws InterruptedException {
+            if (SEND_RATE <= 0) {
+                while (sending) {
+                    Thread.sleep(100);
+                }
+                return;
+            }
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / SEND_RATE);
+            long nextSend = System.nanoTime() + ThreadLocalRandom.current().nextLong(intervalNanos);
+            int sequence = 0;
+            while (sending && nextSend < deadline) {
+                sleepUntil(nextSend);
+                if (!sending) {
+                    break;
+                }
+                if (BATCH_SIZE > 1 && !BINARY_TRANSPORT) {
+                    sendBatch(sequence);
+                    sequence += BATCH_SIZE;
+                } else {
+                    boolean isPrivate = ThreadLocalRandom.current().nextDouble() < PRIVATE_RATIO;
+                    String message = LAG_MARKER + System.nanoTime() + "@" + node + " load message " + sequence++;
+                    String body = "room=" + encode(room) + "&message=" + encode(message)
+                            + (isPrivate ? "&toUser=" + encode(privateTarget) : "");
+                    if (BINARY_TRANSPORT) {
+                        sendBinary(message, isPrivate);
+                    } else if (request("send", "POST", "/send", body, 0) != null) {
+                        (isPrivate ? privateMessagesSent : publicMessagesSent).incrementAndGet();
+                    }
+                }
+                // 落后超过一个间隔时不再补发，避免服务器变慢时形成突发
+                nextSend = Math.max(nextSend + intervalNanos, System.nanoTime());
+            }
+        }
+
+        // 等待响应再发下一条，与 HTTP 的发送方式一致，延迟可以直接比较
+        private void sendBinary(String message, boolean isPrivate) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                BinaryClient.Reply reply = binaryClient.send(room, isPrivate ? privateTarget : null, message).get();
+                if (reply.isSuccess()) {
+                    requestLatencies.get("send").recordNanos(System.nanoTime() - start);
+                    (isPrivate ? privateMessagesSent : publicMessagesSent).incrementAndGet();
+                } else if ("rate limited".equals(reply.getError())
+                        || ClusterNode.UNAVAILABLE.equals(reply.getError())) {
+                    requestsRejected.incrementAndGet();
+                } else {
+                    requestErrors.get("send").incrementAndGet();
+                }
+            } catch (ExecutionException e) {
+                requestErrors.get("send").incrementAndGet();
+            }
+        }
+
+        // 一次 /sendBatch 请求发送 BATCH_SIZE 条消息
+        private void sendBatch(int sequence) {
+            JsonArray messages = new JsonArray();
+            int privateCount = 0;
+            long sentAt = System.nanoTime();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                JsonObject entry = new JsonObject();
+                entry.addProperty("message", LAG_MARKER + sentAt + "@" + node + " load message " + (sequence + i));
+                if (ThreadLocalRandom.current().nextDouble() < PRIVATE_RATIO) {
+                    entry.addProperty("toUser", privateTarget);
+                    privateCount++;
+                }
+                messages.add(entry);
+            }
+            JsonObject body = new JsonObject();
+            body.addProperty("room", room);
+            body.add("messages", messages);
+            if (request("send", "POST", "/sendBatch", body.toString(), 0) != null) {
+                privateMessagesSent.addAndGet(privateCount);
+                publicMessagesSent.addAndGet(BATCH_SIZE - privateCount);
+            }
+        }
+
+        private void receiveLoop() {
+            while (receiving) {
+                try {
+                    switch (RECEIVE_MODE) {
+                        case "stream":
+                            receiveStream();
+                            break;
+                        case "longpoll":
+                            receiveMessages(LONG_POLL_WAIT_MS);
+                            break;
+                        default:
+                            receiveMessages(0);
+                            Thread.sleep(POLL_INTERVAL_MS);
+                            break;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    if (!receiving) {
+                        return;
+                    }
+                    requestErrors.get("receive").incrementAndGet();
+                }
+            }
+        }
+
+        private void receiveMessages(long waitMillis) {
+            String response = request("receive", "GET", "/messages?since=" + cursor + "&wait=" + waitMillis
+                    + "&room=" + encode(room), null, waitMillis);
+            if (response == null || response.isEmpty()) {
+                return; // 出错，或 304 表示没有新消息
+            }
+            JsonObject jsonResponse = JsonParser.parseString(response).getAsJsonObject();
+            for (JsonElement jsonElement : jsonResponse.get("newMessages").getAsJsonArray()) {
+                recordDelivery(jsonElement.getAsJsonObject().get("message").getAsString());
+            }
+            cursor = jsonResponse.get("totalMessages").getAsLong();
+        }
+
+        // 与 Client.receiveMessageStream 相同的 SSE 解析；被要求重新同步时返回，由外层循环重连
+        private void receiveStream() throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + "/stream?since=" + cursor
+                    + "&room=" + encode(room)).openConnection();
+            connection.setReadTimeout(45000);
+            if (sessionToken != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + sessionToken);
+            }
+            receiveConnection = connection;
+            if (rejected(connection)) {
+                return;
+            }
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String eventType = "message";
+                String eventId = null;
+                StringBuilder data = new StringBuilder();
+                String line;
+                while (receiving && (line = in.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        if ("resync".equals(eventType)) {
+                            return;
+                        }
+                        if (data.length() > 0) {
+                            recordDelivery(JsonParser.parseString(data.toString()).getAsJsonObject()
+                                    .get("message").getAsString());
+                            if (eventId != null) {
+                                cursor = Long.parseLong(eventId);
+                            }
+                        }
+                        eventType = "message";
+                        eventId = null;
+                        data.setLength(0);
+                    } else if (line.startsWith("event:")) {
+                        eventType = line.substring(6).trim();
+                    } else if (line.startsWith("id:")) {
+                        eventId = line.substring(3).trim();
+                    } else if (line.startsWith("data:")) {
+                        data.append(line.substring(5).trim());
+                    }
+                }
+            } finally {
+                receiveConnection = null;
+            }
+        }
+
+        private void recordDelivery(String message) {
+            messagesReceived.incrementAndGet();
+            if (message.startsWith(LAG_MARKER)) {
+                int at = message.indexOf('@', LAG_MARKER.length());
+                int end = message.indexOf(' ', LAG_MARKER.length());
+                long lagNanos = System.nanoTime() - Long.parseLong(message.substring(LAG_MARKER.length(), at));
+                deliveryLag.recordNanos(lagNanos);
+                if (Integer.parseInt(message.substring(at + 1, end)) != node) {
+                    crossNodeLag.recordNanos(lagNanos);
+                }
+            }
+        }
+
+        // 发送一次请求并记录延迟；失败时计入错误并返回 null
+        private String request(String operation, String method, String path, String body, long waitMillis) {
+            long start = System.nanoTime();
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + path).openConnection();
+                connection.setRequestMethod(method);
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout((int) (waitMillis + 10000));
+                if (sessionToken != null) {
+                    connection.setRequestProperty("Authorization", "Bearer " + sessionToken);
+                }
+                if ("receive".equals(operation)) {
+                    receiveConnection = connection;
+                    connection.setRequestProperty("If-None-Match", "\"" + cursor + "\"");
+                }
+                if (body != null) {
+                    connection.setDoOutput(true);
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(body.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                if (rejected(connection)) {
+                    return null;
+                }
+                String response;
+                try (InputStream in = connection.getInputStream()) {
+                    response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+                // 长轮询的耗时主要是服务器挂起的时间，不计入请求延迟
+                if (waitMillis == 0) {
+                    requestLatencies.get(operation).recordNanos(System.nanoTime() - start);
+                }
+                return response;
+            } catch (IOException e) {
+                if (receiving || !"receive".equals(operation)) { // 结束时主动断开的接收连接不算错误
+                    requestErrors.get(operation).incrementAndGet();
+                }
+                return null;
+            } finally {
+                if ("receive".equals(operation)) {
+                    receiveConnection = null;
+                }
+            }
+        }
+
+        // 服务器返回 429/503 时按 Retry-After 等待后再让调用方继续，与 Client 的退避一致
+        private boolean rejected(HttpURLConnection connection) throws IOException {
+            int status = connection.getResponseCode();
+            if (status != 429 && status != 503) {
+                return false;
+            }
+            requestsRejected.incrementAndGet();
+            connection.disconnect();
+            try {
+                Thread.sleep(Client.retryDelayMillis(connection.getHeaderField("Retry-After"), 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        void closeConnection() {
+            BinaryClient client = binaryClient;
+            if (client != null) {
+                client.close();
+            }
+            HttpURLConnection connection = receiveConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        private static void sleepUntil(long nanoTime) throws InterruptedException {
+            long remaining = nanoTime - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            }
+        }
+    }
+}
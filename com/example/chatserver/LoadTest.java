@@ -0,0 +1,125 @@
+package com.example.chatserver;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 简单压测工具：多个线程循环执行 登录 -> 发送 -> 拉取 -> 在线列表 -> 登出，统计吞吐量和延迟分位数。
+// 用法：java -cp ".;libs\gson-2.11.0.jar" com.example.chatserver.LoadTest [并发线程数] [持续秒数] [服务器地址]
+public class LoadTest {
+    private static final Pattern TOTAL_MESSAGES_PATTERN = Pattern.compile("\"totalMessages\":\\s*(\\d+)");
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("\"token\":\\s*\"([^\"]+)\"");
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        String serverUrl = args.length > 2 ? args[2] : "http://localhost:8000";
+
+        System.out.println("并发线程: " + threads + "，持续: " + seconds + " 秒，服务器: " + serverUrl);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        AtomicLong errors = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            String username = "user" + (i % 5 + 1);
+            String password = "password" + (i % 5 + 1);
+            results.add(executor.submit(() -> runWorker(serverUrl, username, password, deadline, errors)));
+        }
+
+        long[] latencies = new long[0];
+        for (Future<long[]> result : results) {
+            long[] workerLatencies = result.get();
+            long[] merged = Arrays.copyOf(latencies, latencies.length + workerLatencies.length);
+            System.arraycopy(workerLatencies, 0, merged, latencies.length, workerLatencies.length);
+            latencies = merged;
+        }
+        executor.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("请求数: %d，错误数: %d，吞吐量: %.1f 请求/秒%n", latencies.length, errors.get(),
+                latencies.length / (double) seconds);
+        System.out.printf("延迟 p50: %.2f ms，p99: %.2f ms，max: %.2f ms%n", percentile(latencies, 0.50),
+                percentile(latencies, 0.99), percentile(latencies, 1.0));
+    }
+
+    private static long[] runWorker(String serverUrl, String username, String password, long deadline,
+            AtomicLong errors) {
+        long[] latencies = new long[1024];
+        int count = 0;
+        long lastSeq = 0;
+        String token = null; // 登录后的请求都带上会话令牌，服务器据此确定发送者
+        while (System.nanoTime() < deadline) {
+            String[][] requests = {
+                    { "POST", "/login", "username=" + username + "&password=" + password },
+                    { "POST", "/send", "message=" + encode("load test " + count) },
+                    { "GET", "/messages?count=" + Math.max(0, lastSeq - 20), null },
+                    { "GET", "/list", null },
+                    { "POST", "/logout", "" },
+            };
+            for (String[] request : requests) {
+                long start = System.nanoTime();
+                try {
+                    String response = execute(serverUrl, request[0], request[1], request[2], token);
+                    Matcher matcher = TOTAL_MESSAGES_PATTERN.matcher(response);
+                    if (matcher.find()) {
+                        lastSeq = Long.parseLong(matcher.group(1));
+                    }
+                    matcher = TOKEN_PATTERN.matcher(response);
+                    if (matcher.find()) {
+                        token = matcher.group(1);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    continue;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - start;
+            }
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static String execute(String serverUrl, String method, String path, String body, String token)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        if (token != null) {
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+        }
+        if (body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static double percentile(long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1_000_000.0;
+    }
+}
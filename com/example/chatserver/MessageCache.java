@@ -0,0 +1,254 @@
+package com.example.chatserver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 客户端的本地消息缓存：每个服务器、用户、房间一个文件，依次追加收到的消息（序号、时间戳、发送者、私聊对象、内容），
+// 最后一条的序号即下次接收的游标。重启后先显示缓存的消息，再只拉取游标之后的部分。
+// 每个房间最多保留 maxMessages 条，文件中的记录超过两倍时改写为最新的 maxMessages 条。
+// 写到一半的尾部记录（例如进程被杀）在打开时截掉。缓存是否仍与服务器一致由 Client 在使用前核对
+public class MessageCache {
+    private static final int MAGIC = 0x43484331; // "CHC1"
+    // 单个字段的上限，读取时超过它视为文件损坏；写入前先检查，超长的消息不缓存，以后由服务器重新提供
+    static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final int maxMessages;
+    private final Map<String, RoomFile> roomFiles = new HashMap<>();
+
+    public MessageCache(Path directory, int maxMessages) {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+    }
+
+    // 缓存目录按服务器地址和用户名区分
+    public static MessageCache open(Path baseDirectory, String serverUrl, String username, int maxMessages) {
+        return new MessageCache(baseDirectory.resolve(encodeName(serverUrl)).resolve(encodeName(username)),
+                maxMessages);
+    }
+
+    // 名称按 UTF-8 逐字节编码为文件名：小写字母、数字、下划线和连字符原样保留，其余字节写成 %XX。
+    // 编码可逆，不同的名称（如长度相同的中文房间名）不会落到同一个文件；大写字母和点也编码，
+    // 在不区分大小写的文件系统上不会冲突，名称为 "." 或 ".." 时也不会指向其他目录
+    static String encodeName(String name) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '_' || b == '-') {
+                encoded.append((char) b);
+            } else {
+                encoded.append(String.format("%%%02X", b & 0xFF));
+            }
+        }
+        return encoded.toString();
+    }
+
+    // 读取该房间缓存的消息，按序号从旧到新；文件损坏时清空缓存并返回空列表
+    public synchronized List<ChatMessage> load(String room) {
+        RoomFile roomFile = roomFile(room);
+        ArrayDeque<ChatMessage> messages = new ArrayDeque<>();
+        long validLength = 4;
+        int records = 0;
+        if (Files.exists(roomFile.path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(roomFile.path),
+                    65536))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("bad magic");
+                }
+                while (true) {
+                    ChatMessage chatMessage;
+                    try {
+                        chatMessage = readRecord(in);
+                    } catch (EOFException e) {
+                        break; // 正常结束，或尾部记录不完整
+                    }
+                    validLength += recordLength(chatMessage);
+                    records++;
+                    messages.addLast(chatMessage);
+                    if (messages.size() > maxMessages) {
+                        messages.removeFirst();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Message cache for room " + room + " is unreadable, discarding: " + e);
+                clear(room);
+                return new ArrayList<>();
+            }
+        }
+        List<ChatMessage> result = new ArrayList<>(messages);
+        try {
+            if (records > maxMessages || (Files.exists(roomFile.path) && Files.size(roomFile.path) != validLength)) {
+                rewrite(roomFile, result); // 截掉多余的旧记录和不完整的尾部
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot compact message cache for room " + room + ": " + e);
+        }
+        roomFile.loaded = true;
+        roomFile.records = result.size();
+        roomFile.lastSeq = result.isEmpty() ? 0 : result.get(result.size() - 1).getSeq();
+        return result;
+    }
+
+    // 追加一条收到的消息；序号不大于已缓存的最后一条时忽略（重连时服务器可能重发）
+    public synchronized void append(String room, ChatMessage chatMessage) {
+        if (maxMessages <= 0) {
+            return;
+        }
+        RoomFile roomFile = roomFile(room);
+        if (!roomFile.loaded) {
+            load(room); // 取得已缓存的最后一个序号
+        }
+        if (chatMessage.getSeq() <= roomFile.lastSeq) {
+            return;
+        }
+        if (!fits(chatMessage.getUsername()) || !fits(chatMessage.getToUser()) || !fits(chatMessage.getMessage())) {
+            System.out.println("Message " + chatMessage.getSeq() + " in room " + room + " is too large to cache");
+            return;
+        }
+        try {
+            if (roomFile.out == null) {
+                Files.createDirectories(directory);
+                boolean created = !Files.exists(roomFile.path);
+                roomFile.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                        roomFile.path.toFile(), true), 8192));
+                if (created) {
+                    roomFile.out.writeInt(MAGIC);
+                }
+            }
+            writeRecord(roomFile.out, chatMessage);
+            roomFile.out.flush();
+            roomFile.records++;
+            roomFile.lastSeq = chatMessage.getSeq();
+            if (roomFile.records > 2 * maxMessages) {
+                closeOutput(roomFile);
+                load(room); // 读出最新的 maxMessages 条并改写文件
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot write message cache for room " + room + ": " + e);
+            closeOutput(roomFile);
+        }
+    }
+
+    // 服务器的历史已重置或无法核对时丢弃该房间的缓存
+    public synchronized void clear(String room) {
+        RoomFile roomFile = roomFile(room);
+        closeOutput(roomFile);
+        roomFile.loaded = true;
+        roomFile.records = 0;
+        roomFile.lastSeq = 0;
+        try {
+            Files.deleteIfExists(roomFile.path);
+        } catch (IOException e) {
+            System.out.println("Cannot delete message cache for room " + room + ": " + e);
+        }
+    }
+
+    public synchronized void close() {
+        for (RoomFile roomFile : roomFiles.values()) {
+            closeOutput(roomFile);
+        }
+    }
+
+    private RoomFile roomFile(String room) {
+        return roomFiles.computeIfAbsent(room, name -> new RoomFile(directory.resolve(encodeName(name) + ".cache")));
+    }
+
+    private static void closeOutput(RoomFile roomFile) {
+        if (roomFile.out != null) {
+            try {
+                roomFile.out.close();
+            } catch (IOException ignored) {
+            }
+            roomFile.out = null;
+        }
+    }
+
+    // 先写临时文件再原子替换
+    private void rewrite(RoomFile roomFile, List<ChatMessage> messages) throws IOException {
+        closeOutput(roomFile);
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, roomFile.path.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp),
+                65536))) {
+            out.writeInt(MAGIC);
+            for (ChatMessage chatMessage : messages) {
+                writeRecord(out, chatMessage);
+            }
+        }
+        Files.move(temp, roomFile.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeRecord(DataOutputStream out, ChatMessage chatMessage) throws IOException {
+        out.writeLong(chatMessage.getSeq());
+        out.writeLong(chatMessage.getTimestamp());
+        writeString(out, chatMessage.getUsername());
+        writeString(out, chatMessage.getToUser());
+        writeString(out, chatMessage.getMessage());
+    }
+
+    private static ChatMessage readRecord(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        long timestamp = in.readLong();
+        String username = readString(in);
+        String toUser = readString(in);
+        return new ChatMessage(seq, timestamp, username, readString(in), toUser);
+    }
+
+    private static long recordLength(ChatMessage chatMessage) {
+        return 16 + stringLength(chatMessage.getUsername()) + stringLength(chatMessage.getToUser())
+                + stringLength(chatMessage.getMessage());
+    }
+
+    private static int stringLength(String value) {
+        return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    // 4 字节长度（-1 表示 null）+ UTF-8，与二进制传输的字符串编码相同
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    // 每个 UTF-16 字符最多编码为 3 个字节，短字符串不必编码就能确定不超限
+    private static boolean fits(String value) {
+        return value == null || value.length() <= MAX_STRING_BYTES / 3
+                || value.getBytes(StandardCharsets.UTF_8).length <= MAX_STRING_BYTES;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < -1 || length > MAX_STRING_BYTES) {
+            throw new IOException("bad string length " + length);
+        }
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class RoomFile {
+        final Path path;
+        DataOutputStream out; // 首次追加时以追加模式打开
+        boolean loaded;
+        int records; // 文件中的记录数
+        long lastSeq;
+
+        RoomFile(Path path) {
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.example.chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// 仅追加的消息日志文件：按大小切分为多个段，由单个写线程批量写入（组提交）。
+// 启动时以内存映射方式顺序读取已写满的段，最后一段可能要截断，按块读取，重建内存中的消息和序号。
+// retainMessages 大于 0 时，切换到新段后删除只含更早消息的旧段；为 0 时不删除任何段，日志随消息无限增长。
+// 记录格式：[int 负载长度][int CRC32][long seq][long timestamp][用户名][接收者，-1 表示无][消息内容]，字符串为 int 长度 + UTF-8 字节。
+public class MessageJournal {
+    // 刷盘策略：none 交给操作系统；interval 每隔固定时间刷盘一次；group 每批写入后刷盘，发送方等待刷盘完成再确认
+    public enum FsyncPolicy {
+        NONE, INTERVAL, GROUP
+    }
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MAX_BATCH = 4096;
+    private static final int TAIL_READ_BYTES = 1 << 20;
+    private static final long ENQUEUE_CHECK_MS = 100; // 写队列满时每隔这么久确认一次写线程仍在运行
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long segmentBytes;
+    private final long fsyncIntervalMillis;
+    private final long retainMessages;
+    private final BlockingQueue<ChatMessage> pendingQueue = new LinkedBlockingQueue<>(65536);
+    private final Object durableLock = new Object();
+    private final CRC32 crc32 = new CRC32(); // 仅由写线程使用
+    private final Set<Long> droppedSeqs = ConcurrentHashMap.newKeySet(); // 未能排入写队列、仍有发送方等待确认的消息
+
+    private FileChannel segmentChannel;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1 << 20);
+    private Thread writerThread;
+    private volatile boolean running = false;
+    private volatile boolean failed = false;
+    private volatile long durableSeq = 0; // 已写入（group 模式下为已刷盘）的最大序号
+    private long lastAppendedSeq = 0;
+
+    public MessageJournal(Path directory, FsyncPolicy fsyncPolicy, long segmentBytes, long fsyncIntervalMillis) {
+        this(directory, fsyncPolicy, segmentBytes, fsyncIntervalMillis, 0);
+    }
+
+    // retainMessages：至少保留最近多少个序号的消息所在的段，为 0 时保留全部
+    public MessageJournal(Path directory, FsyncPolicy fsyncPolicy, long segmentBytes, long fsyncIntervalMillis,
+            long retainMessages) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.segmentBytes = segmentBytes;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.retainMessages = retainMessages;
+    }
+
+    // 按顺序回放所有段中的消息，截断最后一个段末尾不完整的记录，返回回放条数
+    public long replay(Consumer<ChatMessage> consumer) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        long replayed = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            if (i == segments.size() - 1) {
+                replayed += replayTail(segment, consumer);
+                break;
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size == 0) {
+                    continue;
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                while (mapped.remaining() >= RECORD_HEADER_BYTES) {
+                    ChatMessage chatMessage = readRecord(mapped);
+                    if (chatMessage == null) {
+                        break;
+                    }
+                    consumer.accept(chatMessage);
+                    lastAppendedSeq = chatMessage.getSeq();
+                    replayed++;
+                }
+                if (mapped.position() < size) {
+                    System.err.println("日志段 " + segment.getFileName() + " 在偏移 " + mapped.position()
+                            + " 处损坏或不完整");
+                }
+            }
+        }
+        durableSeq = lastAppendedSeq;
+        return replayed;
+    }
+
+    // 最后一段不做内存映射：Windows 上仍被映射的文件不能截断，而映射要等 GC 才会解除。
+    // 按块读入缓冲区，读不出完整记录时再读下一块，超过缓冲区的记录扩大缓冲区后重读
+    private long replayTail(Path segment, Consumer<ChatMessage> consumer) throws IOException {
+        long replayed = 0;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long validEnd = 0; // 已回放的完整记录之后的偏移，即缓冲区开头在文件中的位置
+            long readPosition = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(TAIL_READ_BYTES);
+            while (true) {
+                while (buffer.hasRemaining() && readPosition < size) {
+                    int n = channel.read(buffer, readPosition);
+                    if (n < 0) {
+                        break;
+                    }
+                    readPosition += n;
+                }
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                    ChatMessage chatMessage = readRecord(buffer);
+                    if (chatMessage == null) {
+                        break;
+                    }
+                    consumer.accept(chatMessage);
+                    lastAppendedSeq = chatMessage.getSeq();
+                    replayed++;
+                }
+                validEnd += buffer.position();
+                boolean progressed = buffer.position() > 0;
+                buffer.compact();
+                if (!progressed) {
+                    // 缓冲区已满仍读不出一条记录：记录长度在文件范围内时扩大缓冲区，否则是损坏或不完整的尾部
+                    int needed = buffer.position() >= RECORD_HEADER_BYTES
+                            ? RECORD_HEADER_BYTES + buffer.getInt(0) : -1;
+                    if (buffer.hasRemaining() || needed <= buffer.capacity() || validEnd + needed > size) {
+                        break;
+                    }
+                    ByteBuffer larger = ByteBuffer.allocate(needed);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+            if (validEnd < size) {
+                System.err.println("日志段 " + segment.getFileName() + " 在偏移 " + validEnd + " 处损坏或不完整，截断");
+                channel.truncate(validEnd); // 进程崩溃时写了一半的记录
+            }
+        }
+        return replayed;
+    }
+
+    private ChatMessage readRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        int payloadLength = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (payloadLength <= 0 || payloadLength > buffer.remaining()) {
+            buffer.position(start);
+            return null;
+        }
+        ByteBuffer payload = buffer.slice();
+        payload.limit(payloadLength);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return null;
+        }
+        buffer.position(buffer.position() + payloadLength);
+
+        long seq = payload.getLong();
+        long timestamp = payload.getLong();
+        String username = readString(payload);
+        String toUser = readString(payload);
+        String message = readString(payload);
+        return new ChatMessage(seq, timestamp, username, message, toUser);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void start() throws IOException {
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            openSegment(lastAppendedSeq + 1);
+        } else {
+            segmentChannel = FileChannel.open(segments.get(segments.size() - 1), StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            deleteExpiredSegments(lastAppendedSeq); // 保留条数可能在两次启动之间调小
+        }
+        running = true;
+        writerThread = new Thread(this::writeLoop, "journal-writer");
+        writerThread.start();
+    }
+
+    // 由消息存储在写锁内按序号顺序调用；写线程积压过多时阻塞，对发送方形成反压。
+    // 写线程已因错误退出或日志已关闭时不再排队，直接放弃这条消息，否则写锁会被永远占住；
+    // 等待时线程被中断则保留中断状态并放弃这条消息。awaited 为 true 时记下放弃的序号，之后对它的 awaitDurable 返回 false，
+    // 发送方不会得到成功确认；没有人等待的消息（通知、复制）不记录
+    public boolean append(ChatMessage chatMessage, boolean awaited) {
+        try {
+            while (!failed && running) { // 写线程退出时已打印原因，这里不再逐条打印
+                if (pendingQueue.offer(chatMessage, ENQUEUE_CHECK_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("消息 " + chatMessage.getSeq() + " 排队写入日志时线程被中断，未能持久化");
+        }
+        if (awaited) {
+            droppedSeqs.add(chatMessage.getSeq());
+        }
+        return false;
+    }
+
+    // 等待 [firstSeq, lastSeq] 这一批消息持久化：group 模式下等待刷盘，其他模式立即返回。
+    // 批内任一条未能排队或写入失败时返回 false，并清掉这一批记下的放弃序号
+    public boolean awaitDurable(long firstSeq, long lastSeq) {
+        if (!droppedSeqs.isEmpty() && droppedSeqs.removeIf(seq -> seq >= firstSeq && seq <= lastSeq)) {
+            return false;
+        }
+        if (fsyncPolicy != FsyncPolicy.GROUP) {
+            return !failed && (running || durableSeq >= lastSeq);
+        }
+        synchronized (durableLock) {
+            while (durableSeq < lastSeq && !failed && running) {
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return durableSeq >= lastSeq;
+        }
+    }
+
+    private void writeLoop() {
+        List<ChatMessage> batch = new ArrayList<>(MAX_BATCH);
+        long lastForce = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while (running || !pendingQueue.isEmpty()) {
+                ChatMessage first = pendingQueue.poll(Math.max(1, fsyncIntervalMillis), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pendingQueue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                    dirty = true;
+                }
+                boolean forceDue = System.nanoTime() - lastForce >= TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+                if (dirty && (fsyncPolicy == FsyncPolicy.GROUP || (fsyncPolicy == FsyncPolicy.INTERVAL && forceDue))) {
+                    segmentChannel.force(false);
+                    lastForce = System.nanoTime();
+                    dirty = false;
+                }
+                if (!batch.isEmpty()) {
+                    markDurable(batch.get(batch.size() - 1).getSeq());
+                    batch.clear();
+                }
+            }
+            segmentChannel.force(false);
+            segmentChannel.close();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("消息日志写入失败: " + e.getMessage());
+            failed = true;
+            synchronized (durableLock) {
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private void writeBatch(List<ChatMessage> batch) throws IOException {
+        writeBuffer.clear();
+        for (ChatMessage chatMessage : batch) {
+            if (segmentChannel.size() + writeBuffer.position() >= segmentBytes) {
+                flushWriteBuffer();
+                segmentChannel.force(false);
+                segmentChannel.close();
+                openSegment(chatMessage.getSeq());
+                deleteExpiredSegments(chatMessage.getSeq() - 1);
+            }
+            encodeRecord(chatMessage);
+        }
+        flushWriteBuffer();
+    }
+
+    private void encodeRecord(ChatMessage chatMessage) {
+        byte[] username = chatMessage.getUsername().getBytes(StandardCharsets.UTF_8);
+        byte[] toUser = chatMessage.getToUser() != null ? chatMessage.getToUser().getBytes(StandardCharsets.UTF_8)
+                : null;
+        byte[] message = chatMessage.getMessage().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 16 + 12 + username.length + (toUser != null ? toUser.length : 0) + message.length;
+        ensureWriteCapacity(RECORD_HEADER_BYTES + payloadLength);
+
+        int recordStart = writeBuffer.position();
+        writeBuffer.putInt(payloadLength);
+        writeBuffer.putInt(0); // 校验和占位
+        int payloadStart = writeBuffer.position();
+        writeBuffer.putLong(chatMessage.getSeq());
+        writeBuffer.putLong(chatMessage.getTimestamp());
+        writeBuffer.putInt(username.length).put(username);
+        if (toUser != null) {
+            writeBuffer.putInt(toUser.length).put(toUser);
+        } else {
+            writeBuffer.putInt(-1);
+        }
+        writeBuffer.putInt(message.length).put(message);
+
+        ByteBuffer payload = writeBuffer.duplicate();
+        payload.position(payloadStart).limit(payloadStart + payloadLength);
+        crc32.reset();
+        crc32.update(payload);
+        writeBuffer.putInt(recordStart + 4, (int) crc32.getValue());
+    }
+
+    private void ensureWriteCapacity(int bytes) {
+        if (writeBuffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(writeBuffer.capacity() * 2,
+                    writeBuffer.position() + bytes));
+            writeBuffer.flip();
+            larger.put(writeBuffer);
+            writeBuffer = larger;
+        }
+    }
+
+    private void flushWriteBuffer() throws IOException {
+        writeBuffer.flip();
+        while (writeBuffer.hasRemaining()) {
+            segmentChannel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+        segmentChannel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    // 删除已写满、且所含消息都早于最近 retainMessages 个序号的段；段名中的序号即该段第一条消息的序号，
+    // 下一段的起始序号减一即该段的最后一条。只由写线程和启动时调用
+    private void deleteExpiredSegments(long newestSeq) throws IOException {
+        if (retainMessages <= 0) {
+            return;
+        }
+        List<Path> segments = listSegments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSeq(segments.get(i + 1)) - 1 > newestSeq - retainMessages) {
+                break;
+            }
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void markDurable(long seq) {
+        synchronized (durableLock) {
+            durableSeq = seq;
+            durableLock.notifyAll();
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    // 写出所有已排队的消息并刷盘后关闭，在进程退出前调用
+    public void close() {
+        running = false;
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+}
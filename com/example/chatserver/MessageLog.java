@@ -0,0 +1,106 @@
+package com.example.chatserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// 有界消息日志：环形缓冲区按写入位置存放消息，消息序号单调递增但允许有间隔。
+// 写入由调用方串行化，读取无锁。超过条数或字节数上限时淘汰最旧的消息，长时间运行内存保持平稳。
+public class MessageLog {
+    private final AtomicReferenceArray<ChatMessage> slots;
+    private final int mask;
+    private final int maxMessages;
+    private final long maxBytes;
+
+    private volatile long firstPosition = 0; // 最旧的保留消息位置
+    private volatile long nextPosition = 0; // 下一条消息的写入位置，写入槽位之后才发布
+    private volatile long lastSeq = 0;
+    private long retainedBytes = 0; // 仅由写入方访问
+
+    public MessageLog(int maxMessages, long maxBytes) {
+        int capacity = Integer.highestOneBit(Math.max(1, maxMessages - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    // 调用方需保证串行调用，且序号大于之前写入的所有消息
+    public void append(ChatMessage chatMessage) {
+        long position = nextPosition;
+
+        // 先淘汰并发布新的起点，再覆盖槽位，读取方据此识别被覆盖的槽位
+        long oldest = firstPosition;
+        if (position - oldest >= maxMessages) {
+            retainedBytes -= slots.get(index(oldest)).estimateSize();
+            oldest++;
+        }
+        retainedBytes += chatMessage.estimateSize();
+        while (retainedBytes > maxBytes && oldest < position) {
+            retainedBytes -= slots.get(index(oldest)).estimateSize();
+            oldest++;
+        }
+        firstPosition = oldest;
+
+        slots.set(index(position), chatMessage);
+        lastSeq = chatMessage.getSeq();
+        nextPosition = position + 1;
+    }
+
+    // 返回序号在 (afterSeq, throughSeq] 区间内的已保留消息，最多 maxCount 条
+    public List<ChatMessage> readRange(long afterSeq, long throughSeq, int maxCount) {
+        List<ChatMessage> messages = new ArrayList<>();
+        long end = nextPosition;
+        long position = findFirstPositionAfter(afterSeq, end);
+        while (position < end && messages.size() < maxCount) {
+            ChatMessage chatMessage = slots.get(index(position));
+            if (position < firstPosition) {
+                // 读取过程中该槽位已被覆盖，跳到当前最旧的消息继续
+                position = firstPosition;
+                continue;
+            }
+            if (chatMessage.getSeq() > throughSeq) {
+                break;
+            }
+            if (chatMessage.getSeq() > afterSeq) {
+                messages.add(chatMessage);
+            }
+            position++;
+        }
+        return messages;
+    }
+
+    public List<ChatMessage> readAfter(long afterSeq) {
+        return readRange(afterSeq, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    // 序号单调递增，二分查找第一条序号大于 afterSeq 的消息位置
+    private long findFirstPositionAfter(long afterSeq, long end) {
+        long low = firstPosition;
+        long high = end;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            ChatMessage chatMessage = slots.get(index(middle));
+            if (middle < firstPosition) {
+                low = firstPosition; // 被并发覆盖，收缩到新的起点
+            } else if (chatMessage.getSeq() <= afterSeq) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public int size() {
+        return (int) (nextPosition - firstPosition);
+    }
+
+    private int index(long position) {
+        return (int) (position & mask);
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.chatserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// 消息存储：公共消息进入公共日志，私聊消息进入接收者的信箱。
+// 两者共用一个全局序号，客户端用一个游标即可同时跟踪公共消息和自己的私聊消息。
+public class MessageStore {
+    private final MessageLog publicLog;
+    private final Map<String, MessageLog> mailboxes = new ConcurrentHashMap<>();
+    private final int mailboxMaxMessages;
+    private final long mailboxMaxBytes;
+    private final Object writeLock = new Object();
+    private final List<Consumer<ChatMessage>> appendListeners = new CopyOnWriteArrayList<>();
+    private volatile long lastSeq = 0;
+    private volatile MessageJournal journal; // 为 null 时不持久化
+
+    public MessageStore(int maxMessages, long maxBytes, int mailboxMaxMessages, long mailboxMaxBytes) {
+        this.publicLog = new MessageLog(maxMessages, maxBytes);
+        this.mailboxMaxMessages = mailboxMaxMessages;
+        this.mailboxMaxBytes = mailboxMaxBytes;
+    }
+
+    // 监听器在写锁内按序号顺序回调，不能阻塞
+    public void addAppendListener(Consumer<ChatMessage> listener) {
+        appendListeners.add(listener);
+    }
+
+    // 从日志文件回放历史消息以重建内存中的消息和序号，之后每条新消息都会写入该日志
+    public long recover(MessageJournal journal) throws IOException {
+        synchronized (writeLock) {
+            long replayed = journal.replay(chatMessage -> {
+                route(chatMessage);
+                lastSeq = chatMessage.getSeq();
+            });
+            journal.start();
+            this.journal = journal;
+            return replayed;
+        }
+    }
+
+    // toUser 为 null 时是公共消息，否则只投递到 toUser 的信箱。用于服务器自己发出的通知，不等待持久化；
+    // 用户发送的消息走 appendAll，之后以 awaitDurable 确认
+    public ChatMessage append(String username, String message, String toUser) {
+        synchronized (writeLock) {
+            ChatMessage chatMessage = new ChatMessage(lastSeq + 1, System.currentTimeMillis(), username, message,
+                    toUser);
+            route(chatMessage);
+            lastSeq = chatMessage.getSeq();
+            if (journal != null) {
+                journal.append(chatMessage, false);
+            }
+
+            for (Consumer<ChatMessage> listener : appendListeners) {
+                listener.accept(chatMessage);
+            }
+            return chatMessage;
+        }
+    }
+
+    // 集群从节点写入主节点复制来的消息，保留主节点分配的序号和时间戳；重连补发时已有的消息直接忽略
+    public boolean appendReplica(ChatMessage chatMessage) {
+        synchronized (writeLock) {
+            if (chatMessage.getSeq() <= lastSeq) {
+                return false;
+            }
+            route(chatMessage);
+            lastSeq = chatMessage.getSeq();
+            if (journal != null) {
+                journal.append(chatMessage, false);
+            }
+
+            for (Consumer<ChatMessage> listener : appendListeners) {
+                listener.accept(chatMessage);
+            }
+            return true;
+        }
+    }
+
+    // 一次追加一批消息，序号连续且不会与其他发送者的消息交错。lastSeq 在整批写入后才更新，
+    // 按 lastSeq 截止读取的 /messages 要么看到整批，要么一条都看不到。
+    public List<ChatMessage> appendAll(String username, List<BatchEntry> entries) {
+        synchronized (writeLock) {
+            List<ChatMessage> appended = new ArrayList<>(entries.size());
+            long timestamp = System.currentTimeMillis();
+            for (BatchEntry entry : entries) {
+                ChatMessage chatMessage = new ChatMessage(lastSeq + appended.size() + 1, timestamp, username,
+                        entry.message, entry.toUser);
+                route(chatMessage);
+                appended.add(chatMessage);
+            }
+            if (!appended.isEmpty()) {
+                lastSeq = appended.get(appended.size() - 1).getSeq();
+            }
+            for (ChatMessage chatMessage : appended) {
+                if (journal != null) {
+                    journal.append(chatMessage, true);
+                }
+                for (Consumer<ChatMessage> listener : appendListeners) {
+                    listener.accept(chatMessage);
+                }
+            }
+            return appended;
+        }
+    }
+
+    // 调用方需持有写锁
+    private void route(ChatMessage chatMessage) {
+        if (chatMessage.getToUser() == null) {
+            publicLog.append(chatMessage);
+        } else {
+            mailboxes.computeIfAbsent(chatMessage.getToUser(),
+                    user -> new MessageLog(mailboxMaxMessages, mailboxMaxBytes)).append(chatMessage);
+        }
+    }
+
+    // 批量发送中的一条消息，toUser 为 null 时是公共消息
+    public static class BatchEntry {
+        final String message;
+        final String toUser;
+
+        public BatchEntry(String message, String toUser) {
+            this.message = message;
+            this.toUser = toUser;
+        }
+    }
+
+    // 按序号顺序遍历当前保留的全部消息（包括所有信箱），用于日志回放后重建派生的数据，如检索索引
+    public void forEachRetained(Consumer<ChatMessage> action) {
+        forEachRetained(0, action, () -> { });
+    }
+
+    // 同上，只遍历序号大于 afterSeq 的消息；遍历结束后仍在写锁内调用 onCaughtUp，
+    // 之后的新消息都会经由追加监听器送出，二者之间不会遗漏或重复
+    public void forEachRetained(long afterSeq, Consumer<ChatMessage> action, Runnable onCaughtUp) {
+        synchronized (writeLock) {
+            List<ChatMessage> retained = new ArrayList<>(publicLog.readAfter(afterSeq));
+            for (MessageLog mailbox : mailboxes.values()) {
+                retained.addAll(mailbox.readAfter(afterSeq));
+            }
+            retained.sort(Comparator.comparingLong(ChatMessage::getSeq));
+            retained.forEach(action);
+            onCaughtUp.run();
+        }
+    }
+
+    // 按日志的刷盘策略等待 appendAll 追加的一批消息持久化，其中任一条未能写入时返回 false
+    public boolean awaitDurable(ChatMessage first, ChatMessage last) {
+        return journal == null || journal.awaitDurable(first.getSeq(), last.getSeq());
+    }
+
+    // 按序号合并公共消息与 username 的私聊消息，返回 (afterSeq, throughSeq] 区间内的消息
+    public List<ChatMessage> readRange(String username, long afterSeq, long throughSeq) {
+        return readRange(username, afterSeq, throughSeq, Integer.MAX_VALUE);
+    }
+
+    // 同上，但最多返回序号最小的 maxCount 条
+    public List<ChatMessage> readRange(String username, long afterSeq, long throughSeq, int maxCount) {
+        List<ChatMessage> publicMessages = publicLog.readRange(afterSeq, throughSeq, maxCount);
+        MessageLog mailbox = username != null ? mailboxes.get(username) : null;
+        if (mailbox == null) {
+            return publicMessages;
+        }
+        List<ChatMessage> privateMessages = mailbox.readRange(afterSeq, throughSeq, maxCount);
+        if (privateMessages.isEmpty()) {
+            return publicMessages;
+        }
+
+        int size = (int) Math.min(maxCount, (long) publicMessages.size() + privateMessages.size());
+        List<ChatMessage> merged = new ArrayList<>(size);
+        int publicIndex = 0;
+        int privateIndex = 0;
+        while (merged.size() < size) {
+            if (privateIndex == privateMessages.size() || (publicIndex < publicMessages.size()
+                    && publicMessages.get(publicIndex).getSeq() < privateMessages.get(privateIndex).getSeq())) {
+                merged.add(publicMessages.get(publicIndex++));
+            } else {
+                merged.add(privateMessages.get(privateIndex++));
+            }
+        }
+        return merged;
+    }
+
+    public List<ChatMessage> readAfter(String username, long afterSeq) {
+        return readRange(username, afterSeq, Long.MAX_VALUE);
+    }
+
+    // username 是否有序号大于 afterSeq 的可见消息
+    public boolean hasMessagesAfter(String username, long afterSeq) {
+        if (lastSeq <= afterSeq) {
+            return false; // 批量写入尚未完成时也不提前唤醒
+        }
+        if (publicLog.getLastSeq() > afterSeq) {
+            return true;
+        }
+        MessageLog mailbox = username != null ? mailboxes.get(username) : null;
+        return mailbox != null && mailbox.getLastSeq() > afterSeq;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public int size() {
+        int size = publicLog.size();
+        for (MessageLog mailbox : mailboxes.values()) {
+            size += mailbox.size();
+        }
+        return size;
+    }
+}
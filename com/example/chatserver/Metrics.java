@@ -0,0 +1,248 @@
+package com.example.chatserver;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+// 服务器运行指标：每个路由的请求数、错误数、请求/响应字节数和延迟直方图，以及若干实时读取的仪表值。
+// 通过 filter() 挂到各个 HttpContext 上采集，render() 输出 Prometheus 文本格式，renderSummary() 供终端查看。
+public class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    public RouteMetrics route(String route) {
+        return routes.computeIfAbsent(route, RouteMetrics::new);
+    }
+
+    // 仪表值在输出时才读取，不在请求路径上维护
+    public void registerGauge(String name, String help, LongSupplier supplier) {
+        gauges.put(name, new Gauge(help, supplier));
+    }
+
+    public Filter filter(String route) {
+        return new MetricsFilter(route(route));
+    }
+
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        appendCounter(out, "chat_http_requests_total", "Requests handled per route.", RouteMetrics::getRequests);
+        appendCounter(out, "chat_http_errors_total", "Requests that failed or returned a status >= 400.",
+                RouteMetrics::getErrors);
+        appendCounter(out, "chat_http_request_bytes_total", "Request body bytes read per route.",
+                RouteMetrics::getRequestBytes);
+        appendCounter(out, "chat_http_response_bytes_total", "Response body bytes written per route.",
+                RouteMetrics::getResponseBytes);
+
+        out.append("# HELP chat_http_request_duration_seconds Time from request dispatch to response completion.\n");
+        out.append("# TYPE chat_http_request_duration_seconds summary\n");
+        for (RouteMetrics routeMetrics : routes.values()) {
+            LatencyHistogram latency = routeMetrics.latency;
+            for (double quantile : QUANTILES) {
+                out.append("chat_http_request_duration_seconds{route=\"").append(routeMetrics.route)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(formatSeconds(latency.getPercentileMillis(quantile))).append('\n');
+            }
+            out.append("chat_http_request_duration_seconds_sum{route=\"").append(routeMetrics.route).append("\"} ")
+                    .append(formatSeconds(latency.getSumMillis())).append('\n');
+            out.append("chat_http_request_duration_seconds_count{route=\"").append(routeMetrics.route).append("\"} ")
+                    .append(latency.getCount()).append('\n');
+        }
+
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            out.append("# HELP ").append(entry.getKey()).append(' ').append(entry.getValue().help).append('\n');
+            out.append("# TYPE ").append(entry.getKey()).append(" gauge\n");
+            out.append(entry.getKey()).append(' ').append(entry.getValue().supplier.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    public String renderSummary() {
+        StringBuilder out = new StringBuilder(1024);
+        out.append(String.format("%-10s %10s %8s %12s %12s %9s %9s %9s%n", "路由", "请求", "错误", "请求字节",
+                "响应字节", "p50 ms", "p99 ms", "max ms"));
+        for (RouteMetrics routeMetrics : routes.values()) {
+            LatencyHistogram latency = routeMetrics.latency;
+            out.append(String.format("%-10s %10d %8d %12d %12d %9.2f %9.2f %9.2f%n", routeMetrics.route,
+                    routeMetrics.getRequests(), routeMetrics.getErrors(), routeMetrics.getRequestBytes(),
+                    routeMetrics.getResponseBytes(), latency.getPercentileMillis(0.5),
+                    latency.getPercentileMillis(0.99), latency.getMaxMillis()));
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            out.append(entry.getKey()).append(": ").append(entry.getValue().supplier.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private void appendCounter(StringBuilder out, String name, String help, ToLongFunction<RouteMetrics> value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (RouteMetrics routeMetrics : routes.values()) {
+            out.append(name).append("{route=\"").append(routeMetrics.route).append("\"} ")
+                    .append(value.applyAsLong(routeMetrics)).append('\n');
+        }
+    }
+
+    private static String formatSeconds(double millis) {
+        return String.format(Locale.ROOT, "%.6f", millis / 1000.0);
+    }
+
+    static class Gauge {
+        final String help;
+        final LongSupplier supplier;
+
+        Gauge(String help, LongSupplier supplier) {
+            this.help = help;
+            this.supplier = supplier;
+        }
+    }
+
+    // 单个路由的计数器，LongAdder 在多线程并发累加时避免争用
+    public static class RouteMetrics {
+        final String route;
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder requestBytes = new LongAdder();
+        final LongAdder responseBytes = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        RouteMetrics(String route) {
+            this.route = route;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRequestBytes() {
+            return requestBytes.sum();
+        }
+
+        public long getResponseBytes() {
+            return responseBytes.sum();
+        }
+    }
+
+    // 包装请求和响应流以统计字节数。延迟在响应体关闭时记录，这样挂起后由其他线程完成的长轮询也能计入完整耗时；
+    // 处理器返回时已发出响应头但尚未关闭的（如推送流）按建立连接的耗时记录。
+    static class MetricsFilter extends Filter {
+        private final RouteMetrics routeMetrics;
+
+        MetricsFilter(RouteMetrics routeMetrics) {
+            this.routeMetrics = routeMetrics;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            ExchangeRecorder recorder = new ExchangeRecorder(routeMetrics, exchange, System.nanoTime());
+            exchange.setStreams(recorder.countingInput(exchange.getRequestBody()),
+                    recorder.countingOutput(exchange.getResponseBody()));
+            try {
+                chain.doFilter(exchange);
+            } catch (IOException | RuntimeException e) {
+                recorder.complete(true);
+                throw e;
+            }
+            if (exchange.getResponseCode() != -1) {
+                recorder.complete(false);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "metrics";
+        }
+    }
+
+    static class ExchangeRecorder {
+        private final RouteMetrics routeMetrics;
+        private final HttpExchange exchange;
+        private final long startNanos;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private long requestBytes;
+        private long responseBytes;
+
+        ExchangeRecorder(RouteMetrics routeMetrics, HttpExchange exchange, long startNanos) {
+            this.routeMetrics = routeMetrics;
+            this.exchange = exchange;
+            this.startNanos = startNanos;
+        }
+
+        void complete(boolean failed) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            routeMetrics.latency.recordNanos(System.nanoTime() - startNanos);
+            routeMetrics.requests.increment();
+            if (failed || exchange.getResponseCode() >= 400) {
+                routeMetrics.errors.increment();
+            }
+            routeMetrics.requestBytes.add(requestBytes);
+            routeMetrics.responseBytes.add(responseBytes);
+        }
+
+        InputStream countingInput(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        requestBytes++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        requestBytes += n;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        OutputStream countingOutput(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    responseBytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    responseBytes += len;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        complete(false);
+                    }
+                }
+            };
+        }
+    }
+}
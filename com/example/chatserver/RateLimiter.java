@@ -0,0 +1,70 @@
+package com.example.chatserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 按键（用户名或客户端 IP）划分的令牌桶限流器。每个桶只有两个字段，放在 ConcurrentHashMap 中按需创建；
+// 已经回满的桶与不存在的桶等价，由定期清理移除，长时间不活跃的键不会占用内存。
+public class RateLimiter {
+    private final double tokensPerNano;
+    private final double burst;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(double ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+    }
+
+    // 取一个令牌：成功返回 0，否则返回至少还需等待的纳秒数
+    public long tryAcquire(String key) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket(burst, now));
+        synchronized (bucket) {
+            bucket.refill(now, tokensPerNano, burst);
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket.tokens) / tokensPerNano);
+        }
+    }
+
+    // 移除已回满的桶。与并发的 tryAcquire 竞争时最多让该键多得一个令牌，可以接受
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            boolean full;
+            synchronized (bucket) {
+                bucket.refill(now, tokensPerNano, burst);
+                full = bucket.tokens >= burst;
+            }
+            if (full && buckets.remove(entry.getKey(), bucket)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private static class Bucket {
+        double tokens;
+        long lastRefillNanos;
+
+        Bucket(double tokens, long lastRefillNanos) {
+            this.tokens = tokens;
+            this.lastRefillNanos = lastRefillNanos;
+        }
+
+        void refill(long now, double tokensPerNano, double burst) {
+            if (now > lastRefillNanos) {
+                tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+                lastRefillNanos = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.chatserver;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// JSON 响应的写出器：各部分直接按 UTF-8 编码进复用的字节缓冲区，写出时只复制一次，
+// 不再先拼接出字符串、再 getBytes 得到一个新数组。与 FormDecoder 一样放在小池中复用，用完须 close 归还
+public class ResponseWriter implements AutoCloseable {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    private static final ArrayBlockingQueue<ResponseWriter> POOL = new ArrayBlockingQueue<>(64);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    private ResponseWriter() {
+    }
+
+    public static ResponseWriter acquire() {
+        ResponseWriter writer = POOL.poll();
+        return writer != null ? writer : new ResponseWriter();
+    }
+
+    // 与 String.getBytes(UTF_8) 的结果相同，不成对的代理字符写为 '?'
+    public ResponseWriter append(String value) {
+        ensureCapacity(value.length() * 3);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | c >> 6);
+                buffer[length++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[length++] = (byte) (0xf0 | codePoint >> 18);
+                buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buffer[length++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buffer[length++] = '?';
+            } else {
+                buffer[length++] = (byte) (0xe0 | c >> 12);
+                buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[length++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    public ResponseWriter append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int end = length + digits(value);
+        length = end;
+        do {
+            buffer[--end] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return this;
+    }
+
+    public ResponseWriter append(boolean value) {
+        return append(value ? "true" : "false");
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + additional, buffer.length * 2));
+        }
+    }
+
+    public void send(HttpExchange httpExchange, int status) throws IOException {
+        httpExchange.getResponseHeaders().set("Content-Type", "application/json");
+        httpExchange.sendResponseHeaders(status, length);
+        try (OutputStream os = httpExchange.getResponseBody()) {
+            os.write(buffer, 0, length);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (buffer.length > MAX_POOLED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        length = 0;
+        POOL.offer(this);
+    }
+}
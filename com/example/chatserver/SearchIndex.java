@@ -0,0 +1,544 @@
+package com.example.chatserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// 聊天记录的全文检索：随消息追加增量维护的倒排索引，每个房间一个。
+// 英文等按字母数字切成单词，中日韩文字没有空格分词，按相邻两字（单独一个字时按单字）建索引，中英混排的消息两种都能搜到。
+// 索引按 SEGMENT_SIZE 条消息分段：正在写入的段用哈希表和可增长的数组，写满后封存为按词排序的紧凑结构，
+// 所有词的倒排表连续存放在一个 int 数组中，每项只记与前一个文档号的差值。封存段不可变，查询时无锁读取；
+// 超过保留上限时整段丢弃最旧的段，与消息日志的保留策略保持一致。
+public class SearchIndex {
+    static final int SEGMENT_SIZE = 8192;
+    private static final String SENDER_PREFIX = "@"; // 发送者也作为一个词索引，@ 不会出现在切分出的单词中
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private volatile SealedSegment[] sealedSegments = new SealedSegment[0]; // 写时复制，按时间从旧到新
+    private ActiveSegment activeSegment = new ActiveSegment(); // 访问时持有 this 的锁
+    private long lastIndexedSeq = 0;
+
+    public SearchIndex(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    // 在房间写锁内按序号顺序调用。已索引过的序号直接忽略，日志回放后补建索引时不会与实时写入重复
+    public synchronized void add(ChatMessage chatMessage) {
+        if (chatMessage.getSeq() <= lastIndexedSeq) {
+            return;
+        }
+        lastIndexedSeq = chatMessage.getSeq();
+        activeSegment.add(chatMessage);
+        if (activeSegment.size == SEGMENT_SIZE) {
+            sealActiveSegment();
+        }
+    }
+
+    // 调用方持有 this 的锁
+    private void sealActiveSegment() {
+        SealedSegment[] segments = sealedSegments;
+        List<SealedSegment> retained = new ArrayList<>(Arrays.asList(segments));
+        retained.add(activeSegment.seal());
+        activeSegment = new ActiveSegment();
+        long messages = 0;
+        long bytes = 0;
+        for (SealedSegment segment : retained) {
+            messages += segment.messages.length;
+            bytes += segment.retainedBytes;
+        }
+        // 只留足够覆盖保留上限的段，最旧的段整段丢弃
+        while (retained.size() > 1 && (messages - retained.get(0).messages.length >= maxMessages
+                || bytes - retained.get(0).retainedBytes >= maxBytes)) {
+            SealedSegment oldest = retained.remove(0);
+            messages -= oldest.messages.length;
+            bytes -= oldest.retainedBytes;
+        }
+        sealedSegments = retained.toArray(new SealedSegment[0]);
+    }
+
+    public synchronized int size() {
+        int size = activeSegment.size;
+        for (SealedSegment segment : sealedSegments) {
+            size += segment.messages.length;
+        }
+        return size;
+    }
+
+    // 检索查询：空白分隔的词语全部命中；引号括起的短语以及连写的多个单元（如 "hello,world"、三个字以上的中文）
+    // 还要求在消息中相邻出现。sender 不为 null 时只返回该用户发送的消息
+    public static class Query {
+        final List<Clause> clauses = new ArrayList<>();
+        final String sender;
+
+        public Query(String text, String sender) {
+            this.sender = sender;
+            if (text == null) {
+                return;
+            }
+            boolean quoted = false;
+            for (String piece : text.split("\"", -1)) {
+                if (quoted) {
+                    addClause(piece);
+                } else {
+                    for (String term : piece.trim().split("\\s+")) {
+                        addClause(term);
+                    }
+                }
+                quoted = !quoted;
+            }
+        }
+
+        private void addClause(String text) {
+            List<String> units = splitUnits(text);
+            if (!units.isEmpty()) {
+                clauses.add(new Clause(units));
+            }
+        }
+
+        public boolean isEmpty() {
+            return clauses.isEmpty() && sender == null;
+        }
+    }
+
+    // 一个词语或短语：units 为切分出的单元（单词，或一段连续的中日韩文字）
+    static class Clause {
+        final List<String> units;
+        final List<String> sequence; // 用于核对相邻：单词和逐个的中日韩文字
+        final boolean needsVerification;
+
+        Clause(List<String> units) {
+            this.units = units;
+            this.sequence = toSequence(units);
+            String first = units.get(0);
+            this.needsVerification = units.size() > 1
+                    || (isCjk(first.codePointAt(0)) && first.codePointCount(0, first.length()) > 2);
+        }
+    }
+
+    // 返回 seq 小于 beforeSeq、时间在 [fromMillis, toMillis] 内、viewer 可见且命中查询的消息，按序号从新到旧最多 limit 条。
+    // viewer 可见：公共消息、发给 viewer 的私聊和 viewer 自己发出的私聊
+    public List<ChatMessage> search(Query query, String viewer, long fromMillis, long toMillis, long beforeSeq,
+            int limit) {
+        List<ChatMessage> results = new ArrayList<>();
+        SealedSegment[] segments;
+        ActiveView activeView;
+        synchronized (this) {
+            // 与封存段的快照在同一把锁内取得，查询期间封存的段不会被漏掉或重复
+            segments = sealedSegments;
+            activeView = activeSegment.view(query, beforeSeq);
+        }
+        collect(activeView.candidates(query), query, viewer, fromMillis, toMillis, beforeSeq, limit, results);
+        for (int i = segments.length - 1; i >= 0 && results.size() < limit; i--) {
+            SealedSegment segment = segments[i];
+            if (segment.skip(fromMillis, toMillis, beforeSeq)) {
+                continue;
+            }
+            collect(segment.candidates(query), query, viewer, fromMillis, toMillis, beforeSeq, limit, results);
+        }
+        return results;
+    }
+
+    // candidates 按序号从旧到新，从最新的一条往前筛选
+    private static void collect(List<ChatMessage> candidates, Query query, String viewer, long fromMillis,
+            long toMillis, long beforeSeq, int limit, List<ChatMessage> results) {
+        for (int i = candidates.size() - 1; i >= 0 && results.size() < limit; i--) {
+            ChatMessage chatMessage = candidates.get(i);
+            if (chatMessage.getSeq() >= beforeSeq || chatMessage.getTimestamp() < fromMillis
+                    || chatMessage.getTimestamp() > toMillis) {
+                continue;
+            }
+            if (chatMessage.getToUser() != null && !chatMessage.getToUser().equals(viewer)
+                    && !chatMessage.getUsername().equals(viewer)) {
+                continue;
+            }
+            if (matchesSequences(chatMessage, query)) {
+                results.add(chatMessage);
+            }
+        }
+    }
+
+    private static boolean matchesSequences(ChatMessage chatMessage, Query query) {
+        List<String> messageSequence = null;
+        for (Clause clause : query.clauses) {
+            if (!clause.needsVerification) {
+                continue;
+            }
+            if (messageSequence == null) {
+                messageSequence = toSequence(splitUnits(chatMessage.getMessage()));
+            }
+            if (Collections.indexOfSubList(messageSequence, clause.sequence) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 把文本切成单元：连续的字母或数字为一个单词（转为小写），连续的中日韩文字为一段
+    static List<String> splitUnits(String text) {
+        List<String> units = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            int codePoint = text.codePointAt(i);
+            if (!Character.isLetterOrDigit(codePoint)) {
+                i += Character.charCount(codePoint);
+                continue;
+            }
+            boolean cjk = isCjk(codePoint);
+            int start = i;
+            while (i < length) {
+                codePoint = text.codePointAt(i);
+                if (!Character.isLetterOrDigit(codePoint) || isCjk(codePoint) != cjk) {
+                    break;
+                }
+                i += Character.charCount(codePoint);
+            }
+            String unit = text.substring(start, i);
+            units.add(cjk ? unit : unit.toLowerCase(Locale.ROOT));
+        }
+        return units;
+    }
+
+    // 单元对应的索引词：单词本身；中日韩文字为相邻两字，只有一个字时为单字
+    static void addTerms(String unit, List<String> terms) {
+        if (!isCjk(unit.codePointAt(0))) {
+            terms.add(unit);
+            return;
+        }
+        int first = 0;
+        int second = unit.offsetByCodePoints(0, 1);
+        if (second == unit.length()) {
+            terms.add(unit);
+            return;
+        }
+        while (second < unit.length()) {
+            int end = unit.offsetByCodePoints(second, 1);
+            terms.add(unit.substring(first, end));
+            first = second;
+            second = end;
+        }
+    }
+
+    private static List<String> toSequence(List<String> units) {
+        List<String> sequence = new ArrayList<>();
+        for (String unit : units) {
+            if (isCjk(unit.codePointAt(0))) {
+                unit.codePoints().forEach(codePoint -> sequence.add(new String(Character.toChars(codePoint))));
+            } else {
+                sequence.add(unit);
+            }
+        }
+        return sequence;
+    }
+
+    // 按码位区间判断，比查 Unicode 脚本表快得多；只需对字母和数字调用
+    static boolean isCjk(int codePoint) {
+        return (codePoint >= 0x2E80 && codePoint <= 0x9FFF) // 部首、假名、注音、兼容字母和统一表意文字
+                || (codePoint >= 0xAC00 && codePoint <= 0xD7AF) // 谚文音节
+                || (codePoint >= 0x1100 && codePoint <= 0x11FF) // 谚文字母
+                || (codePoint >= 0xF900 && codePoint <= 0xFAFF) // 兼容表意文字
+                || (codePoint >= 0xFF66 && codePoint <= 0xFFDC) // 半角片假名和谚文
+                || (codePoint >= 0x20000 && codePoint <= 0x3FFFF); // 扩展区表意文字
+    }
+
+    private static boolean isSingleCjk(String unit) {
+        return isCjk(unit.codePointAt(0)) && unit.offsetByCodePoints(0, 1) == unit.length();
+    }
+
+    // 升序文档号数组求交集
+    private static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[size++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    // 多个倒排表一次合并为升序去重的并集，文档号都小于 docCount；不再两两归并，命中的词再多也只扫一遍
+    private static int[] unionAll(List<int[]> postingsList, int docCount) {
+        if (postingsList.size() == 1) {
+            return postingsList.get(0);
+        }
+        boolean[] hit = new boolean[docCount];
+        int size = 0;
+        for (int[] docs : postingsList) {
+            for (int doc : docs) {
+                if (!hit[doc]) {
+                    hit[doc] = true;
+                    size++;
+                }
+            }
+        }
+        int[] result = new int[size];
+        int next = 0;
+        for (int doc = 0; next < size; doc++) {
+            if (hit[doc]) {
+                result[next++] = doc;
+            }
+        }
+        return result;
+    }
+
+    // 段的公共查询逻辑：按子句逐个取倒排表求交集，结果为升序文档号；返回 null 表示不限（只有发送者条件时不会出现）
+    private abstract static class Segment {
+        abstract int[] postings(String term);
+
+        abstract int[] postingsContaining(String character); // 单个中日韩文字：出现在任一索引词中即命中
+
+        int[] match(Query query) {
+            int[] docs = query.sender != null ? postings(SENDER_PREFIX + query.sender) : null;
+            for (Clause clause : query.clauses) {
+                for (String unit : clause.units) {
+                    if (docs != null && docs.length == 0) {
+                        return docs;
+                    }
+                    if (isSingleCjk(unit)) {
+                        int[] matched = postingsContaining(unit);
+                        docs = docs == null ? matched : intersect(docs, matched);
+                        continue;
+                    }
+                    List<String> terms = new ArrayList<>();
+                    addTerms(unit, terms);
+                    for (String term : terms) {
+                        int[] matched = postings(term);
+                        docs = docs == null ? matched : intersect(docs, matched);
+                    }
+                }
+            }
+            return docs != null ? docs : new int[0];
+        }
+    }
+
+    private static class ActiveSegment {
+        ChatMessage[] messages = new ChatMessage[64];
+        int size = 0;
+        long retainedBytes = 0;
+        final Map<String, PostingsBuilder> postings = new HashMap<>();
+
+        void add(ChatMessage chatMessage) {
+            if (size == messages.length) {
+                messages = Arrays.copyOf(messages, size * 2);
+            }
+            int doc = size;
+            messages[size++] = chatMessage;
+            retainedBytes += chatMessage.estimateSize();
+            List<String> terms = new ArrayList<>();
+            terms.add(SENDER_PREFIX + chatMessage.getUsername());
+            for (String unit : splitUnits(chatMessage.getMessage())) {
+                addTerms(unit, terms);
+            }
+            for (String term : terms) {
+                postings.computeIfAbsent(term, t -> new PostingsBuilder()).add(doc);
+            }
+        }
+
+        // 调用方持有索引的锁：只记下查询用到的倒排表的数组和当前长度，解码、合并、求交集和核对短语都在锁外完成。
+        // 之后的写入只会写在这些长度之后或换成新数组，已记下的部分不会再变
+        ActiveView view(Query query, long beforeSeq) {
+            ActiveView view = new ActiveView(messages, size);
+            if (size == 0 || messages[0].getSeq() >= beforeSeq) {
+                return view;
+            }
+            if (query.sender != null) {
+                view.capture(SENDER_PREFIX + query.sender, postings.get(SENDER_PREFIX + query.sender));
+            }
+            for (Clause clause : query.clauses) {
+                for (String unit : clause.units) {
+                    if (isSingleCjk(unit)) {
+                        List<PostingsSlice> matched = new ArrayList<>();
+                        for (Map.Entry<String, PostingsBuilder> entry : postings.entrySet()) {
+                            if (!entry.getKey().startsWith(SENDER_PREFIX) && entry.getKey().contains(unit)) {
+                                matched.add(new PostingsSlice(entry.getValue()));
+                            }
+                        }
+                        view.containing.put(unit, matched);
+                        continue;
+                    }
+                    List<String> terms = new ArrayList<>();
+                    addTerms(unit, terms);
+                    for (String term : terms) {
+                        view.capture(term, postings.get(term));
+                    }
+                }
+            }
+            return view;
+        }
+
+        // 按词排序后把所有倒排表拼进一个数组
+        SealedSegment seal() {
+            String[] terms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            int[] starts = new int[terms.length + 1];
+            int total = 0;
+            for (int i = 0; i < terms.length; i++) {
+                starts[i] = total;
+                total += postings.get(terms[i]).size;
+            }
+            starts[terms.length] = total;
+            int[] deltas = new int[total];
+            for (int i = 0; i < terms.length; i++) {
+                PostingsBuilder builder = postings.get(terms[i]);
+                System.arraycopy(builder.deltas, 0, deltas, starts[i], builder.size);
+            }
+            return new SealedSegment(Arrays.copyOf(messages, size), terms, starts, deltas, retainedBytes);
+        }
+    }
+
+    // 倒排表在某一时刻的前 size 项
+    private static class PostingsSlice {
+        final int[] deltas;
+        final int size;
+
+        PostingsSlice(PostingsBuilder builder) {
+            this.deltas = builder.deltas;
+            this.size = builder.size;
+        }
+    }
+
+    // 正在写入的段在某一时刻的只读视图，只含查询用到的倒排表
+    private static class ActiveView extends Segment {
+        final ChatMessage[] messages;
+        final int size;
+        final Map<String, PostingsSlice> postings = new HashMap<>();
+        final Map<String, List<PostingsSlice>> containing = new HashMap<>();
+
+        ActiveView(ChatMessage[] messages, int size) {
+            this.messages = messages;
+            this.size = size;
+        }
+
+        void capture(String term, PostingsBuilder builder) {
+            if (builder != null) {
+                postings.put(term, new PostingsSlice(builder));
+            }
+        }
+
+        List<ChatMessage> candidates(Query query) {
+            List<ChatMessage> candidates = new ArrayList<>();
+            if (postings.isEmpty() && containing.isEmpty()) {
+                return candidates; // 没有取到任何倒排表，必然没有命中
+            }
+            for (int doc : match(query)) {
+                candidates.add(messages[doc]);
+            }
+            return candidates;
+        }
+
+        @Override
+        int[] postings(String term) {
+            PostingsSlice slice = postings.get(term);
+            return slice != null ? decode(slice.deltas, 0, slice.size) : new int[0];
+        }
+
+        @Override
+        int[] postingsContaining(String character) {
+            List<int[]> matched = new ArrayList<>();
+            for (PostingsSlice slice : containing.getOrDefault(character, Collections.emptyList())) {
+                matched.add(decode(slice.deltas, 0, slice.size));
+            }
+            return matched.isEmpty() ? new int[0] : unionAll(matched, size);
+        }
+    }
+
+    // 写入中的倒排表：文档号递增，只存与前一个文档号的差值
+    private static class PostingsBuilder {
+        int[] deltas = new int[2];
+        int size = 0;
+        int lastDoc = -1;
+
+        void add(int doc) {
+            if (doc == lastDoc) {
+                return; // 同一条消息中重复出现的词只记一次
+            }
+            if (size == deltas.length) {
+                deltas = Arrays.copyOf(deltas, size * 2);
+            }
+            deltas[size++] = doc - lastDoc;
+            lastDoc = doc;
+        }
+    }
+
+    private static int[] decode(int[] deltas, int from, int to) {
+        int[] docs = new int[to - from];
+        int doc = -1;
+        for (int i = from; i < to; i++) {
+            doc += deltas[i];
+            docs[i - from] = doc;
+        }
+        return docs;
+    }
+
+    private static class SealedSegment extends Segment {
+        final ChatMessage[] messages;
+        final String[] terms; // 已排序
+        final int[] starts; // 第 i 个词的倒排表为 deltas[starts[i], starts[i + 1])
+        final int[] deltas;
+        final long retainedBytes;
+        final long minTimestamp;
+        final long maxTimestamp;
+
+        SealedSegment(ChatMessage[] messages, String[] terms, int[] starts, int[] deltas, long retainedBytes) {
+            this.messages = messages;
+            this.terms = terms;
+            this.starts = starts;
+            this.deltas = deltas;
+            this.retainedBytes = retainedBytes;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (ChatMessage chatMessage : messages) {
+                min = Math.min(min, chatMessage.getTimestamp());
+                max = Math.max(max, chatMessage.getTimestamp());
+            }
+            this.minTimestamp = min;
+            this.maxTimestamp = max;
+        }
+
+        // 整段都在时间范围或游标之外时不必查询
+        boolean skip(long fromMillis, long toMillis, long beforeSeq) {
+            return maxTimestamp < fromMillis || minTimestamp > toMillis || messages[0].getSeq() >= beforeSeq;
+        }
+
+        List<ChatMessage> candidates(Query query) {
+            int[] docs = match(query);
+            List<ChatMessage> candidates = new ArrayList<>(docs.length);
+            for (int doc : docs) {
+                candidates.add(messages[doc]);
+            }
+            return candidates;
+        }
+
+        @Override
+        int[] postings(String term) {
+            int index = Arrays.binarySearch(terms, term);
+            return index >= 0 ? decode(deltas, starts[index], starts[index + 1]) : new int[0];
+        }
+
+        @Override
+        int[] postingsContaining(String character) {
+            List<int[]> matched = new ArrayList<>();
+            for (int i = 0; i < terms.length; i++) {
+                if (!terms[i].startsWith(SENDER_PREFIX) && terms[i].contains(character)) {
+                    matched.add(decode(deltas, starts[i], starts[i + 1]));
+                }
+            }
+            return matched.isEmpty() ? new int[0] : unionAll(matched, messages.length);
+        }
+    }
+}
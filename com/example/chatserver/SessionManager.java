@@ -0,0 +1,213 @@
+package com.example.chatserver;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 在线状态：每次登录创建一个会话令牌，带令牌的请求、心跳和推送流都会刷新会话，空闲超时的会话由哈希时间轮过期。
+// 刷新只写一次 volatile 字段，不碰时间轮；时间轮转到会话所在的槽时才检查它是否真的过期，
+// 未过期则按最后活跃时间重新放入对应的槽，因此每个会话每个超时周期最多被检查一次，每次 tick 只处理到期的那一槽。
+public class SessionManager {
+    // 用户的第一个会话建立、最后一个会话结束时回调。回调不在在线计数的 compute 内执行（其中会取集群和房间的锁），
+    // 而是在 compute 内排入队列、之后由一个线程依次发出，因此同一用户的加入和离开仍按状态变化的顺序通知
+    public interface PresenceListener {
+        void onJoin(String username);
+
+        void onLeave(String username, boolean expired);
+    }
+
+    private final long tickMillis;
+    private final int timeoutTicks;
+    private final List<List<Session>> wheel; // 槽数为 2 的幂且大于超时 tick 数，到期时间总落在一圈之内
+    private final int wheelMask;
+    private volatile long currentTick = 0;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Integer> onlineUsers = new ConcurrentHashMap<>(); // 用户名 -> 会话数
+    private final PresenceListener presenceListener;
+    private final Queue<Runnable> presenceEvents = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock presenceDelivery = new ReentrantLock();
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    public SessionManager(long timeoutMillis, long tickMillis, PresenceListener presenceListener) {
+        this.tickMillis = tickMillis;
+        this.timeoutTicks = (int) Math.max(1, (timeoutMillis + tickMillis - 1) / tickMillis);
+        int wheelSize = Integer.highestOneBit(timeoutTicks) << 1;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.wheelMask = wheelSize - 1;
+        this.presenceListener = presenceListener;
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Session open(String username) {
+        byte[] tokenBytes = new byte[18];
+        random.nextBytes(tokenBytes);
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes), username,
+                currentTick);
+        sessions.put(session.token, session);
+        onlineUsers.compute(username, (user, count) -> {
+            if (count == null) {
+                presenceEvents.add(() -> presenceListener.onJoin(user));
+                return 1;
+            }
+            return count + 1;
+        });
+        deliverPresenceEvents();
+        schedule(session, session.lastSeenTick + timeoutTicks);
+        return session;
+    }
+
+    // 刷新会话的最后活跃时间，令牌不存在或已过期时返回 false
+    public boolean touch(String token) {
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null) {
+            return false;
+        }
+        session.lastSeenTick = currentTick;
+        return true;
+    }
+
+    public String getUsername(String token) {
+        Session session = token != null ? sessions.get(token) : null;
+        return session != null ? session.username : null;
+    }
+
+    public boolean close(String token) {
+        Session session = token != null ? sessions.remove(token) : null;
+        if (session == null) {
+            return false;
+        }
+        release(session, false);
+        return true;
+    }
+
+    // 结束该用户的所有会话，用于用户被删除时强制下线。需要遍历全部会话
+    public boolean closeAll(String username) {
+        boolean closed = false;
+        for (Session session : sessions.values()) {
+            if (session.username.equals(username) && sessions.remove(session.token, session)) {
+                release(session, false);
+                closed = true;
+            }
+        }
+        return closed;
+    }
+
+    public boolean isOnline(String username) {
+        return onlineUsers.containsKey(username);
+    }
+
+    public Set<String> getOnlineUsers() {
+        return onlineUsers.keySet();
+    }
+
+    public int getOnlineUserCount() {
+        return onlineUsers.size();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutTicks * tickMillis;
+    }
+
+    private void release(Session session, boolean expired) {
+        session.closed = true;
+        onlineUsers.computeIfPresent(session.username, (user, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            presenceEvents.add(() -> presenceListener.onLeave(user, expired));
+            return null;
+        });
+        deliverPresenceEvents();
+    }
+
+    // 同一时刻只有一个线程发出通知；取不到锁时由持锁的线程发出，放锁后再检查一次，避免漏掉刚排入的事件
+    private void deliverPresenceEvents() {
+        while (!presenceEvents.isEmpty() && presenceDelivery.tryLock()) {
+            try {
+                Runnable event;
+                while ((event = presenceEvents.poll()) != null) {
+                    event.run();
+                }
+            } finally {
+                presenceDelivery.unlock();
+            }
+        }
+    }
+
+    private void schedule(Session session, long deadlineTick) {
+        synchronized (wheel) {
+            long tick = Math.max(deadlineTick, currentTick + 1);
+            wheel.get((int) (tick & wheelMask)).add(session);
+        }
+    }
+
+    // 只由调度线程调用
+    void tick() {
+        List<Session> due;
+        long tick;
+        synchronized (wheel) {
+            tick = currentTick + 1;
+            currentTick = tick;
+            int index = (int) (tick & wheelMask);
+            due = wheel.set(index, new ArrayList<>());
+        }
+        for (Session session : due) {
+            if (session.closed) {
+                continue; // 已退出登录，顺便从时间轮中丢弃
+            }
+            long deadline = session.lastSeenTick + timeoutTicks;
+            if (deadline > tick) {
+                schedule(session, deadline); // 期间有过活动，按最后活跃时间重新排期
+            } else if (sessions.remove(session.token, session)) {
+                expiredCount.incrementAndGet();
+                release(session, true);
+            }
+        }
+    }
+
+    public static class Session {
+        final String token;
+        final String username;
+        volatile long lastSeenTick;
+        volatile boolean closed = false;
+
+        Session(String token, String username, long lastSeenTick) {
+            this.token = token;
+            this.username = username;
+            this.lastSeenTick = lastSeenTick;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+    }
+}